@@ -0,0 +1,197 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          KernelBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Subtraction kernels of ImageUtils2 and SubtractionEngine on one synthetic
+ * frame. Time is per frame, divide by width * height for ns/pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+	@Param({ "512x512", "2048x2048", "2304x4096" })
+	public String size;
+
+	private int width_;
+	private int height_;
+	private byte[] bytes1_;
+	private byte[] bytes2_;
+	private short[] shorts1_;
+	private short[] shorts2_;
+	private byte[] byteResult_;
+	private short[] shortResult_;
+	private int[] plane_;
+	private int[] dark_;
+	private int[] gain_;
+	private short[] calibrationOffset_;
+	private short[] calibrationGain_;
+	private float[] floats_;
+	private float[] floatPlane_;
+	private float[] floatResult_;
+	private int[] rgb_;
+	private int[] rgbPlane_;
+	private int[] rgbResult_;
+	private SubtractionEngine engine_;
+
+	@Setup
+	public void setUp() {
+		width_ = widthOf(size);
+		height_ = heightOf(size);
+		int length = width_ * height_;
+		Random random = new Random(0);
+		bytes1_ = randomBytes(random, length);
+		bytes2_ = randomBytes(random, length);
+		shorts1_ = randomShorts(random, length);
+		shorts2_ = randomShorts(random, length);
+		byteResult_ = new byte[length];
+		shortResult_ = new short[length];
+		plane_ = ImageUtils2.makeCorrectionPlane(new ShortProcessor(width_, height_, shorts2_, null), 100);
+		dark_ = ImageUtils2.makeCorrectionPlane(new ShortProcessor(width_, height_, shorts2_, null), 0);
+		gain_ = ImageUtils2.makeGainMap(dark_, new ShortProcessor(width_, height_, shorts1_, null));
+		calibrationOffset_ = new short[length];
+		calibrationGain_ = new short[length];
+		for (int i = 0; i < length; i++) {
+			calibrationOffset_[i] = (short) random.nextInt(200);
+			calibrationGain_[i] = (short) (PhotonTransferCalibration.GAIN_ONE - 1000 + random.nextInt(2000));
+		}
+		floats_ = new float[length];
+		floatResult_ = new float[length];
+		floatPlane_ = ImageUtils2.makeFloatPlane(new ShortProcessor(width_, height_, shorts2_, null), 100);
+		rgb_ = new int[length];
+		for (int i = 0; i < length; i++) {
+			rgb_[i] = random.nextInt();
+		}
+		rgbResult_ = new int[length];
+		rgbPlane_ = ImageUtils2.makeRgbPlane(new ByteProcessor(width_, height_, bytes2_, null));
+		engine_ = new SubtractionEngine(Runtime.getRuntime().availableProcessors(),
+				SubtractionEngine.DEFAULT_THRESHOLD);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine_.shutdown();
+	}
+
+	@Benchmark
+	public byte[] byteByte() {
+		return ImageUtils2.subtractPixelArraysWithOffset(bytes1_, bytes2_, 10, byteResult_);
+	}
+
+	@Benchmark
+	public short[] shortShort() {
+		return ImageUtils2.subtractPixelArraysWithOffset(shorts1_, shorts2_, 100, shortResult_);
+	}
+
+	@Benchmark
+	public short[] shortByte() {
+		return ImageUtils2.subtractPixelArraysWithOffset(shorts1_, bytes2_, 100, shortResult_);
+	}
+
+	@Benchmark
+	public short[] shortByteAlloc() {
+		return ImageUtils2.subtractPixelArraysWithOffset(shorts1_, bytes2_, 100);
+	}
+
+	@Benchmark
+	public short[] shortPlane() {
+		return ImageUtils2.subtractCorrectionPlane(shorts1_, plane_, shortResult_, 0, plane_.length);
+	}
+
+	@Benchmark
+	public FrameStatistics shortPlaneStatistics() {
+		FrameStatistics stats = new FrameStatistics();
+		ImageUtils2.subtractCorrectionPlane(shorts1_, plane_, shortResult_, 0, plane_.length, stats);
+		return stats;
+	}
+
+	@Benchmark
+	public short[] shortFlat() {
+		return ImageUtils2.subtractAndScale(shorts1_, dark_, gain_, 100, shortResult_, 0, dark_.length);
+	}
+
+	@Benchmark
+	public short[] shortCalibrated() {
+		return ImageUtils2.subtractCalibrated(shorts1_, calibrationOffset_, calibrationGain_, 100, shortResult_,
+				0, shortResult_.length);
+	}
+
+	@Benchmark
+	public float[] floatPlane() {
+		return ImageUtils2.subtractFloatPlane(floats_, floatPlane_, floatResult_, 0, floatResult_.length);
+	}
+
+	@Benchmark
+	public int[] rgbByte() {
+		return ImageUtils2.subtractRgbPlane(rgb_, rgbPlane_, 10, rgbResult_, 0, rgbResult_.length);
+	}
+
+	@Benchmark
+	public short[] engineShortPlane() throws Exception {
+		engine_.subtract(shorts1_, plane_, shortResult_, width_, height_);
+		return shortResult_;
+	}
+
+	static int widthOf(String size) {
+		return Integer.parseInt(size.substring(0, size.indexOf('x')));
+	}
+
+	static int heightOf(String size) {
+		return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+	}
+
+	static byte[] randomBytes(Random random, int length) {
+		byte[] array = new byte[length];
+		random.nextBytes(array);
+		return array;
+	}
+
+	static short[] randomShorts(Random random, int length) {
+		short[] array = new short[length];
+		for (int i = 0; i < length; i++) {
+			array[i] = (short) random.nextInt(65536);
+		}
+		return array;
+	}
+}
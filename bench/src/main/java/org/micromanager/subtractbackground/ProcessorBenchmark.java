@@ -0,0 +1,117 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ProcessorBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+
+/**
+ * SubtractBackgroundProcessor.processTaggedImage on 16 bit frames with a 16
+ * or 8 bit background. Every frame gets fresh tags, as from the core, since
+ * processing adds tags to them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+	@Param({ "512x512", "2048x2048", "2304x4096" })
+	public String size;
+
+	/**
+	 * Engine threads, 0 for one per core
+	 */
+	@Param({ "1", "0" })
+	public int threads;
+
+	@Param({ "false", "true" })
+	public boolean inPlace;
+
+	@Param({ "16", "8" })
+	public int backgroundBits;
+
+	private int width_;
+	private int height_;
+	private short[] pixels_;
+	private SubtractBackgroundProcessor processor_;
+	private TaggedImage frame_;
+
+	@Setup
+	public void setUp() {
+		width_ = KernelBenchmark.widthOf(size);
+		height_ = KernelBenchmark.heightOf(size);
+		int length = width_ * height_;
+		Random random = new Random(1);
+		pixels_ = KernelBenchmark.randomShorts(random, length);
+		ImageProcessor background = backgroundBits == 8
+				? new ByteProcessor(width_, height_, KernelBenchmark.randomBytes(random, length), null)
+				: new ShortProcessor(width_, height_, KernelBenchmark.randomShorts(random, length), null);
+		processor_ = new SubtractBackgroundProcessor();
+		processor_.setBackgroundImage(background);
+		processor_.setOffset(1);
+		processor_.setThreadCount(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+				SubtractionEngine.DEFAULT_THRESHOLD);
+		processor_.setInPlace(inPlace);
+	}
+
+	@Setup(Level.Invocation)
+	public void nextFrame() throws Exception {
+		JSONObject tags = new JSONObject();
+		tags.put("PixelType", "GRAY16");
+		tags.put("Width", width_);
+		tags.put("Height", height_);
+		frame_ = new TaggedImage(pixels_, tags);
+	}
+
+	@TearDown
+	public void tearDown() {
+		// unregisters the metrics MBean and stops the engine threads
+		processor_.dispose();
+	}
+
+	@Benchmark
+	public TaggedImage processTaggedImage() throws Exception {
+		return processor_.processTaggedImage(frame_);
+	}
+}
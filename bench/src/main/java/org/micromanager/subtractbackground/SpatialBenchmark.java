@@ -0,0 +1,91 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SpatialBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Spatial background mode. At 30 fps a frame may take 33 ms, i.e. about 8
+ * ns/pixel at 2048x2048.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpatialBenchmark {
+	@Param({ "512x512", "2048x2048", "2304x4096" })
+	public String size;
+
+	@Param({ "10", "50" })
+	public int radius;
+
+	/**
+	 * Engine threads, 0 for one per core
+	 */
+	@Param({ "1", "0" })
+	public int threads;
+
+	private int width_;
+	private int height_;
+	private short[] pixels_;
+	private short[] result_;
+	private SpatialBackground spatial_;
+	private SubtractionEngine engine_;
+
+	@Setup
+	public void setUp() {
+		width_ = KernelBenchmark.widthOf(size);
+		height_ = KernelBenchmark.heightOf(size);
+		pixels_ = KernelBenchmark.randomShorts(new Random(2), width_ * height_);
+		result_ = new short[width_ * height_];
+		spatial_ = new SpatialBackground(radius);
+		engine_ = new SubtractionEngine(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+				SubtractionEngine.DEFAULT_THRESHOLD);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine_.shutdown();
+	}
+
+	@Benchmark
+	public short[] subtract() throws Exception {
+		spatial_.subtract(engine_, pixels_, width_, height_, 100, result_);
+		return result_;
+	}
+}
@@ -0,0 +1,61 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ArrivalDelay.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import org.json.JSONObject;
+
+/**
+ * Estimates how long a frame waited between acquisition and now from its
+ * ElapsedTime-ms tag. The camera to plugin delay of the earliest frame of the
+ * acquisition is taken as zero, so the estimate is the wait on top of that,
+ * i.e. the time spent queued behind other frames. A new acquisition is
+ * detected by ElapsedTime-ms going back. Not thread safe.
+ */
+final class ArrivalDelay {
+	private static final String TAG_ELAPSED = "ElapsedTime-ms";
+
+	// Smallest wall clock minus ElapsedTime-ms of the current acquisition
+	private long baseline_ = Long.MAX_VALUE;
+	private double lastElapsed_ = -1;
+
+	/**
+	 * Returns the delay of a frame in ms, -1 without an ElapsedTime-ms tag.
+	 *
+	 * @param nowMs
+	 *            - System.currentTimeMillis()
+	 */
+	long delayMs(JSONObject tags, long nowMs) {
+		double elapsed = tags.optDouble(TAG_ELAPSED, Double.NaN);
+		if (Double.isNaN(elapsed)) {
+			return -1;
+		}
+		if (elapsed < lastElapsed_) {
+			baseline_ = Long.MAX_VALUE;
+		}
+		lastElapsed_ = elapsed;
+		long offset = nowMs - (long) elapsed;
+		if (offset < baseline_) {
+			baseline_ = offset;
+		}
+		return offset - baseline_;
+	}
+}
@@ -0,0 +1,197 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BackgroundEstimator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import org.micromanager.utils.MMException;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Estimates a background from a stream of frames. Frames are accumulated
+ * directly from their primitive pixel arrays and memory does not grow with
+ * the number of frames. Every estimator also keeps a per-pixel variance
+ * (Welford's algorithm) so that noisy pixels can be identified.
+ */
+public abstract class BackgroundEstimator {
+	/**
+	 * Available estimators
+	 */
+	public enum Method {
+		MEAN("Mean"), SIGMA_CLIPPED("Sigma-clipped mean"), MEDIAN("Median (approx.)");
+
+		private final String label_;
+
+		Method(String label) {
+			label_ = label;
+		}
+
+		@Override
+		public String toString() {
+			return label_;
+		}
+	}
+
+	protected final int width_;
+	protected final int height_;
+	protected final int ijType_;
+	protected final double[] mean_;
+	protected final double[] m2_;
+	protected int count_ = 0;
+	private final int[] frame_;
+
+	/**
+	 * @param ijType
+	 *            - ImagePlus.GRAY8 or ImagePlus.GRAY16
+	 */
+	protected BackgroundEstimator(int width, int height, int ijType) {
+		width_ = width;
+		height_ = height;
+		ijType_ = ijType;
+		mean_ = new double[width * height];
+		m2_ = new double[width * height];
+		frame_ = new int[width * height];
+	}
+
+	/**
+	 * Creates an estimator
+	 *
+	 * @param count
+	 *            - number of frames that will be added
+	 */
+	public static BackgroundEstimator create(Method method, int width, int height, int ijType, int count) {
+		switch (method) {
+		case SIGMA_CLIPPED:
+			return new SigmaClippedEstimator(width, height, ijType);
+		case MEDIAN:
+			return new MedianEstimator(width, height, ijType, count);
+		default:
+			return new MeanEstimator(width, height, ijType);
+		}
+	}
+
+	/**
+	 * Adds a frame of byte[] or short[] pixels
+	 *
+	 * @throws MMException
+	 *             when the frame does not match the first one
+	 */
+	public void add(Object pixels) throws MMException {
+		int l = frame_.length;
+		if (ijType_ == ImagePlus.GRAY8 && pixels instanceof byte[] && ((byte[]) pixels).length == l) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < l; i++) {
+				frame_[i] = p[i] & 0xff;
+			}
+		} else if (ijType_ == ImagePlus.GRAY16 && pixels instanceof short[] && ((short[]) pixels).length == l) {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < l; i++) {
+				frame_[i] = p[i] & 0xffff;
+			}
+		} else {
+			throw new MMException("Background frames differ in size or type");
+		}
+		accumulate(frame_);
+		count_++;
+	}
+
+	/**
+	 * Adds the unsigned pixel values of a frame, count_ frames were added
+	 * before.
+	 */
+	protected abstract void accumulate(int[] frame);
+
+	/**
+	 * Returns the estimated value of pixel i
+	 */
+	protected abstract double estimate(int i);
+
+	/**
+	 * Returns the number of samples of pixel i in mean_ and m2_
+	 */
+	protected int samples(int i) {
+		return count_;
+	}
+
+	/**
+	 * One step of Welford's algorithm for pixel i, n is the number of samples
+	 * including x.
+	 */
+	protected final void update(int i, int x, int n) {
+		double delta = x - mean_[i];
+		mean_[i] += delta / n;
+		m2_[i] += delta * (x - mean_[i]);
+	}
+
+	public int getCount() {
+		return count_;
+	}
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	/**
+	 * Returns the estimated background, or null when no frame was added
+	 */
+	public ImageProcessor getBackground() {
+		if (count_ == 0) {
+			return null;
+		}
+		int l = mean_.length;
+		if (ijType_ == ImagePlus.GRAY8) {
+			byte[] averaged = new byte[l];
+			for (int i = 0; i < l; i++) {
+				averaged[i] = ImageUtils2.toByte((int) (estimate(i) + 0.5));
+			}
+			return new ByteProcessor(width_, height_, averaged, null);
+		}
+		short[] averaged = new short[l];
+		for (int i = 0; i < l; i++) {
+			averaged[i] = ImageUtils2.toShort((int) (estimate(i) + 0.5));
+		}
+		return new ShortProcessor(width_, height_, averaged, null);
+	}
+
+	/**
+	 * Returns the per-pixel sample variance, or null with less than 2 frames
+	 */
+	public FloatProcessor getVariance() {
+		if (count_ < 2) {
+			return null;
+		}
+		int l = m2_.length;
+		float[] variance = new float[l];
+		for (int i = 0; i < l; i++) {
+			int n = samples(i);
+			variance[i] = n > 1 ? (float) (m2_[i] / (n - 1)) : 0;
+		}
+		return new FloatProcessor(width_, height_, variance, null);
+	}
+}
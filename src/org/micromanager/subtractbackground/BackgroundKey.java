@@ -0,0 +1,164 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BackgroundKey.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.subtractbackground;
+
+import java.util.Locale;
+
+import org.json.JSONObject;
+
+/**
+ * Camera settings a background was acquired with. Frames are matched to
+ * backgrounds of a BackgroundLibrary by this key.
+ */
+public final class BackgroundKey {
+	private static final String SEPARATOR = "|";
+	private static final String TAG_CAMERA = "Camera";
+	private static final String TAG_BINNING = "Binning";
+	private static final String TAG_EXPOSURE = "Exposure-ms";
+	private static final String TAG_ROI = "ROI";
+	private static final String TAG_PIXEL_TYPE = "PixelType";
+
+	private final String camera_;
+	private final String binning_;
+	// Binning as a number for tags that hold one, -1 if it is not a number
+	private final int binningValue_;
+	// Exposures read back from cameras differ in the last digits
+	private final long exposureMicros_;
+	private final String roi_;
+	private final String pixelType_;
+
+	public BackgroundKey(String camera, String binning, double exposureMs, String roi, String pixelType) {
+		camera_ = camera;
+		binning_ = binning;
+		binningValue_ = parseCount(binning);
+		exposureMicros_ = Math.round(exposureMs * 1000);
+		roi_ = roi;
+		pixelType_ = pixelType;
+	}
+
+	/**
+	 * Returns the key of the settings a frame was acquired with
+	 */
+	public static BackgroundKey fromTags(JSONObject tags) {
+		return new BackgroundKey(tags.optString(TAG_CAMERA, ""), tags.optString(TAG_BINNING, "1"),
+				tags.optDouble(TAG_EXPOSURE, 0), tags.optString(TAG_ROI, ""), tags.optString(TAG_PIXEL_TYPE, ""));
+	}
+
+	/**
+	 * True when fromTags(tags) would equal this key. Allocates nothing for
+	 * the tags Micro-Manager writes, so it can be called for every frame.
+	 */
+	public boolean matches(JSONObject tags) {
+		if (Math.round(tags.optDouble(TAG_EXPOSURE, 0) * 1000) != exposureMicros_) {
+			return false;
+		}
+		Object binning = tags.opt(TAG_BINNING);
+		boolean binningMatches;
+		if (binning == null) {
+			binningMatches = binning_.equals("1");
+		} else if (binning instanceof Integer || binning instanceof Long) {
+			binningMatches = binningValue_ >= 0 && ((Number) binning).longValue() == binningValue_;
+		} else {
+			binningMatches = binning_.equals(binning.toString());
+		}
+		return binningMatches && camera_.equals(tags.optString(TAG_CAMERA, ""))
+				&& roi_.equals(tags.optString(TAG_ROI, "")) && pixelType_.equals(tags.optString(TAG_PIXEL_TYPE, ""));
+	}
+
+	/**
+	 * Parses the result of toString(), returns null for malformed text.
+	 */
+	public static BackgroundKey parse(String text) {
+		String[] fields = text.split("\\" + SEPARATOR, -1);
+		if (fields.length != 5) {
+			return null;
+		}
+		try {
+			return new BackgroundKey(fields[0], fields[1], Double.parseDouble(fields[2]), fields[3], fields[4]);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a non-negative decimal integer, -1 for anything else
+	 */
+	private static int parseCount(String text) {
+		if (text.length() == 0 || text.length() > 9) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	public String getCamera() {
+		return camera_;
+	}
+
+	public String getBinning() {
+		return binning_;
+	}
+
+	public String getRoi() {
+		return roi_;
+	}
+
+	public String getPixelType() {
+		return pixelType_;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof BackgroundKey)) {
+			return false;
+		}
+		BackgroundKey k = (BackgroundKey) o;
+		return camera_.equals(k.camera_) && binning_.equals(k.binning_) && exposureMicros_ == k.exposureMicros_
+				&& roi_.equals(k.roi_) && pixelType_.equals(k.pixelType_);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = camera_.hashCode();
+		h = 31 * h + binning_.hashCode();
+		h = 31 * h + (int) (exposureMicros_ ^ (exposureMicros_ >>> 32));
+		h = 31 * h + roi_.hashCode();
+		return 31 * h + pixelType_.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		String exposure = String.format(Locale.US, "%.3f", exposureMicros_ / 1000.0);
+		return camera_ + SEPARATOR + binning_ + SEPARATOR + exposure + SEPARATOR + roi_ + SEPARATOR + pixelType_;
+	}
+}
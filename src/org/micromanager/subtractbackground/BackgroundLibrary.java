@@ -0,0 +1,313 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BackgroundLibrary.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.subtractbackground;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONObject;
+import org.micromanager.utils.ReportingUtils;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Directory of backgrounds indexed by the camera settings they were acquired
+ * with. Backgrounds are kept in an LRU cache limited to a number of bytes.
+ * lookup() never touches the disk or builds a plane; a miss schedules the
+ * background to be loaded on a separate thread, and cached states are rebuilt
+ * there when the offset or the flat-field image changes.
+ */
+public class BackgroundLibrary {
+	public static final String INDEX_FILE = "SubtractBackground.index";
+
+	private final File directory_;
+	private final Properties index_ = new Properties();
+	// The index by key, so frames never format a key to look it up
+	private final Map<BackgroundKey, String> files_ = new HashMap<BackgroundKey, String>();
+	// Indexed backgrounds that failed to load, not read again until put
+	private final Set<BackgroundKey> failed_ = new HashSet<BackgroundKey>();
+	private final LinkedHashMap<BackgroundKey, CorrectionState> cache_ = new LinkedHashMap<BackgroundKey, CorrectionState>(
+			16, 0.75f, true);
+	private final Set<BackgroundKey> loading_ = new HashSet<BackgroundKey>();
+	private final ExecutorService loader_;
+	private long budget_;
+	private long bytes_ = 0;
+	// Offset and flat-field image of the states in the cache
+	private double offsetPercent_ = 0;
+	private ImageProcessor flat_;
+	// Key of the most recent frame, reused while frames have the same settings
+	private BackgroundKey lastKey_;
+
+	/**
+	 * Opens the library in directory, reading its index if there is one.
+	 *
+	 * @param budget
+	 *            - maximum number of bytes of cached backgrounds
+	 */
+	public BackgroundLibrary(File directory, long budget) {
+		directory_ = directory;
+		budget_ = budget;
+		File indexFile = new File(directory, INDEX_FILE);
+		if (indexFile.isFile()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(indexFile);
+				index_.load(in);
+			} catch (IOException ex) {
+				ReportingUtils.logError(ex, "Failed to read " + indexFile.getAbsolutePath());
+			} finally {
+				close(in);
+			}
+			for (String name : index_.stringPropertyNames()) {
+				BackgroundKey key = BackgroundKey.parse(name);
+				if (key != null) {
+					files_.put(key, index_.getProperty(name));
+				}
+			}
+		}
+		loader_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SubtractBackground-library");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public File getDirectory() {
+		return directory_;
+	}
+
+	/**
+	 * Adds a background file of the library directory to the index.
+	 */
+	public synchronized void put(BackgroundKey key, File file) throws IOException {
+		index_.setProperty(key.toString(), file.getName());
+		files_.put(key, file.getName());
+		failed_.remove(key);
+		CorrectionState old = cache_.remove(key);
+		if (old != null) {
+			bytes_ -= old.getByteCount();
+		}
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(new File(directory_, INDEX_FILE));
+			index_.store(out, "SubtractBackground library");
+		} finally {
+			close(out);
+		}
+	}
+
+	public synchronized boolean contains(BackgroundKey key) {
+		return files_.containsKey(key);
+	}
+
+	/**
+	 * Returns the cached state for key, or null when it is not in memory. A
+	 * background that is in the index but not cached is loaded in the
+	 * background, unless loading it failed before.
+	 */
+	public synchronized CorrectionState lookup(BackgroundKey key) {
+		CorrectionState state = cache_.get(key);
+		if (state == null) {
+			requestLoad(key);
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the cached state for the settings a frame was acquired with, see
+	 * lookup(BackgroundKey). No key is made while consecutive frames have the
+	 * same settings.
+	 */
+	public synchronized CorrectionState lookup(JSONObject tags) {
+		BackgroundKey key = lastKey_;
+		if (key == null || !key.matches(tags)) {
+			key = BackgroundKey.fromTags(tags);
+			lastKey_ = key;
+		}
+		return lookup(key);
+	}
+
+	/**
+	 * Sets the offset and flat-field image of the states returned by lookup.
+	 * Cached states are rebuilt on the loader thread, until then lookup
+	 * returns them with the previous offset and flat.
+	 */
+	public synchronized void setCorrection(double offsetPercent, ImageProcessor flat) {
+		if (offsetPercent == offsetPercent_ && flat == flat_) {
+			return;
+		}
+		offsetPercent_ = offsetPercent;
+		flat_ = flat;
+		loader_.execute(new Runnable() {
+			@Override
+			public void run() {
+				rebuild();
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the cached states that do not have the current offset and flat
+	 */
+	private void rebuild() {
+		while (true) {
+			BackgroundKey key = null;
+			CorrectionState old = null;
+			double offsetPercent;
+			ImageProcessor flat;
+			synchronized (this) {
+				offsetPercent = offsetPercent_;
+				flat = flat_;
+				for (Map.Entry<BackgroundKey, CorrectionState> entry : cache_.entrySet()) {
+					if (!isCurrent(entry.getValue())) {
+						key = entry.getKey();
+						old = entry.getValue();
+						break;
+					}
+				}
+			}
+			if (key == null) {
+				return;
+			}
+			// Planes are built without holding the lock
+			CorrectionState state = old.withCorrection(offsetPercent, flat);
+			synchronized (this) {
+				// Replace only if the entry was neither evicted nor replaced meanwhile
+				if (cache_.get(key) == old) {
+					cache_.put(key, state);
+					bytes_ += state.getByteCount() - old.getByteCount();
+					evict();
+				}
+			}
+		}
+	}
+
+	private boolean isCurrent(CorrectionState state) {
+		return state.getOffsetPercent() == offsetPercent_ && state.getFlat() == flat_;
+	}
+
+	/**
+	 * Loads the background of key into the cache unless it is there already.
+	 */
+	public synchronized void requestLoad(final BackgroundKey key) {
+		final String name = files_.get(key);
+		if (name == null || cache_.containsKey(key) || loading_.contains(key) || failed_.contains(key)) {
+			return;
+		}
+		loading_.add(key);
+		loader_.execute(new Runnable() {
+			@Override
+			public void run() {
+				CorrectionState state = null;
+				try {
+					File file = new File(directory_, name);
+					ImageProcessor background = open(file);
+					if (background != null) {
+						double offsetPercent;
+						ImageProcessor flat;
+						synchronized (BackgroundLibrary.this) {
+							offsetPercent = offsetPercent_;
+							flat = flat_;
+						}
+						// The full path lets deferred frames be corrected later
+						state = CorrectionState.create(background, flat, offsetPercent, file.getAbsolutePath());
+					} else {
+						ReportingUtils.logError("Failed to open background " + name);
+					}
+				} finally {
+					loaded(key, state);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads a background file, null when it cannot be opened
+	 */
+	protected ImageProcessor open(File file) {
+		try {
+			return RawBackgroundFile.open(file);
+		} catch (IOException ex) {
+			ReportingUtils.logError(ex);
+			return null;
+		}
+	}
+
+	private synchronized void loaded(BackgroundKey key, CorrectionState state) {
+		loading_.remove(key);
+		if (state == null) {
+			failed_.add(key);
+			return;
+		}
+		cache_.put(key, state);
+		bytes_ += state.getByteCount();
+		evict();
+	}
+
+	public synchronized void setBudget(long budget) {
+		budget_ = budget;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<BackgroundKey, CorrectionState>> it = cache_.entrySet().iterator();
+		// Keep the most recently used entry even if it alone exceeds the budget
+		while (bytes_ > budget_ && cache_.size() > 1 && it.hasNext()) {
+			bytes_ -= it.next().getValue().getByteCount();
+			it.remove();
+		}
+	}
+
+	public synchronized void dispose() {
+		loader_.shutdownNow();
+		cache_.clear();
+		bytes_ = 0;
+	}
+
+	private static void close(java.io.Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException ex) {
+				ReportingUtils.logError(ex);
+			}
+		}
+	}
+}
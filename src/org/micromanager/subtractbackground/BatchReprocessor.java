@@ -0,0 +1,376 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BatchReprocessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.micromanager.utils.MMException;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Subtracts a background from saved TIFF files and Micro-Manager datasets
+ * without ImageJ. Every file is copied and its planes are rewritten in place
+ * in the copy, one plane at a time through a buffer of one plane per thread,
+ * so memory does not depend on the size of a file. Files are processed in
+ * parallel.
+ * <p>
+ * A file is written as &lt;name&gt;.part next to a &lt;name&gt;.progress file
+ * holding the number of planes done, and renamed when complete. Planes are
+ * always read from the original, so an interrupted run is resumed by running
+ * it again. Run headless with
+ *
+ * <pre>
+ * java -cp ... org.micromanager.subtractbackground.BatchReprocessor [-offset percent] [-flat file] [-threads n] background output input...
+ * </pre>
+ *
+ * Inputs are TIFF files or directories, e.g. datasets, whose TIFF files are
+ * corrected and whose other files are copied.
+ */
+public class BatchReprocessor {
+	public static final String PART_SUFFIX = ".part";
+	public static final String PROGRESS_SUFFIX = ".progress";
+	// Planes between checkpoints of the progress file
+	private static final int CHECKPOINT = 16;
+
+	private final CorrectionState state_;
+	private final int threads_;
+	// Serial engine, files rather than bands are processed in parallel
+	private final SubtractionEngine engine_ = new SubtractionEngine(1, 0);
+	private final AtomicInteger filesDone_ = new AtomicInteger();
+	private final AtomicInteger filesFailed_ = new AtomicInteger();
+	private final AtomicLong planesDone_ = new AtomicLong();
+
+	/**
+	 * @param state
+	 *            - background, offset, flat-field and hot pixels to correct
+	 *            with
+	 * @param threads
+	 *            - number of files processed at the same time
+	 */
+	public BatchReprocessor(CorrectionState state, int threads) {
+		state_ = state;
+		threads_ = Math.max(1, threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		double offset = 0;
+		File flatFile = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			} else if (args[i].equals("-offset")) {
+				offset = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("-flat")) {
+				flatFile = new File(args[i + 1]);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else {
+				usage();
+			}
+		}
+		if (args.length - i < 3) {
+			usage();
+		}
+		File backgroundFile = new File(args[i]);
+		ImageProcessor background = RawBackgroundFile.open(backgroundFile);
+		if (background == null) {
+			throw new IOException("Cannot open " + backgroundFile);
+		}
+		ImageProcessor flat = null;
+		if (flatFile != null) {
+			flat = RawBackgroundFile.open(flatFile);
+			if (flat == null || flat.getWidth() != background.getWidth()
+					|| flat.getHeight() != background.getHeight()) {
+				throw new IOException("Flat image must have the size of the background");
+			}
+		}
+		int[] hotPixels = HotPixelMap.read(HotPixelMap.fileFor(backgroundFile), background.getWidth(),
+				background.getHeight());
+		if (hotPixels != null && hotPixels.length == 0) {
+			hotPixels = null;
+		}
+		CorrectionState state = CorrectionState.create(background, backgroundFile.getAbsolutePath(), hotPixels,
+				flat, flatFile != null ? flatFile.getAbsolutePath() : null, offset);
+		List<File> inputs = new ArrayList<File>();
+		for (int j = i + 2; j < args.length; j++) {
+			inputs.add(new File(args[j]));
+		}
+		BatchReprocessor batch = new BatchReprocessor(state, threads);
+		batch.run(new File(args[i + 1]), inputs);
+		System.out.println(batch.getFilesDone() + " files, " + batch.getPlanesDone() + " planes corrected, "
+				+ batch.getFilesFailed() + " failed");
+		System.exit(batch.getFilesFailed() > 0 ? 1 : 0);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: BatchReprocessor [-offset percent] [-flat file] [-threads n] "
+				+ "background output input...");
+		System.exit(2);
+	}
+
+	/**
+	 * Corrects inputs into the directory output, skipping files that are
+	 * complete there. Failures are printed and counted.
+	 *
+	 * @return number of files that failed
+	 */
+	public int run(File output, List<File> inputs) throws InterruptedException {
+		List<File[]> jobs = new ArrayList<File[]>();
+		for (File input : inputs) {
+			collect(input, new File(output, input.getName()), jobs);
+		}
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads_, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SubtractBackground-batch-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final File[] job : jobs) {
+			futures.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process(job[0], job[1]);
+						filesDone_.incrementAndGet();
+					} catch (Exception ex) {
+						filesFailed_.incrementAndGet();
+						System.err.println(job[0] + ": " + ex.getMessage());
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException ex) {
+			// Tasks catch their exceptions
+		} finally {
+			pool.shutdownNow();
+		}
+		return filesFailed_.get();
+	}
+
+	/**
+	 * Adds {source, target} pairs of the TIFF files below input, other files
+	 * are copied right away.
+	 */
+	private void collect(File input, File target, List<File[]> jobs) {
+		if (input.isDirectory()) {
+			File[] files = input.listFiles();
+			if (files == null) {
+				filesFailed_.incrementAndGet();
+				System.err.println(input + ": cannot list directory");
+				return;
+			}
+			target.mkdirs();
+			for (File file : files) {
+				collect(file, new File(target, file.getName()), jobs);
+			}
+		} else if (isTiff(input)) {
+			jobs.add(new File[] { input, target });
+		} else if (!target.exists()) {
+			try {
+				copy(input, target);
+			} catch (IOException ex) {
+				filesFailed_.incrementAndGet();
+				System.err.println(input + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	private static boolean isTiff(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".tif") || name.endsWith(".tiff");
+	}
+
+	/**
+	 * Corrects one TIFF file into target, resuming an interrupted run. Does
+	 * nothing when target exists.
+	 *
+	 * @throws IOException
+	 *             when the file cannot be read or does not fit the background
+	 */
+	public void process(File source, File target) throws IOException, MMException {
+		if (target.getCanonicalFile().equals(source.getCanonicalFile())) {
+			throw new IOException("Output would overwrite the input");
+		}
+		if (target.exists()) {
+			return;
+		}
+		File part = new File(target.getPath() + PART_SUFFIX);
+		File progress = new File(target.getPath() + PROGRESS_SUFFIX);
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		try {
+			FileChannel input = in.getChannel();
+			TiffPlanes planes = TiffPlanes.read(input);
+			int width = planes.getWidth();
+			int height = planes.getHeight();
+			int ijType = planes.getBytesPerPixel() == 1 ? ImagePlus.GRAY8 : ImagePlus.GRAY16;
+			int[] plane = width == state_.getWidth() && height == state_.getHeight() ? state_.getPlane(ijType) : null;
+			if (plane == null) {
+				throw new IOException("Planes of " + width + "x" + height + " do not fit the background");
+			}
+			int done = readProgress(progress);
+			if (done < 0 || !part.exists()) {
+				copy(source, part);
+				done = 0;
+				writeProgress(progress, done);
+			}
+			int[] gain = state_.getGain();
+			int[] hotPixels = state_.getHotPixels();
+			int offset = state_.offsetValue(ijType);
+			int length = width * height;
+			ByteBuffer buffer = ByteBuffer.allocate(length * planes.getBytesPerPixel()).order(planes.getByteOrder());
+			Object pixels = ijType == ImagePlus.GRAY8 ? new byte[length] : new short[length];
+			RandomAccessFile out = new RandomAccessFile(part, "rw");
+			try {
+				FileChannel output = out.getChannel();
+				for (int i = done; i < planes.getPlaneCount(); i++) {
+					TiffPlanes.readFully(input, buffer, planes.getOffset(i));
+					if (ijType == ImagePlus.GRAY8) {
+						buffer.get((byte[]) pixels);
+					} else {
+						buffer.asShortBuffer().get((short[]) pixels);
+					}
+					engine_.subtract(pixels, plane, gain, offset, pixels, width, height);
+					if (hotPixels != null) {
+						ImageUtils2.replaceHotPixels(pixels, width, height, hotPixels);
+					}
+					buffer.clear();
+					if (ijType == ImagePlus.GRAY8) {
+						buffer.put((byte[]) pixels);
+					} else {
+						buffer.asShortBuffer().put((short[]) pixels);
+					}
+					TiffPlanes.writeFully(output, buffer, planes.getOffset(i));
+					planesDone_.incrementAndGet();
+					if ((i + 1) % CHECKPOINT == 0) {
+						output.force(false);
+						writeProgress(progress, i + 1);
+					}
+				}
+				output.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!part.renameTo(target)) {
+			throw new IOException("Cannot rename " + part + " to " + target.getName());
+		}
+		progress.delete();
+	}
+
+	/**
+	 * Returns the planes done of an interrupted run, -1 when there is none
+	 */
+	private static int readProgress(File progress) {
+		if (!progress.isFile()) {
+			return -1;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(progress));
+			try {
+				String line = reader.readLine();
+				return line != null ? Integer.parseInt(line.trim()) : -1;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			return -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static void writeProgress(File progress, int done) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(progress));
+		try {
+			writer.println(done);
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("Failed to write " + progress);
+		}
+	}
+
+	private static void copy(File source, File target) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		try {
+			RandomAccessFile out = new RandomAccessFile(target, "rw");
+			try {
+				out.setLength(0);
+				FileChannel from = in.getChannel();
+				FileChannel to = out.getChannel();
+				long size = from.size();
+				for (long position = 0; position < size;) {
+					position += from.transferTo(position, size - position, to);
+				}
+				to.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getFilesDone() {
+		return filesDone_.get();
+	}
+
+	public int getFilesFailed() {
+		return filesFailed_.get();
+	}
+
+	public long getPlanesDone() {
+		return planesDone_.get();
+	}
+}
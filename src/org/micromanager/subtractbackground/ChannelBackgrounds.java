@@ -0,0 +1,168 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelBackgrounds.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONObject;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Backgrounds of the channels of a multi-channel acquisition, optionally per
+ * camera. Frames are matched by their Channel and Camera tags with two hash
+ * lookups on the tag strings, nothing is allocated per frame. States are
+ * built with the current offset and flat-field image when a background is put,
+ * and rebuilt on a separate thread when those change, never on lookup.
+ */
+public class ChannelBackgrounds {
+	/** Camera name of backgrounds used with any camera */
+	public static final String ANY_CAMERA = "";
+	private static final String TAG_CHANNEL = "Channel";
+	private static final String TAG_CAMERA = "Camera";
+
+	// Camera -> channel -> state
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, CorrectionState>> cameras_ = new ConcurrentHashMap<String, ConcurrentHashMap<String, CorrectionState>>();
+	private double offsetPercent_ = 0;
+	private ImageProcessor flat_;
+	private final ExecutorService builder_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SubtractBackground-channels");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Sets the background of a channel, null removes it.
+	 *
+	 * @param camera
+	 *            - camera name, ANY_CAMERA for all cameras
+	 * @param source
+	 *            - where the background came from, e.g. its file name
+	 */
+	public synchronized void put(String camera, String channel, ImageProcessor background, String source) {
+		ConcurrentHashMap<String, CorrectionState> channels = cameras_.get(camera);
+		if (background == null) {
+			if (channels != null) {
+				channels.remove(channel);
+			}
+			return;
+		}
+		if (channels == null) {
+			channels = new ConcurrentHashMap<String, CorrectionState>();
+			cameras_.put(camera, channels);
+		}
+		channels.put(channel, CorrectionState.create(background, flat_, offsetPercent_, source));
+	}
+
+	/**
+	 * Sets the offset and flat-field image of all channel backgrounds. Their
+	 * states are rebuilt on a separate thread, until then lookup returns them
+	 * with the previous offset and flat.
+	 */
+	public synchronized void setCorrection(double offsetPercent, ImageProcessor flat) {
+		if (offsetPercent == offsetPercent_ && flat == flat_) {
+			return;
+		}
+		offsetPercent_ = offsetPercent;
+		flat_ = flat;
+		builder_.execute(new Runnable() {
+			@Override
+			public void run() {
+				rebuild();
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the states that do not have the current offset and flat
+	 */
+	private void rebuild() {
+		for (ConcurrentHashMap<String, CorrectionState> channels : cameras_.values()) {
+			for (Map.Entry<String, CorrectionState> entry : channels.entrySet()) {
+				double offsetPercent;
+				ImageProcessor flat;
+				synchronized (this) {
+					offsetPercent = offsetPercent_;
+					flat = flat_;
+				}
+				CorrectionState old = entry.getValue();
+				if (old.getOffsetPercent() == offsetPercent && old.getFlat() == flat) {
+					continue;
+				}
+				// Planes are built without holding the lock, put() replaces
+				// the entry with a current state meanwhile
+				channels.replace(entry.getKey(), old, old.withCorrection(offsetPercent, flat));
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		cameras_.clear();
+	}
+
+	/**
+	 * Stops the thread that rebuilds states
+	 */
+	public void dispose() {
+		builder_.shutdownNow();
+	}
+
+	/**
+	 * Number of channel backgrounds
+	 */
+	public int size() {
+		int size = 0;
+		for (ConcurrentHashMap<String, CorrectionState> channels : cameras_.values()) {
+			size += channels.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the background of the frame's channel and camera, or of its
+	 * channel on any camera. Null when the channel has no background.
+	 */
+	public CorrectionState lookup(JSONObject tags) {
+		String channel = tags.optString(TAG_CHANNEL, null);
+		if (channel == null) {
+			return null;
+		}
+		CorrectionState state = null;
+		String camera = tags.optString(TAG_CAMERA, null);
+		if (camera != null) {
+			ConcurrentHashMap<String, CorrectionState> channels = cameras_.get(camera);
+			state = channels != null ? channels.get(channel) : null;
+		}
+		if (state == null) {
+			ConcurrentHashMap<String, CorrectionState> channels = cameras_.get(ANY_CAMERA);
+			state = channels != null ? channels.get(channel) : null;
+		}
+		return state;
+	}
+}
@@ -0,0 +1,422 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CorrectionState.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Immutable snapshot of everything a frame is corrected with. A processor
+ * publishes a new instance whenever the background or the offset changes, so
+ * a frame always sees a consistent background, offset and plane.
+ * <p>
+ * With a flat-field image the plane holds the dark values only and frames are
+ * corrected by (frame - plane) * gain + offset, see ImageUtils2.subtractAndScale.
+ */
+public final class CorrectionState {
+	private static final AtomicLong generations_ = new AtomicLong();
+
+	/** State without background */
+	public static final CorrectionState EMPTY = new CorrectionState(null, null, null, null, null, 0, 0);
+
+	private final ImageProcessor background_;
+	private final ImageProcessor flat_;
+	// Where the flat-field image came from, null if unknown
+	private final String flatSource_;
+	// Sorted offsets of hot pixels of the background, null for none
+	private final int[] hotPixels_;
+	private final String source_;
+	private final double offsetPercent_;
+	private final long generation_;
+	private final int width_;
+	private final int height_;
+	private final int pixelType_;
+	private final int[] plane_;
+	// Gain map of the flat-field, null without flat-field correction
+	private final int[] gain_;
+	// Lazily built planes for 16 bit frames on an 8 bit background, for float
+	// frames and for RGB frames
+	private volatile int[] gray16Plane_;
+	private volatile float[] floatPlane_;
+	private volatile int[] rgbPlane_;
+	// Planes of camera ROIs, the last one used is checked first
+	private final ConcurrentHashMap<String, RoiView> views_ = new ConcurrentHashMap<String, RoiView>();
+	private volatile RoiView lastView_;
+
+	/**
+	 * Plane of one ROI and binning
+	 */
+	private static final class RoiView {
+		final int ijType_, x_, y_, w_, h_, bin_;
+		final int[] plane_;
+		final int[] gain_;
+
+		RoiView(int ijType, int x, int y, int w, int h, int bin, int[] plane, int[] gain) {
+			ijType_ = ijType;
+			x_ = x;
+			y_ = y;
+			w_ = w;
+			h_ = h;
+			bin_ = bin;
+			plane_ = plane;
+			gain_ = gain;
+		}
+
+		boolean matches(int ijType, int x, int y, int w, int h, int bin) {
+			return ijType_ == ijType && x_ == x && y_ == y && w_ == w && h_ == h && bin_ == bin;
+		}
+	}
+
+	private CorrectionState(ImageProcessor background, ImageProcessor flat, String flatSource, int[] hotPixels,
+			String source, double offsetPercent, long generation) {
+		background_ = background;
+		flat_ = flat;
+		flatSource_ = flatSource;
+		hotPixels_ = hotPixels;
+		source_ = source;
+		offsetPercent_ = offsetPercent;
+		generation_ = generation;
+		if (background != null) {
+			width_ = background.getWidth();
+			height_ = background.getHeight();
+			pixelType_ = pixelTypeOf(background.getPixels());
+			if (pixelType_ != ImagePlus.GRAY8 && pixelType_ != ImagePlus.GRAY16) {
+				// Float and RGB backgrounds only have their own planes
+				plane_ = null;
+				gain_ = null;
+			} else if (flat != null && flat.getWidth() == width_ && flat.getHeight() == height_) {
+				// The offset is added by the kernel after scaling
+				plane_ = ImageUtils2.makeCorrectionPlane(background, 0);
+				gain_ = ImageUtils2.makeGainMap(plane_, flat);
+			} else {
+				plane_ = ImageUtils2.makeCorrectionPlane(background, offsetValue(pixelType_));
+				gain_ = null;
+			}
+		} else {
+			width_ = 0;
+			height_ = 0;
+			pixelType_ = ImagePlus.GRAY8;
+			plane_ = null;
+			gain_ = null;
+		}
+	}
+
+	private static int pixelTypeOf(Object pixels) {
+		if (pixels instanceof short[]) {
+			return ImagePlus.GRAY16;
+		} else if (pixels instanceof float[]) {
+			return ImagePlus.GRAY32;
+		} else if (pixels instanceof int[]) {
+			return ImagePlus.COLOR_RGB;
+		}
+		return ImagePlus.GRAY8;
+	}
+
+	/**
+	 * Creates a state with a new generation number.
+	 *
+	 * @param source
+	 *            - where the background came from, e.g. its file name
+	 */
+	public static CorrectionState create(ImageProcessor background, double offsetPercent, String source) {
+		return new CorrectionState(background, null, null, null, source, offsetPercent,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Creates a state with a flat-field image and a new generation number, see
+	 * withFlat.
+	 */
+	public static CorrectionState create(ImageProcessor background, ImageProcessor flat, double offsetPercent,
+			String source) {
+		return new CorrectionState(background, flat, null, null, source, offsetPercent,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Creates a state with a flat-field image, hot pixels and a new generation
+	 * number.
+	 *
+	 * @param flatSource
+	 *            - where the flat came from, e.g. its file name
+	 */
+	public static CorrectionState create(ImageProcessor background, String source, int[] hotPixels,
+			ImageProcessor flat, String flatSource, double offsetPercent) {
+		return new CorrectionState(background, flat, flatSource, hotPixels, source, offsetPercent,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Returns a copy of this state with another background, its hot pixels
+	 * (null for none) and a new generation number.
+	 */
+	public CorrectionState withBackground(ImageProcessor background, String source, int[] hotPixels) {
+		return new CorrectionState(background, flat_, flatSource_, hotPixels, source, offsetPercent_,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Returns a copy of this state with another offset and a new generation
+	 * number.
+	 */
+	public CorrectionState withOffset(double offsetPercent) {
+		return new CorrectionState(background_, flat_, flatSource_, hotPixels_, source_, offsetPercent,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Returns a copy of this state with another flat-field image, null to
+	 * subtract the background only, and a new generation number. The flat is
+	 * only applied while it has the size of the background.
+	 *
+	 * @param flatSource
+	 *            - where the flat came from, e.g. its file name
+	 */
+	public CorrectionState withFlat(ImageProcessor flat, String flatSource) {
+		return new CorrectionState(background_, flat, flatSource, hotPixels_, source_, offsetPercent_,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Returns a copy of this state with another offset and flat-field image,
+	 * building the plane once, and a new generation number.
+	 */
+	public CorrectionState withCorrection(double offsetPercent, ImageProcessor flat) {
+		return new CorrectionState(background_, flat, flat == flat_ ? flatSource_ : null, hotPixels_, source_,
+				offsetPercent, generations_.incrementAndGet());
+	}
+
+	/**
+	 * Returns a copy of this state with the hot pixels of the background, made
+	 * by HotPixelMap.find, and a new generation number.
+	 */
+	public CorrectionState withHotPixels(int[] hotPixels) {
+		return new CorrectionState(background_, flat_, flatSource_, hotPixels, source_, offsetPercent_,
+				generations_.incrementAndGet());
+	}
+
+	/**
+	 * Returns the sorted offsets of hot pixels, null when there are none
+	 */
+	public int[] getHotPixels() {
+		return hotPixels_;
+	}
+
+	public ImageProcessor getBackground() {
+		return background_;
+	}
+
+	public ImageProcessor getFlat() {
+		return flat_;
+	}
+
+	/**
+	 * Returns where the flat-field image came from, or null if unknown
+	 */
+	public String getFlatSource() {
+		return flatSource_;
+	}
+
+	/**
+	 * True when frames are flat-field corrected, i.e. getGain() is not null
+	 */
+	public boolean isFlatFielded() {
+		return gain_ != null;
+	}
+
+	/**
+	 * Returns where the background came from, or null if unknown
+	 */
+	public String getSource() {
+		return source_;
+	}
+
+	/**
+	 * Approximate memory held by the background and its planes
+	 */
+	public long getByteCount() {
+		long pixels = (long) width_ * height_;
+		int bytesPerPixel = pixelType_ == ImagePlus.GRAY8 ? 1 : pixelType_ == ImagePlus.GRAY16 ? 2 : 4;
+		long bytes = pixels * bytesPerPixel + (plane_ != null ? pixels * 4 : 0);
+		if (gain_ != null) {
+			bytes += pixels * (flat_.getBitDepth() / 8 + 4);
+		}
+		return bytes;
+	}
+
+	public double getOffsetPercent() {
+		return offsetPercent_;
+	}
+
+	/**
+	 * Number identifying this state, unique among all processors.
+	 */
+	public long getGeneration() {
+		return generation_;
+	}
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	/**
+	 * ImagePlus.GRAY8, GRAY16, GRAY32 or COLOR_RGB
+	 */
+	public int getPixelType() {
+		return pixelType_;
+	}
+
+	/**
+	 * Returns background - offset for frames of ijType, or null when there is
+	 * no background or it cannot be subtracted from such frames. When flat-field
+	 * corrected, the plane is the background alone. For ImagePlus.COLOR_RGB
+	 * frames, the packed background without offset is returned.
+	 */
+	public int[] getPlane(int ijType) {
+		if (ijType == ImagePlus.COLOR_RGB) {
+			return getRgbPlane();
+		}
+		if (plane_ == null) {
+			return null;
+		}
+		if (ijType == pixelType_ || (gain_ != null && ijType == ImagePlus.GRAY16)) {
+			return plane_;
+		}
+		if (ijType != ImagePlus.GRAY16) {
+			return null;
+		}
+		int[] plane = gray16Plane_;
+		if (plane == null) {
+			plane = ImageUtils2.makeCorrectionPlane(background_, offsetValue(ImagePlus.GRAY16));
+			gray16Plane_ = plane;
+		}
+		return plane;
+	}
+
+	private int[] getRgbPlane() {
+		if (background_ == null) {
+			return null;
+		}
+		int[] plane = rgbPlane_;
+		if (plane == null) {
+			plane = ImageUtils2.makeRgbPlane(background_);
+			rgbPlane_ = plane;
+		}
+		return plane;
+	}
+
+	/**
+	 * Returns background - offset for 32 bit float frames, or null when there
+	 * is no gray background.
+	 */
+	public float[] getFloatPlane() {
+		if (background_ == null || pixelType_ == ImagePlus.COLOR_RGB) {
+			return null;
+		}
+		float[] plane = floatPlane_;
+		if (plane == null) {
+			plane = ImageUtils2.makeFloatPlane(background_, offsetValue(ImagePlus.GRAY32));
+			floatPlane_ = plane;
+		}
+		return plane;
+	}
+
+	/**
+	 * Returns the plane for frames of a camera ROI, taken from this full-frame
+	 * background and binned on demand. Planes are cached per ROI.
+	 *
+	 * @param x,y,w,h
+	 *            - ROI in binned pixels
+	 * @param binning
+	 *            - binning of the frame, the background is unbinned
+	 * @return plane, null when the ROI does not fit the background
+	 */
+	public int[] getPlane(int ijType, int x, int y, int w, int h, int binning) {
+		RoiView view = getView(ijType, x, y, w, h, binning);
+		return view == null ? null : view.plane_;
+	}
+
+	/**
+	 * Returns the flat-field gain map in units of ImageUtils2.GAIN_ONE, null
+	 * without flat-field correction.
+	 */
+	public int[] getGain() {
+		return gain_;
+	}
+
+	/**
+	 * Returns the gain map for frames of a camera ROI, see getPlane.
+	 */
+	public int[] getGain(int ijType, int x, int y, int w, int h, int binning) {
+		if (gain_ == null) {
+			return null;
+		}
+		RoiView view = getView(ijType, x, y, w, h, binning);
+		return view == null ? null : view.gain_;
+	}
+
+	private RoiView getView(int ijType, int x, int y, int w, int h, int binning) {
+		if (ijType != ImagePlus.GRAY8 && ijType != ImagePlus.GRAY16) {
+			return null;
+		}
+		RoiView view = lastView_;
+		if (view != null && view.matches(ijType, x, y, w, h, binning)) {
+			return view;
+		}
+		String key = ijType + ":" + x + "-" + y + "-" + w + "-" + h + "/" + binning;
+		view = views_.get(key);
+		if (view == null) {
+			int[] full = getPlane(ijType);
+			if (full == null) {
+				return null;
+			}
+			int[] plane = ImageUtils2.cropCorrectionPlane(full, width_, height_, x, y, w, h, binning);
+			if (plane == null) {
+				return null;
+			}
+			int[] gain = null;
+			if (gain_ != null) {
+				gain = ImageUtils2.cropCorrectionPlane(gain_, width_, height_, x, y, w, h, binning);
+			}
+			view = new RoiView(ijType, x, y, w, h, binning, plane, gain);
+			views_.put(key, view);
+		}
+		lastView_ = view;
+		return view;
+	}
+
+	/**
+	 * Actual offset value = signal * (max value) / 100, float frames use the
+	 * 16 bit range and RGB frames that of a channel.
+	 */
+	public int offsetValue(int ijType) {
+		return (ijType == ImagePlus.GRAY16 || ijType == ImagePlus.GRAY32) ? (int) (offsetPercent_ * 655.35)
+				: (int) (offsetPercent_ * 2.55);
+	}
+}
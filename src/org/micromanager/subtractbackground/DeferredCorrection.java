@@ -0,0 +1,363 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DeferredCorrection.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+
+import ij.process.ImageProcessor;
+import mmcorej.TaggedImage;
+
+/**
+ * Corrects frames that SubtractBackgroundProcessor passed on uncorrected in
+ * deferred mode, when they are displayed or exported. Such frames carry
+ * TAG_DEFERRED, the generation of the CorrectionState they are to be corrected
+ * with and the files it was made of: the background path in TAG_BACKGROUND,
+ * the flat path in TAG_FLAT and the offset in TAG_OFFSET_PERCENT. Generations
+ * are only unique within a session, so frames also carry TAG_SESSION.
+ * <p>
+ * While the acquisition runs every processor keeps its recent states in its
+ * own Registry; frames of this session are corrected with them. Frames of
+ * another session, or whose generation is no longer registered, are corrected
+ * with the state read again from their files. Frames corrected with a rolling
+ * or an unsaved background cannot be corrected once their generation is gone.
+ * <p>
+ * Corrected frames are cached per session, generation and frame position, up
+ * to a number of bytes, so a frame looked at again is not corrected again.
+ */
+public class DeferredCorrection {
+	/** Tag set on frames whose correction is deferred */
+	public static final String TAG_DEFERRED = "SubtractBackground-Deferred";
+	/** Tag with the session the generation of a deferred frame belongs to */
+	public static final String TAG_SESSION = "SubtractBackground-Session";
+	/** Tag with the offset of a deferred frame in percent of the full range */
+	public static final String TAG_OFFSET_PERCENT = "SubtractBackground-OffsetPercent";
+	/** Tag with the path of the flat-field file of a deferred frame */
+	public static final String TAG_FLAT = "SubtractBackground-Flat";
+	/** Tag set when the hot pixels saved with the background were replaced */
+	public static final String TAG_HOT_PIXELS = "SubtractBackground-HotPixels";
+	/** Number of generations a processor keeps registered */
+	public static final int MAX_GENERATIONS = 16;
+	/** Number of states read from files kept by each instance */
+	private static final int MAX_RELOADED = 2;
+	private static final String[] INDEX_TAGS = { "ChannelIndex", "SliceIndex", "FrameIndex", "PositionIndex" };
+	/** Identifies this JVM, CorrectionState generations restart in every one */
+	static final String SESSION = UUID.randomUUID().toString();
+
+	private static final CopyOnWriteArrayList<Registry> registries_ = new CopyOnWriteArrayList<Registry>();
+
+	/**
+	 * States of one processor's deferred frames, the most recently used
+	 * MAX_GENERATIONS of them. A state is registered when it differs from the
+	 * previous frame's, so frames of the same state take no lock.
+	 */
+	static final class Registry {
+		private final LinkedHashMap<Long, CorrectionState> states_ = new LinkedHashMap<Long, CorrectionState>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, CorrectionState> eldest) {
+				return size() > MAX_GENERATIONS;
+			}
+		};
+		private volatile CorrectionState last_;
+
+		private Registry() {
+		}
+
+		/**
+		 * Makes a state known to readers, called for every deferred frame
+		 */
+		void register(CorrectionState state) {
+			if (state == last_) {
+				return;
+			}
+			synchronized (this) {
+				states_.put(state.getGeneration(), state);
+				last_ = state;
+			}
+		}
+
+		synchronized CorrectionState get(long generation) {
+			return states_.get(generation);
+		}
+
+		/**
+		 * Forgets all states, called when the acquisition ends or deferred
+		 * mode is turned off. Frames tagged before are then corrected from
+		 * their files.
+		 */
+		synchronized void release() {
+			states_.clear();
+			last_ = null;
+		}
+
+		/**
+		 * Releases the states and stops publishing them to readers
+		 */
+		void dispose() {
+			release();
+			registries_.remove(this);
+		}
+	}
+
+	private final SubtractionEngine engine_;
+	private final LinkedHashMap<String, TaggedImage> cache_ = new LinkedHashMap<String, TaggedImage>(16, 0.75f, true);
+	private final long budget_;
+	private long bytes_ = 0;
+	private final LinkedHashMap<String, CorrectionState> reloaded_ = new LinkedHashMap<String, CorrectionState>(4,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CorrectionState> eldest) {
+			return size() > MAX_RELOADED;
+		}
+	};
+
+	/**
+	 * @param budget
+	 *            - bytes of corrected pixels kept in the cache
+	 */
+	public DeferredCorrection(SubtractionEngine engine, long budget) {
+		engine_ = engine;
+		budget_ = budget;
+	}
+
+	/**
+	 * Returns a new registry whose states are used by all readers, see
+	 * Registry.dispose
+	 */
+	static Registry newRegistry() {
+		Registry registry = new Registry();
+		registries_.add(registry);
+		return registry;
+	}
+
+	/**
+	 * Tags a deferred frame with the files state was made of, flatSource
+	 * being the path of its flat or null when it has none on file.
+	 */
+	static void tag(JSONObject tags, CorrectionState state, String flatSource) throws JSONException {
+		tags.put(TAG_DEFERRED, true);
+		tags.put(TAG_SESSION, SESSION);
+		tags.put(TAG_OFFSET_PERCENT, state.getOffsetPercent());
+		if (flatSource != null) {
+			tags.put(TAG_FLAT, flatSource);
+		}
+		if (state.getHotPixels() != null) {
+			tags.put(TAG_HOT_PIXELS, true);
+		}
+	}
+
+	/**
+	 * Returns the registered state of a generation of this session, null if
+	 * unknown
+	 */
+	public static CorrectionState lookup(long generation) {
+		for (Registry registry : registries_) {
+			CorrectionState state = registry.get(generation);
+			if (state != null) {
+				return state;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * True when the frame's correction was deferred
+	 */
+	public static boolean isDeferred(TaggedImage image) {
+		return image.tags != null && image.tags.optBoolean(TAG_DEFERRED, false);
+	}
+
+	/**
+	 * Returns the corrected frame, image itself when it is not deferred. The
+	 * pixels of image are not modified.
+	 *
+	 * @throws MMException
+	 *             when the generation is unknown and its background cannot be
+	 *             read, or the frame does not fit its background
+	 */
+	public TaggedImage apply(TaggedImage image) throws JSONException, MMException {
+		if (!isDeferred(image)) {
+			return image;
+		}
+		long generation = image.tags.getLong(SubtractBackgroundProcessor.TAG_GENERATION);
+		String session = image.tags.optString(TAG_SESSION, "");
+		String key = cacheKey(image.tags, session, generation);
+		if (key != null) {
+			synchronized (this) {
+				TaggedImage cached = cache_.get(key);
+				if (cached != null) {
+					return cached;
+				}
+			}
+		}
+		// Generations of other sessions name other states
+		CorrectionState state = session.equals(SESSION) ? lookup(generation) : null;
+		if (state == null) {
+			state = reload(image.tags, generation);
+		}
+		TaggedImage corrected = correct(image, state);
+		if (key != null) {
+			synchronized (this) {
+				if (cache_.put(key, corrected) == null) {
+					bytes_ += byteCount(corrected.pix);
+				}
+				evict();
+			}
+		}
+		return corrected;
+	}
+
+	/**
+	 * Reads the state of a frame whose generation is no longer registered
+	 * from the files it is tagged with.
+	 */
+	private CorrectionState reload(JSONObject tags, long generation) throws MMException {
+		String source = tags.optString(SubtractBackgroundProcessor.TAG_BACKGROUND, "");
+		File file = new File(source);
+		if (source.isEmpty() || !file.isAbsolute() || !file.isFile()) {
+			throw new MMException("Background of generation " + generation + " is no longer available");
+		}
+		String flatSource = tags.optString(TAG_FLAT, null);
+		double offsetPercent = tags.optDouble(TAG_OFFSET_PERCENT, 0);
+		boolean withHotPixels = tags.optBoolean(TAG_HOT_PIXELS, false);
+		String key = source + "|" + flatSource + "|" + offsetPercent + "|" + withHotPixels;
+		synchronized (this) {
+			CorrectionState state = reloaded_.get(key);
+			if (state != null) {
+				return state;
+			}
+		}
+		CorrectionState state;
+		try {
+			ImageProcessor background = RawBackgroundFile.open(file);
+			if (background == null) {
+				throw new MMException("Failed to open background " + source);
+			}
+			ImageProcessor flat = null;
+			if (flatSource != null) {
+				flat = RawBackgroundFile.open(new File(flatSource));
+				if (flat == null) {
+					throw new MMException("Failed to open flat-field image " + flatSource);
+				}
+			}
+			int[] hotPixels = null;
+			if (withHotPixels) {
+				hotPixels = HotPixelMap.read(HotPixelMap.fileFor(file), background.getWidth(),
+						background.getHeight());
+				if (hotPixels != null && hotPixels.length == 0) {
+					hotPixels = null;
+				}
+			}
+			state = CorrectionState.create(background, source, hotPixels, flat, flatSource, offsetPercent);
+		} catch (IOException ex) {
+			throw new MMException("Failed to read background " + source + ": " + ex.getMessage());
+		}
+		synchronized (this) {
+			reloaded_.put(key, state);
+		}
+		return state;
+	}
+
+	private TaggedImage correct(TaggedImage image, CorrectionState state) throws JSONException, MMException {
+		JSONObject tags = image.tags;
+		int ijType = SubtractBackgroundProcessor.ijTypeOf(MDUtils.getPixelType(tags));
+		int width = MDUtils.getWidth(tags);
+		int height = MDUtils.getHeight(tags);
+		int[] plane;
+		int[] gain;
+		int[] hotPixels = null;
+		if (width == state.getWidth() && height == state.getHeight()) {
+			plane = state.getPlane(ijType);
+			gain = state.getGain();
+			hotPixels = state.getHotPixels();
+		} else {
+			int[] roi = SubtractBackgroundProcessor
+					.parseRoi(tags.optString(SubtractBackgroundProcessor.TAG_ROI, ""));
+			if (roi == null) {
+				throw new MMException("Image does not fit in the background image.");
+			}
+			int binning = SubtractBackgroundProcessor
+					.parseBinning(tags.optString(SubtractBackgroundProcessor.TAG_BINNING, "1"));
+			plane = state.getPlane(ijType, roi[0], roi[1], width, height, binning);
+			gain = state.getGain(ijType, roi[0], roi[1], width, height, binning);
+		}
+		if (plane == null) {
+			throw new MMException("Image does not fit in the background image.");
+		}
+		Object result = ImageUtils2.newPixelArray(image.pix);
+		engine_.subtract(image.pix, plane, gain, state.offsetValue(ijType), result, width, height);
+		if (hotPixels != null) {
+			ImageUtils2.replaceHotPixels(result, width, height, hotPixels);
+		}
+		JSONObject newTags = new JSONObject(tags.toString());
+		newTags.remove(TAG_DEFERRED);
+		return new TaggedImage(result, newTags);
+	}
+
+	/**
+	 * Identifies a frame by session, generation and position, null when the
+	 * frame has no position tags
+	 */
+	private static String cacheKey(JSONObject tags, String session, long generation) {
+		StringBuilder key = new StringBuilder(session).append('/').append(generation);
+		boolean found = false;
+		for (String tag : INDEX_TAGS) {
+			int index = tags.optInt(tag, -1);
+			found |= index >= 0;
+			key.append('/').append(index);
+		}
+		return found ? key.toString() : null;
+	}
+
+	private static long byteCount(Object pixels) {
+		return pixels instanceof byte[] ? ((byte[]) pixels).length : 2L * ((short[]) pixels).length;
+	}
+
+	private void evict() {
+		Iterator<TaggedImage> it = cache_.values().iterator();
+		while (bytes_ > budget_ && it.hasNext()) {
+			bytes_ -= byteCount(it.next().pix);
+			it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		cache_.clear();
+		reloaded_.clear();
+		bytes_ = 0;
+	}
+}
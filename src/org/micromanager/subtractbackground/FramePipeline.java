@@ -0,0 +1,208 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FramePipeline.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.utils.ReportingUtils;
+
+import mmcorej.TaggedImage;
+
+/**
+ * Processes a bounded window of frames concurrently and emits them in the
+ * order they were submitted. The POISON sentinel is passed through in order,
+ * so it is only emitted after every frame submitted before it.
+ */
+public class FramePipeline {
+	/**
+	 * Per-frame work. Must not throw, failures return the input frame.
+	 */
+	public interface Stage {
+		TaggedImage process(TaggedImage image);
+	}
+
+	/**
+	 * Receives frames in submission order on the emitter thread.
+	 */
+	public interface Output {
+		void produce(TaggedImage image);
+	}
+
+	private final Stage stage_;
+	private final Output output_;
+	private final int depth_;
+	private final ExecutorService workers_;
+	private final BlockingQueue<Future<TaggedImage>> pending_;
+	/**
+	 * One permit per frame in the window, taken before the frame reaches a
+	 * worker and returned when it was emitted
+	 */
+	private final Semaphore slots_;
+	private final Thread emitter_;
+	private final Object drainLock_ = new Object();
+	private int inFlight_ = 0;
+
+	/**
+	 * @param depth
+	 *            - number of frames processed concurrently
+	 */
+	public FramePipeline(int depth, Stage stage, Output output) {
+		depth_ = Math.max(1, depth);
+		stage_ = stage;
+		output_ = output;
+		pending_ = new LinkedBlockingQueue<Future<TaggedImage>>();
+		slots_ = new Semaphore(depth_);
+		final AtomicInteger count = new AtomicInteger();
+		workers_ = Executors.newFixedThreadPool(depth_, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SubtractBackground-frame-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		emitter_ = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				emit();
+			}
+		}, "SubtractBackground-emitter");
+		emitter_.setDaemon(true);
+		emitter_.start();
+	}
+
+	public int getDepth() {
+		return depth_;
+	}
+
+	/**
+	 * Starts processing image, blocks while the window is full.
+	 */
+	public void submit(final TaggedImage image) throws InterruptedException {
+		if (image == TaggedImageQueue.POISON) {
+			forward(image);
+			return;
+		}
+		slots_.acquire();
+		Future<TaggedImage> future;
+		try {
+			future = workers_.submit(new Callable<TaggedImage>() {
+				@Override
+				public TaggedImage call() {
+					return stage_.process(image);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Shut down, the frame goes on unprocessed and gives its slot back
+			slots_.release();
+			forward(image);
+			return;
+		}
+		enqueue(future);
+	}
+
+	/**
+	 * Emits image unprocessed after the frames submitted before it. It takes
+	 * no slot of the window and never blocks, so a frame forwarded while the
+	 * window is full does not hold up the caller; it is still only emitted
+	 * after the frames ahead of it.
+	 */
+	public void forward(final TaggedImage image) {
+		Forwarded done = new Forwarded(image);
+		done.run();
+		enqueue(done);
+	}
+
+	/**
+	 * Completed task of a forwarded frame, it holds no slot
+	 */
+	private static final class Forwarded extends FutureTask<TaggedImage> {
+		Forwarded(final TaggedImage image) {
+			super(new Callable<TaggedImage>() {
+				@Override
+				public TaggedImage call() {
+					return image;
+				}
+			});
+		}
+	}
+
+	private void enqueue(Future<TaggedImage> future) {
+		synchronized (drainLock_) {
+			inFlight_++;
+		}
+		pending_.add(future);
+	}
+
+	/**
+	 * Blocks until every submitted frame was emitted.
+	 */
+	public void drain() throws InterruptedException {
+		synchronized (drainLock_) {
+			while (inFlight_ > 0) {
+				drainLock_.wait();
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads, frames still in flight are dropped.
+	 */
+	public void shutdown() {
+		emitter_.interrupt();
+		workers_.shutdownNow();
+	}
+
+	private void emit() {
+		try {
+			while (true) {
+				Future<TaggedImage> future = pending_.take();
+				try {
+					output_.produce(future.get());
+				} catch (ExecutionException ex) {
+					ReportingUtils.logError(ex.getCause());
+				}
+				if (!(future instanceof Forwarded)) {
+					slots_.release();
+				}
+				synchronized (drainLock_) {
+					inFlight_--;
+					drainLock_.notifyAll();
+				}
+			}
+		} catch (InterruptedException ex) {
+			// shutdown
+		}
+	}
+}
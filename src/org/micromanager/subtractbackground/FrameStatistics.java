@@ -0,0 +1,101 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FrameStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Mean, minimum and maximum of a corrected frame and the number of pixels
+ * clipped at 0 or at the maximum value, collected by the subtraction kernels
+ * while they write the frame. Bands add their partial results once each.
+ */
+public final class FrameStatistics {
+	public static final String TAG_MEAN = "SubtractBackground-Mean";
+	public static final String TAG_MIN = "SubtractBackground-Min";
+	public static final String TAG_MAX = "SubtractBackground-Max";
+	public static final String TAG_CLIPPED_LOW = "SubtractBackground-ClippedLow";
+	public static final String TAG_CLIPPED_HIGH = "SubtractBackground-ClippedHigh";
+
+	private long count_ = 0;
+	private long sum_ = 0;
+	private int min_ = Integer.MAX_VALUE;
+	private int max_ = Integer.MIN_VALUE;
+	private long clippedLow_ = 0;
+	private long clippedHigh_ = 0;
+
+	/**
+	 * Adds the results of count pixels
+	 */
+	public synchronized void add(int count, long sum, int min, int max, long clippedLow, long clippedHigh) {
+		if (count == 0) {
+			return;
+		}
+		count_ += count;
+		sum_ += sum;
+		min_ = Math.min(min_, min);
+		max_ = Math.max(max_, max);
+		clippedLow_ += clippedLow;
+		clippedHigh_ += clippedHigh;
+	}
+
+	public synchronized long getCount() {
+		return count_;
+	}
+
+	public synchronized double getMean() {
+		return count_ > 0 ? (double) sum_ / count_ : 0;
+	}
+
+	public synchronized int getMin() {
+		return count_ > 0 ? min_ : 0;
+	}
+
+	public synchronized int getMax() {
+		return count_ > 0 ? max_ : 0;
+	}
+
+	/**
+	 * Pixels that were below 0 before clipping, i.e. the offset is too low
+	 */
+	public synchronized long getClippedLow() {
+		return clippedLow_;
+	}
+
+	/**
+	 * Pixels that were above the maximum value before clipping
+	 */
+	public synchronized long getClippedHigh() {
+		return clippedHigh_;
+	}
+
+	/**
+	 * Writes the statistics into the tags of the frame
+	 */
+	public synchronized void putTags(JSONObject tags) throws JSONException {
+		tags.put(TAG_MEAN, getMean());
+		tags.put(TAG_MIN, getMin());
+		tags.put(TAG_MAX, getMax());
+		tags.put(TAG_CLIPPED_LOW, clippedLow_);
+		tags.put(TAG_CLIPPED_HIGH, clippedHigh_);
+	}
+}
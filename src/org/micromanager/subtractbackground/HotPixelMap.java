@@ -0,0 +1,164 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          HotPixelMap.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Finds hot pixels in a background and stores them next to the background
+ * file. A hot pixel is brighter than the median of its neighbours by more
+ * than a number of standard deviations of that difference over the whole
+ * background, the deviation being estimated robustly from its median
+ * absolute value. Hot pixels are kept as a sorted int[] of pixel offsets.
+ */
+public class HotPixelMap {
+	public static final double DEFAULT_SIGMAS = 6;
+	private static final String FILE_SUFFIX = "-hot.txt";
+
+	private HotPixelMap() {
+	}
+
+	/**
+	 * Returns the sorted offsets of the hot pixels of an 8 or 16 bit
+	 * background, an empty array when there are none.
+	 */
+	public static int[] find(ImageProcessor background, double sigmas) {
+		int width = background.getWidth();
+		int height = background.getHeight();
+		int[] values = ImageUtils2.makeCorrectionPlane(background, 0);
+		int[] residual = new int[values.length];
+		int[] neighbours = new int[8];
+		int[] histogram = new int[65536];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				int n = ImageUtils2.collectNeighbours(values, width, height, x, y, neighbours);
+				int r = values[i] - ImageUtils2.median(neighbours, n);
+				residual[i] = r;
+				histogram[Math.min(65535, Math.abs(r))]++;
+			}
+		}
+		// Median absolute residual, scaled to a standard deviation
+		int half = (values.length + 1) / 2;
+		int mad = 0;
+		for (int seen = 0; mad < 65535; mad++) {
+			seen += histogram[mad];
+			if (seen >= half) {
+				break;
+			}
+		}
+		double threshold = sigmas * Math.max(1, 1.4826 * mad);
+		int count = 0;
+		for (int r : residual) {
+			if (r > threshold) {
+				count++;
+			}
+		}
+		int[] hot = new int[count];
+		for (int i = 0, j = 0; i < residual.length; i++) {
+			if (residual[i] > threshold) {
+				hot[j++] = i;
+			}
+		}
+		return hot;
+	}
+
+	/**
+	 * Returns the hot pixel file belonging to a background file
+	 */
+	public static File fileFor(File background) {
+		String name = background.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(background.getAbsoluteFile().getParentFile(), name + FILE_SUFFIX);
+	}
+
+	/**
+	 * Writes "width height" followed by one offset per line
+	 */
+	public static void write(File file, int[] hotPixels, int width, int height) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println(width + " " + height);
+			for (int i : hotPixels) {
+				out.println(i);
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Failed to write " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads hot pixels written for a width x height background
+	 *
+	 * @return offsets, null when the file does not exist or is for another size
+	 */
+	public static int[] read(File file, int width, int height) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String header = in.readLine();
+			if (header == null || !header.trim().equals(width + " " + height)) {
+				return null;
+			}
+			int[] hot = new int[64];
+			int count = 0;
+			int limit = width * height;
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				int i = Integer.parseInt(line);
+				if (i < 0 || i >= limit) {
+					throw new IOException("Hot pixel out of range in " + file.getAbsolutePath());
+				}
+				if (count == hot.length) {
+					hot = Arrays.copyOf(hot, count * 2);
+				}
+				hot[count++] = i;
+			}
+			int[] sorted = Arrays.copyOf(hot, count);
+			Arrays.sort(sorted);
+			return sorted;
+		} catch (NumberFormatException ex) {
+			throw new IOException("Malformed hot pixel file " + file.getAbsolutePath());
+		} finally {
+			in.close();
+		}
+	}
+}
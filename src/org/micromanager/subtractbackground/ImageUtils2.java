@@ -1,5 +1,7 @@
 package org.micromanager.subtractbackground;
 
+import java.nio.ByteBuffer;
+
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
@@ -57,39 +59,778 @@ public class ImageUtils2 extends ImageUtils{
               null);
    }
    
-   public static byte[] subtractPixelArraysWithOffset(byte[] array1, byte[] array2, int offset) {
-      int l = array1.length;
-      byte[] result = new byte[l];
+   /**
+    * Subtracts the background from raw pixels and writes the result back into
+    * the same array, so no new frame buffer is allocated.
+    * 
+    * @param pixels - byte[] or short[] pixels of the image, overwritten
+    * @param background - background of the same size
+    * @param offset - value added to every pixel after subtraction
+    * @return pixels
+    * @throws MMException when sizes or types do not match
+    */
+   public static Object subtractPixelsInPlaceWithOffset(Object pixels, ImageProcessor background, int offset)
+           throws MMException {
+      int length = checkPixels(pixels, background);
+      subtractPixelsWithOffset(pixels, background.getPixels(), offset, pixels, 0, length);
+      return pixels;
+   }
+   
+   /**
+    * Checks that the raw pixels can be subtracted by the background.
+    * 
+    * @return number of pixels
+    * @throws MMException when sizes or types do not match
+    */
+   public static int checkPixels(Object pixels, ImageProcessor background) throws MMException {
+      int length = background.getWidth() * background.getHeight();
+      Object bgPixels = background.getPixels();
+      if (pixels instanceof byte[] && bgPixels instanceof byte[]) {
+         checkLength(((byte[]) pixels).length, length);
+      } else if (pixels instanceof short[] && (bgPixels instanceof short[] || bgPixels instanceof byte[])) {
+         checkLength(((short[]) pixels).length, length);
+      } else {
+         throw new MMException("Types of images to be subtracted were not compatible");
+      }
+      return length;
+   }
+   
+   private static void checkLength(int length1, int length2) throws MMException {
+      if (length1 != length2) {
+         throw new MMException("Error: Images are of unequal size, "+String.valueOf(length1)+
+                 ","+String.valueOf(length2));
+      }
+   }
+   
+   /**
+    * Returns the number of pixels of a byte[] or short[] array, -1 for other
+    * types.
+    */
+   public static int pixelCount(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         return ((short[]) pixels).length;
+      }
+      return -1;
+   }
+   
+   /**
+    * Returns an empty array of the same type and length as pixels, which is a
+    * byte[], short[], float[] or int[] array.
+    */
+   public static Object newPixelArray(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return new byte[((byte[]) pixels).length];
+      } else if (pixels instanceof float[]) {
+         return new float[((float[]) pixels).length];
+      } else if (pixels instanceof int[]) {
+         return new int[((int[]) pixels).length];
+      }
+      return new short[((short[]) pixels).length];
+   }
+   
+   /**
+    * Subtracts pixels [from, to) of bgPixels from pixels into result. Types must
+    * have been validated by checkPixels.
+    */
+   public static void subtractPixelsWithOffset(Object pixels, Object bgPixels, int offset, Object result,
+           int from, int to) {
+      if (pixels instanceof byte[]) {
+         subtractPixelArraysWithOffset((byte[]) pixels, (byte[]) bgPixels, offset, (byte[]) result, from, to);
+      } else if (bgPixels instanceof short[]) {
+         subtractPixelArraysWithOffset((short[]) pixels, (short[]) bgPixels, offset, (short[]) result, from, to);
+      } else {
+         subtractPixelArraysWithOffset((short[]) pixels, (byte[]) bgPixels, offset, (short[]) result, from, to);
+      }
+   }
+   
+   /**
+    * Builds the signed correction plane background - offset, so that a frame is
+    * corrected by a single subtraction per pixel.
+    * 
+    * @param background - 8 or 16 bit background
+    * @param offset - value added to every pixel after subtraction
+    * @return plane of background.getWidth() * background.getHeight() values
+    */
+   public static int[] makeCorrectionPlane(ImageProcessor background, int offset) {
+      Object bgPixels = background.getPixels();
+      int l = background.getWidth() * background.getHeight();
+      int[] plane = new int[l];
+      if (bgPixels instanceof byte[]) {
+         byte[] bg = (byte[]) bgPixels;
+         for (int i=0;i<l;++i) {
+            plane[i] = (bg[i] & 0xff) - offset;
+         }
+      } else {
+         short[] bg = (short[]) bgPixels;
+         for (int i=0;i<l;++i) {
+            plane[i] = (bg[i] & 0xffff) - offset;
+         }
+      }
+      return plane;
+   }
+   
+   /**
+    * Returns the part of a full-frame correction plane that matches a camera
+    * ROI, binned by averaging bin x bin values. The ROI is in binned pixels,
+    * as reported by the camera.
+    * 
+    * @return plane of w * h values, null when the ROI is outside the plane
+    */
+   public static int[] cropCorrectionPlane(int[] plane, int planeWidth, int planeHeight,
+           int x, int y, int w, int h, int bin) {
+      if (bin < 1 || x < 0 || y < 0 || w < 1 || h < 1
+              || (x + w) * bin > planeWidth || (y + h) * bin > planeHeight) {
+         return null;
+      }
+      int[] view = new int[w * h];
+      double n = bin * bin;
+      for (int row=0;row<h;++row) {
+         for (int col=0;col<w;++col) {
+            long sum = 0;
+            int y0 = (y + row) * bin;
+            int x0 = (x + col) * bin;
+            for (int by=0;by<bin;++by) {
+               int start = (y0 + by) * planeWidth + x0;
+               for (int bx=0;bx<bin;++bx) {
+                  sum += plane[start + bx];
+               }
+            }
+            view[row * w + col] = (int) Math.round(sum / n);
+         }
+      }
+      return view;
+   }
+   
+   /**
+    * Subtracts the correction plane from pixels [from, to) into result, which
+    * may be pixels itself.
+    */
+   public static void subtractCorrectionPlane(Object pixels, int[] plane, Object result, int from, int to) {
+      if (pixels instanceof byte[]) {
+         subtractCorrectionPlane((byte[]) pixels, plane, (byte[]) result, from, to);
+      } else {
+         subtractCorrectionPlane((short[]) pixels, plane, (short[]) result, from, to);
+      }
+   }
+   
+   public static byte[] subtractCorrectionPlane(byte[] pixels, int[] plane, byte[] result, int from, int to) {
+      for (int i=from;i<to;++i) {
+         int v = (pixels[i] & 0xff) - plane[i];
+         v &= ~(v >> 31);
+         result[i] = (byte) (v | ((255 - v) >> 31));
+      }
+      return result;
+   }
+   
+   public static short[] subtractCorrectionPlane(short[] pixels, int[] plane, short[] result, int from, int to) {
+      for (int i=from;i<to;++i) {
+         int v = (pixels[i] & 0xffff) - plane[i];
+         v &= ~(v >> 31);
+         result[i] = (short) (v | ((65535 - v) >> 31));
+      }
+      return result;
+   }
+   
+   /**
+    * Same as subtractCorrectionPlane but also adds mean, minimum, maximum and the
+    * number of clipped pixels of the result to stats, in the same pass.
+    */
+   public static void subtractCorrectionPlane(Object pixels, int[] plane, Object result, int from, int to,
+           FrameStatistics stats) {
+      if (pixels instanceof byte[]) {
+         subtractCorrectionPlane((byte[]) pixels, plane, (byte[]) result, from, to, stats);
+      } else {
+         subtractCorrectionPlane((short[]) pixels, plane, (short[]) result, from, to, stats);
+      }
+   }
+
+   public static byte[] subtractCorrectionPlane(byte[] pixels, int[] plane, byte[] result, int from, int to,
+           FrameStatistics stats) {
+      long sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int low = 0;
+      int high = 0;
+      for (int i=from;i<to;++i) {
+         int v = (pixels[i] & 0xff) - plane[i];
+         low += v >>> 31;
+         v &= ~(v >> 31);
+         high += (255 - v) >>> 31;
+         v = Math.min(v, 255);
+         sum += v;
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         result[i] = (byte) v;
+      }
+      stats.add(to - from, sum, min, max, low, high);
+      return result;
+   }
+
+   public static short[] subtractCorrectionPlane(short[] pixels, int[] plane, short[] result, int from, int to,
+           FrameStatistics stats) {
+      long sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int low = 0;
+      int high = 0;
+      for (int i=from;i<to;++i) {
+         int v = (pixels[i] & 0xffff) - plane[i];
+         low += v >>> 31;
+         v &= ~(v >> 31);
+         high += (65535 - v) >>> 31;
+         v = Math.min(v, 65535);
+         sum += v;
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         result[i] = (short) v;
+      }
+      stats.add(to - from, sum, min, max, low, high);
+      return result;
+   }
+   
+   /**
+    * Builds the plane background - offset for 32 bit float frames from a
+    * background of any gray type.
+    */
+   public static float[] makeFloatPlane(ImageProcessor background, float offset) {
+      int l = background.getWidth() * background.getHeight();
+      float[] plane = new float[l];
       for (int i=0;i<l;++i) {
-         result[i] = toByte(unsignedValue(array1[i]) - unsignedValue(array2[i]) + offset);
+         plane[i] = background.getf(i) - offset;
+      }
+      return plane;
+   }
+   
+   /**
+    * Returns the packed RGB background for RGB frames: the pixels of an RGB
+    * background, or an 8 bit background copied to all three channels.
+    * 
+    * @return packed 0xRRGGBB values, null for other types
+    */
+   public static int[] makeRgbPlane(ImageProcessor background) {
+      Object bgPixels = background.getPixels();
+      if (bgPixels instanceof int[]) {
+         return (int[]) bgPixels;
+      }
+      if (!(bgPixels instanceof byte[])) {
+         return null;
+      }
+      byte[] bg = (byte[]) bgPixels;
+      int[] plane = new int[bg.length];
+      for (int i=0;i<bg.length;++i) {
+         int v = bg[i] & 0xff;
+         plane[i] = (v << 16) | (v << 8) | v;
+      }
+      return plane;
+   }
+   
+   /**
+    * Subtracts a float plane from float pixels [from, to) into result, which
+    * may be pixels itself. Float values are not clamped.
+    */
+   public static float[] subtractFloatPlane(float[] pixels, float[] plane, float[] result, int from, int to) {
+      for (int i=from;i<to;++i) {
+         result[i] = pixels[i] - plane[i];
       }
       return result;
    }
    
-   public static short[] subtractPixelArraysWithOffset(short[] array1, short[] array2, int offset) {
-      int l = array1.length;
-      short[] result = new short[l];
+   /**
+    * Subtracts a packed RGB plane from pixels [from, to) channel by channel,
+    * adds offset and saturates every channel to [0, 255]. Alpha is kept.
+    * 
+    * @param pixels - packed int[] pixels, or byte[] pixels in B, G, R, A
+    *                 order as delivered by the core for RGB32 cameras
+    */
+   public static void subtractRgbPlane(Object pixels, int[] plane, int offset, Object result, int from, int to) {
+      if (pixels instanceof int[]) {
+         subtractRgbPlane((int[]) pixels, plane, offset, (int[]) result, from, to);
+      } else {
+         subtractRgbPlane((byte[]) pixels, plane, offset, (byte[]) result, from, to);
+      }
+   }
+   
+   public static int[] subtractRgbPlane(int[] pixels, int[] plane, int offset, int[] result, int from, int to) {
+      for (int i=from;i<to;++i) {
+         int p = pixels[i];
+         int q = plane[i];
+         int r = ((p >> 16) & 0xff) - ((q >> 16) & 0xff) + offset;
+         int g = ((p >> 8) & 0xff) - ((q >> 8) & 0xff) + offset;
+         int b = (p & 0xff) - (q & 0xff) + offset;
+         r &= ~(r >> 31);
+         g &= ~(g >> 31);
+         b &= ~(b >> 31);
+         r = (r | ((255 - r) >> 31)) & 0xff;
+         g = (g | ((255 - g) >> 31)) & 0xff;
+         b = (b | ((255 - b) >> 31)) & 0xff;
+         result[i] = (p & 0xff000000) | (r << 16) | (g << 8) | b;
+      }
+      return result;
+   }
+   
+   /**
+    * Byte version, from and to count pixels of 4 bytes
+    */
+   public static byte[] subtractRgbPlane(byte[] pixels, int[] plane, int offset, byte[] result, int from, int to) {
+      for (int i=from;i<to;++i) {
+         int q = plane[i];
+         int j = 4 * i;
+         int b = (pixels[j] & 0xff) - (q & 0xff) + offset;
+         int g = (pixels[j + 1] & 0xff) - ((q >> 8) & 0xff) + offset;
+         int r = (pixels[j + 2] & 0xff) - ((q >> 16) & 0xff) + offset;
+         b &= ~(b >> 31);
+         g &= ~(g >> 31);
+         r &= ~(r >> 31);
+         result[j] = (byte) (b | ((255 - b) >> 31));
+         result[j + 1] = (byte) (g | ((255 - g) >> 31));
+         result[j + 2] = (byte) (r | ((255 - r) >> 31));
+         result[j + 3] = pixels[j + 3];
+      }
+      return result;
+   }
+   
+   /**
+    * Replaces the hot pixels of a corrected 8 or 16 bit frame by the median of
+    * their neighbours. Only the listed pixels are visited.
+    * 
+    * @param hotPixels - offsets made by HotPixelMap.find
+    */
+   public static void replaceHotPixels(Object pixels, int width, int height, int[] hotPixels) {
+      int[] neighbours = new int[8];
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int i : hotPixels) {
+            int n = collectNeighbours(p, width, height, i % width, i / width, neighbours);
+            p[i] = (byte) median(neighbours, n);
+         }
+      } else {
+         short[] p = (short[]) pixels;
+         for (int i : hotPixels) {
+            int n = collectNeighbours(p, width, height, i % width, i / width, neighbours);
+            p[i] = (short) median(neighbours, n);
+         }
+      }
+   }
+   
+   /**
+    * Copies the up to 8 neighbours of pixel (x, y) inside the frame into
+    * neighbours and returns their number.
+    */
+   static int collectNeighbours(int[] values, int width, int height, int x, int y, int[] neighbours) {
+      int n = 0;
+      for (int dy=-1;dy<=1;++dy) {
+         int yy = y + dy;
+         if (yy < 0 || yy >= height) {
+            continue;
+         }
+         for (int dx=-1;dx<=1;++dx) {
+            int xx = x + dx;
+            if ((dx != 0 || dy != 0) && xx >= 0 && xx < width) {
+               neighbours[n++] = values[yy * width + xx];
+            }
+         }
+      }
+      return n;
+   }
+   
+   static int collectNeighbours(byte[] values, int width, int height, int x, int y, int[] neighbours) {
+      int n = 0;
+      for (int dy=-1;dy<=1;++dy) {
+         int yy = y + dy;
+         if (yy < 0 || yy >= height) {
+            continue;
+         }
+         for (int dx=-1;dx<=1;++dx) {
+            int xx = x + dx;
+            if ((dx != 0 || dy != 0) && xx >= 0 && xx < width) {
+               neighbours[n++] = values[yy * width + xx] & 0xff;
+            }
+         }
+      }
+      return n;
+   }
+   
+   static int collectNeighbours(short[] values, int width, int height, int x, int y, int[] neighbours) {
+      int n = 0;
+      for (int dy=-1;dy<=1;++dy) {
+         int yy = y + dy;
+         if (yy < 0 || yy >= height) {
+            continue;
+         }
+         for (int dx=-1;dx<=1;++dx) {
+            int xx = x + dx;
+            if ((dx != 0 || dy != 0) && xx >= 0 && xx < width) {
+               neighbours[n++] = values[yy * width + xx] & 0xffff;
+            }
+         }
+      }
+      return n;
+   }
+   
+   /**
+    * Median of the first n values, which are reordered. The two middle values
+    * are averaged when n is even.
+    */
+   static int median(int[] values, int n) {
+      if (n == 0) {
+         return 0;
+      }
+      for (int i=1;i<n;++i) {
+         int v = values[i];
+         int j = i - 1;
+         for (;j>=0 && values[j]>v;--j) {
+            values[j + 1] = values[j];
+         }
+         values[j + 1] = v;
+      }
+      return (n & 1) == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2] + 1) / 2;
+   }
+   
+   /** Fixed-point shift of gain maps, a gain of 1.0 is 1 << GAIN_SHIFT */
+   public static final int GAIN_SHIFT = 16;
+   public static final int GAIN_ONE = 1 << GAIN_SHIFT;
+   /** Largest gain, pixels of a flat darker than 1/16 of its mean are not boosted further */
+   public static final int MAX_GAIN = 16 * GAIN_ONE;
+
+   /**
+    * Builds the fixed-point gain map mean(flat - dark) / (flat - dark) of a
+    * flat-field image. Pixels where the flat is not above the dark keep a gain
+    * of 1.
+    *
+    * @param dark - plane made by makeCorrectionPlane(dark, 0)
+    * @param flat - flat-field image of any type, same size as the dark
+    * @return gain map in units of GAIN_ONE
+    */
+   public static int[] makeGainMap(int[] dark, ImageProcessor flat) {
+      int l = dark.length;
+      double sum = 0;
+      int n = 0;
       for (int i=0;i<l;++i) {
-         result[i] = toShort(unsignedValue(array1[i]) - unsignedValue(array2[i]) + offset);
+         double d = flat.getf(i) - dark[i];
+         if (d > 0) {
+            sum += d;
+            n++;
+         }
+      }
+      int[] gain = new int[l];
+      double mean = n > 0 ? sum / n : 1;
+      for (int i=0;i<l;++i) {
+         double d = flat.getf(i) - dark[i];
+         gain[i] = d > 0 ? (int) Math.min(MAX_GAIN, Math.round(mean / d * GAIN_ONE)) : GAIN_ONE;
+      }
+      return gain;
+   }
+
+   /**
+    * Flat-field correction (pixels - dark) * gain + offset of pixels [from, to)
+    * into result, which may be pixels itself. Subtraction, gain and offset are
+    * applied in one pass.
+    *
+    * @param dark - plane made by makeCorrectionPlane(dark, 0)
+    * @param gain - map made by makeGainMap
+    */
+   public static void subtractAndScale(Object pixels, int[] dark, int[] gain, int offset, Object result,
+           int from, int to) {
+      if (pixels instanceof byte[]) {
+         subtractAndScale((byte[]) pixels, dark, gain, offset, (byte[]) result, from, to);
+      } else {
+         subtractAndScale((short[]) pixels, dark, gain, offset, (short[]) result, from, to);
+      }
+   }
+
+   public static byte[] subtractAndScale(byte[] pixels, int[] dark, int[] gain, int offset, byte[] result,
+           int from, int to) {
+      long round = offset * (long) GAIN_ONE + GAIN_ONE / 2;
+      for (int i=from;i<to;++i) {
+         int v = (int) ((((pixels[i] & 0xff) - dark[i]) * (long) gain[i] + round) >> GAIN_SHIFT);
+         v &= ~(v >> 31);
+         result[i] = (byte) (v | ((255 - v) >> 31));
+      }
+      return result;
+   }
+
+   public static short[] subtractAndScale(short[] pixels, int[] dark, int[] gain, int offset, short[] result,
+           int from, int to) {
+      long round = offset * (long) GAIN_ONE + GAIN_ONE / 2;
+      for (int i=from;i<to;++i) {
+         int v = (int) ((((pixels[i] & 0xffff) - dark[i]) * (long) gain[i] + round) >> GAIN_SHIFT);
+         v &= ~(v >> 31);
+         result[i] = (short) (v | ((65535 - v) >> 31));
+      }
+      return result;
+   }
+
+   /**
+    * Same as subtractAndScale but also adds mean, minimum, maximum and the
+    * number of clipped pixels of the result to stats, in the same pass.
+    */
+   public static void subtractAndScale(Object pixels, int[] dark, int[] gain, int offset, Object result, int from, int to,
+           FrameStatistics stats) {
+      if (pixels instanceof byte[]) {
+         subtractAndScale((byte[]) pixels, dark, gain, offset, (byte[]) result, from, to, stats);
+      } else {
+         subtractAndScale((short[]) pixels, dark, gain, offset, (short[]) result, from, to, stats);
+      }
+   }
+
+   public static byte[] subtractAndScale(byte[] pixels, int[] dark, int[] gain, int offset, byte[] result, int from, int to,
+           FrameStatistics stats) {
+      long round = offset * (long) GAIN_ONE + GAIN_ONE / 2;
+      long sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int low = 0;
+      int high = 0;
+      for (int i=from;i<to;++i) {
+         int v = (int) ((((pixels[i] & 0xff) - dark[i]) * (long) gain[i] + round) >> GAIN_SHIFT);
+         low += v >>> 31;
+         v &= ~(v >> 31);
+         high += (255 - v) >>> 31;
+         v = Math.min(v, 255);
+         sum += v;
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         result[i] = (byte) v;
+      }
+      stats.add(to - from, sum, min, max, low, high);
+      return result;
+   }
+
+   public static short[] subtractAndScale(short[] pixels, int[] dark, int[] gain, int offset, short[] result, int from, int to,
+           FrameStatistics stats) {
+      long round = offset * (long) GAIN_ONE + GAIN_ONE / 2;
+      long sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int low = 0;
+      int high = 0;
+      for (int i=from;i<to;++i) {
+         int v = (int) ((((pixels[i] & 0xffff) - dark[i]) * (long) gain[i] + round) >> GAIN_SHIFT);
+         low += v >>> 31;
+         v &= ~(v >> 31);
+         high += (65535 - v) >>> 31;
+         v = Math.min(v, 65535);
+         sum += v;
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         result[i] = (short) v;
       }
+      stats.add(to - from, sum, min, max, low, high);
       return result;
    }
    
+   /**
+    * Corrects pixels [from, to) with a per-pixel offset and gain,
+    * ((pixel - offset) * gain >> 14) + offset value, see
+    * PhotonTransferCalibration. Gains below 2 keep the product within an
+    * int, so the loop needs no long arithmetic.
+    * 
+    * @param dark - unsigned offset of every pixel
+    * @param gain - gain of every pixel in Q14, at most Short.MAX_VALUE
+    */
+   public static void subtractCalibrated(Object pixels, short[] dark, short[] gain, int offset, Object result,
+           int from, int to) {
+      if (pixels instanceof byte[]) {
+         subtractCalibrated((byte[]) pixels, dark, gain, offset, (byte[]) result, from, to);
+      } else {
+         subtractCalibrated((short[]) pixels, dark, gain, offset, (short[]) result, from, to);
+      }
+   }
+
+   public static byte[] subtractCalibrated(byte[] pixels, short[] dark, short[] gain, int offset, byte[] result,
+           int from, int to) {
+      final int shift = PhotonTransferCalibration.GAIN_SHIFT;
+      int round = 1 << (shift - 1);
+      for (int i=from;i<to;++i) {
+         int v = ((((pixels[i] & 0xff) - (dark[i] & 0xffff)) * gain[i] + round) >> shift) + offset;
+         v &= ~(v >> 31);
+         result[i] = (byte) (v | ((255 - v) >> 31));
+      }
+      return result;
+   }
+
+   public static short[] subtractCalibrated(short[] pixels, short[] dark, short[] gain, int offset, short[] result,
+           int from, int to) {
+      final int shift = PhotonTransferCalibration.GAIN_SHIFT;
+      int round = 1 << (shift - 1);
+      for (int i=from;i<to;++i) {
+         int v = ((((pixels[i] & 0xffff) - (dark[i] & 0xffff)) * gain[i] + round) >> shift) + offset;
+         v &= ~(v >> 31);
+         result[i] = (short) (v | ((65535 - v) >> 31));
+      }
+      return result;
+   }
+
+   /**
+    * Same as subtractCalibrated but also adds mean, minimum, maximum and the
+    * number of clipped pixels of the result to stats, in the same pass.
+    */
+   public static void subtractCalibrated(Object pixels, short[] dark, short[] gain, int offset, Object result, int from, int to,
+           FrameStatistics stats) {
+      if (pixels instanceof byte[]) {
+         subtractCalibrated((byte[]) pixels, dark, gain, offset, (byte[]) result, from, to, stats);
+      } else {
+         subtractCalibrated((short[]) pixels, dark, gain, offset, (short[]) result, from, to, stats);
+      }
+   }
+
+   public static byte[] subtractCalibrated(byte[] pixels, short[] dark, short[] gain, int offset, byte[] result, int from, int to,
+           FrameStatistics stats) {
+      final int shift = PhotonTransferCalibration.GAIN_SHIFT;
+      int round = 1 << (shift - 1);
+      long sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int low = 0;
+      int high = 0;
+      for (int i=from;i<to;++i) {
+         int v = ((((pixels[i] & 0xff) - (dark[i] & 0xffff)) * gain[i] + round) >> shift) + offset;
+         low += v >>> 31;
+         v &= ~(v >> 31);
+         high += (255 - v) >>> 31;
+         v = Math.min(v, 255);
+         sum += v;
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         result[i] = (byte) v;
+      }
+      stats.add(to - from, sum, min, max, low, high);
+      return result;
+   }
+
+   public static short[] subtractCalibrated(short[] pixels, short[] dark, short[] gain, int offset, short[] result, int from, int to,
+           FrameStatistics stats) {
+      final int shift = PhotonTransferCalibration.GAIN_SHIFT;
+      int round = 1 << (shift - 1);
+      long sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int low = 0;
+      int high = 0;
+      for (int i=from;i<to;++i) {
+         int v = ((((pixels[i] & 0xffff) - (dark[i] & 0xffff)) * gain[i] + round) >> shift) + offset;
+         low += v >>> 31;
+         v &= ~(v >> 31);
+         high += (65535 - v) >>> 31;
+         v = Math.min(v, 65535);
+         sum += v;
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         result[i] = (short) v;
+      }
+      stats.add(to - from, sum, min, max, low, high);
+      return result;
+   }
+   
+   /**
+    * Builds an ImageProcessor from raw pixels, e.g. a memory-mapped file. The
+    * pixels are copied in bulk, without decoding.
+    * 
+    * @param pixels - pixels in the buffer's byte order, from its position
+    * @param bytesPerPixel - 1 or 2
+    */
+   public static ImageProcessor makeProcessor(ByteBuffer pixels, int width, int height, int bytesPerPixel) {
+      int l = width * height;
+      if (bytesPerPixel == 2) {
+         short[] array = new short[l];
+         pixels.asShortBuffer().get(array);
+         return new ShortProcessor(width, height, array, null);
+      }
+      byte[] array = new byte[l];
+      pixels.get(array);
+      return new ByteProcessor(width, height, array, null);
+   }
+   
+   public static byte[] subtractPixelArraysWithOffset(byte[] array1, byte[] array2, int offset) {
+      return subtractPixelArraysWithOffset(array1, array2, offset, new byte[array1.length]);
+   }
+   
+   public static short[] subtractPixelArraysWithOffset(short[] array1, short[] array2, int offset) {
+      return subtractPixelArraysWithOffset(array1, array2, offset, new short[array1.length]);
+   }
+   
    public static short[] subtractPixelArraysWithOffset(short[] array1, byte[] array2, int offset) {
-      int l = array1.length;
-      short[] result = new short[l];
-      for (int i=0;i<l;++i) {
-         result[i] = toShort(unsignedValue(array1[i]) - unsignedValue(array2[i]) + offset);
+      return subtractPixelArraysWithOffset(array1, array2, offset, new short[array1.length]);
+   }
+   
+   /**
+    * Same as subtractPixelArraysWithOffset(byte[], byte[], int) but writes into
+    * result, which may be array1 itself.
+    */
+   public static byte[] subtractPixelArraysWithOffset(byte[] array1, byte[] array2, int offset, byte[] result) {
+      return subtractPixelArraysWithOffset(array1, array2, offset, result, 0, array1.length);
+   }
+   
+   public static short[] subtractPixelArraysWithOffset(short[] array1, short[] array2, int offset, short[] result) {
+      return subtractPixelArraysWithOffset(array1, array2, offset, result, 0, array1.length);
+   }
+   
+   public static short[] subtractPixelArraysWithOffset(short[] array1, byte[] array2, int offset, short[] result) {
+      return subtractPixelArraysWithOffset(array1, array2, offset, result, 0, array1.length);
+   }
+   
+   /**
+    * Range versions used by SubtractionEngine, only pixels [from, to) are written.
+    * The loops are kept free of calls and branches so that the JIT can compile
+    * them to SIMD code: values are unsigned by masking and clamped with
+    * sign-bit arithmetic (see clampByte and clampShort).
+    */
+   public static byte[] subtractPixelArraysWithOffset(byte[] array1, byte[] array2, int offset, byte[] result,
+           int from, int to) {
+      for (int i=from;i<to;++i) {
+         int v = (array1[i] & 0xff) - (array2[i] & 0xff) + offset;
+         v &= ~(v >> 31);
+         result[i] = (byte) (v | ((255 - v) >> 31));
+      }
+      return result;
+   }
+   
+   public static short[] subtractPixelArraysWithOffset(short[] array1, short[] array2, int offset, short[] result,
+           int from, int to) {
+      for (int i=from;i<to;++i) {
+         int v = (array1[i] & 0xffff) - (array2[i] & 0xffff) + offset;
+         v &= ~(v >> 31);
+         result[i] = (short) (v | ((65535 - v) >> 31));
+      }
+      return result;
+   }
+   
+   public static short[] subtractPixelArraysWithOffset(short[] array1, byte[] array2, int offset, short[] result,
+           int from, int to) {
+      for (int i=from;i<to;++i) {
+         int v = (array1[i] & 0xffff) - (array2[i] & 0xff) + offset;
+         v &= ~(v >> 31);
+         result[i] = (short) (v | ((65535 - v) >> 31));
       }
       return result;
    }
    
    public static byte toByte(int value) {
-      return (byte) Math.max(0, Math.min(255, value));
+      return (byte) clampByte(value);
    }
    
    public static short toShort(int value) {
-      return (short) Math.max(0, Math.min(65535, value));
+      return (short) clampShort(value);
+   }
+   
+   /**
+    * Clamps value to [0, 255] without branches. Negative values are zeroed by
+    * masking with the inverted sign, values above 255 are set to all ones,
+    * which is 255 once the result is cast to byte.
+    */
+   public static int clampByte(int value) {
+      value &= ~(value >> 31);
+      return (value | ((255 - value) >> 31)) & 0xff;
+   }
+   
+   /**
+    * Clamps value to [0, 65535] without branches, see clampByte.
+    */
+   public static int clampShort(int value) {
+      value &= ~(value >> 31);
+      return (value | ((65535 - value) >> 31)) & 0xffff;
    }
    
 }
@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LatencyHistogram.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations in nanoseconds. Every power of two is
+ * split into 16 buckets, so values are kept within 1/16 of their magnitude.
+ * Recording does not allocate and may be called from several threads.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 16;
+	private static final int BUCKETS = 60 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count_ = new AtomicLong();
+	private final AtomicLong sum_ = new AtomicLong();
+	private final AtomicLong max_ = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts_.incrementAndGet(indexOf(nanos));
+		count_.incrementAndGet();
+		sum_.addAndGet(nanos);
+		long max = max_.get();
+		while (nanos > max && !max_.compareAndSet(max, nanos)) {
+			max = max_.get();
+		}
+	}
+
+	public long getCount() {
+		return count_.get();
+	}
+
+	public long getMax() {
+		return max_.get();
+	}
+
+	public double getMean() {
+		long count = count_.get();
+		return count == 0 ? 0 : (double) sum_.get() / count;
+	}
+
+	/**
+	 * Returns the lower bound of the bucket holding the given percentile.
+	 *
+	 * @param percentile
+	 *            - 0 to 100
+	 */
+	public long getPercentile(double percentile) {
+		long count = count_.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts_.get(i);
+			if (seen >= rank && seen > 0) {
+				return lowerBoundOf(i);
+			}
+		}
+		return max_.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts_.set(i, 0);
+		}
+		count_.set(0);
+		sum_.set(0);
+		max_.set(0);
+	}
+
+	static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - 4));
+		return Math.min(BUCKETS - 1, (exponent - 4) * SUB_BUCKETS + subBucket);
+	}
+
+	static long lowerBoundOf(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + 3;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return subBucket << (exponent - 4);
+	}
+}
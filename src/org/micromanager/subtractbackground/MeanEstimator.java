@@ -0,0 +1,45 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MeanEstimator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+/**
+ * Running mean, computed together with the variance by Welford's algorithm
+ */
+public class MeanEstimator extends BackgroundEstimator {
+
+	public MeanEstimator(int width, int height, int ijType) {
+		super(width, height, ijType);
+	}
+
+	@Override
+	protected void accumulate(int[] frame) {
+		int n = count_ + 1;
+		for (int i = 0; i < frame.length; i++) {
+			update(i, frame[i], n);
+		}
+	}
+
+	@Override
+	protected double estimate(int i) {
+		return mean_[i];
+	}
+}
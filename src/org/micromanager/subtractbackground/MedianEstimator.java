@@ -0,0 +1,124 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MedianEstimator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.Arrays;
+
+/**
+ * Approximate median with bounded memory (remedian, Rousseeuw and Bassett
+ * 1990). Frames are collected in a buffer of BASE planes; when it is full the
+ * per-pixel median of the buffer is moved one level up. Three levels cover
+ * BASE^3 frames, so memory is 3 * BASE values per pixel instead of one per
+ * frame. The variance is that of all samples.
+ */
+public class MedianEstimator extends BackgroundEstimator {
+	private static final int LEVELS = 3;
+
+	private final int base_;
+	// levels_[level][slot] holds one plane of unsigned values
+	private final short[][][] levels_;
+	private final int[] fill_;
+	private final int[] values_;
+	private final long[] weights_;
+
+	/**
+	 * @param count
+	 *            - number of frames that will be added
+	 */
+	public MedianEstimator(int width, int height, int ijType, int count) {
+		super(width, height, ijType);
+		int base = (int) Math.ceil(Math.cbrt(Math.max(count, 1)));
+		base_ = Math.max(3, base | 1);
+		levels_ = new short[LEVELS][base_][];
+		fill_ = new int[LEVELS];
+		values_ = new int[LEVELS * base_];
+		weights_ = new long[LEVELS * base_];
+	}
+
+	@Override
+	protected void accumulate(int[] frame) {
+		int n = count_ + 1;
+		short[] plane = new short[frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			update(i, frame[i], n);
+			plane[i] = (short) frame[i];
+		}
+		push(0, plane);
+	}
+
+	private void push(int level, short[] plane) {
+		levels_[level][fill_[level]++] = plane;
+		if (fill_[level] < base_ || level == LEVELS - 1) {
+			return;
+		}
+		short[][] slots = levels_[level];
+		short[] medians = new short[plane.length];
+		int[] values = new int[base_];
+		for (int i = 0; i < plane.length; i++) {
+			for (int j = 0; j < base_; j++) {
+				values[j] = slots[j][i] & 0xffff;
+			}
+			Arrays.sort(values);
+			medians[i] = (short) values[base_ / 2];
+		}
+		for (int j = 0; j < base_; j++) {
+			slots[j] = null;
+		}
+		fill_[level] = 0;
+		push(level + 1, medians);
+	}
+
+	/**
+	 * Weighted median of the values left in all levels, a value at level k
+	 * stands for BASE^k frames.
+	 */
+	@Override
+	protected double estimate(int i) {
+		int m = 0;
+		long total = 0;
+		long weight = 1;
+		for (int level = 0; level < LEVELS; level++) {
+			for (int j = 0; j < fill_[level]; j++) {
+				int v = levels_[level][j][i] & 0xffff;
+				// insertion sort by value
+				int k = m++;
+				while (k > 0 && values_[k - 1] > v) {
+					values_[k] = values_[k - 1];
+					weights_[k] = weights_[k - 1];
+					k--;
+				}
+				values_[k] = v;
+				weights_[k] = weight;
+				total += weight;
+			}
+			weight *= base_;
+		}
+		long seen = 0;
+		for (int k = 0; k < m; k++) {
+			seen += weights_[k];
+			if (2 * seen >= total) {
+				return values_[k];
+			}
+		}
+		return mean_[i];
+	}
+}
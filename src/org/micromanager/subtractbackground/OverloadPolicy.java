@@ -0,0 +1,157 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          OverloadPolicy.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import org.json.JSONObject;
+
+/**
+ * Decides which frames are forwarded uncorrected when processing falls
+ * behind, so that the acquisition never waits for this plugin. A frame is
+ * late when it arrives later after its ElapsedTime-ms than the earliest frame
+ * of the acquisition did; frames without that tag are never late. Policies
+ * are called from the processor thread only.
+ */
+public final class OverloadPolicy {
+	/**
+	 * Available policies
+	 */
+	public enum Mode {
+		STRICT("Strict"), PASS_THROUGH_WHEN_LATE("Pass through when late"), SKIP_EVERY_NTH("Skip every Nth");
+
+		private final String label_;
+
+		Mode(String label) {
+			label_ = label;
+		}
+
+		@Override
+		public String toString() {
+			return label_;
+		}
+	}
+
+	/** Value of the uncorrected tag for late frames */
+	public static final String REASON_LATE = "late";
+	/** Value of the uncorrected tag for skipped frames */
+	public static final String REASON_SKIPPED = "skipped";
+
+	/**
+	 * Why a frame is forwarded uncorrected
+	 */
+	public enum Reason {
+		LATE(REASON_LATE), SKIPPED(REASON_SKIPPED);
+
+		private final String tag_;
+
+		Reason(String tag) {
+			tag_ = tag;
+		}
+
+		/**
+		 * Value of the uncorrected tag, REASON_LATE or REASON_SKIPPED
+		 */
+		public String getTag() {
+			return tag_;
+		}
+	}
+
+	/** Every frame is corrected, however late */
+	public static final OverloadPolicy STRICT = new OverloadPolicy(Mode.STRICT, 0, 0);
+
+	private final Mode mode_;
+	private final long budgetMs_;
+	private final int n_;
+	private long frames_ = 0;
+	private final ArrivalDelay arrival_ = new ArrivalDelay();
+
+	private OverloadPolicy(Mode mode, long budgetMs, int n) {
+		mode_ = mode;
+		budgetMs_ = budgetMs;
+		n_ = n;
+	}
+
+	/**
+	 * Forwards frames uncorrected that arrive more than budgetMs late
+	 */
+	public static OverloadPolicy passThroughWhenLate(long budgetMs) {
+		return new OverloadPolicy(Mode.PASS_THROUGH_WHEN_LATE, Math.max(0, budgetMs), 0);
+	}
+
+	/**
+	 * Forwards every nth frame uncorrected, n >= 2
+	 */
+	public static OverloadPolicy skipEveryNth(int n) {
+		return new OverloadPolicy(Mode.SKIP_EVERY_NTH, 0, Math.max(2, n));
+	}
+
+	/**
+	 * Creates a policy of mode with the parameter it uses
+	 */
+	public static OverloadPolicy create(Mode mode, long budgetMs, int n) {
+		switch (mode) {
+		case PASS_THROUGH_WHEN_LATE:
+			return passThroughWhenLate(budgetMs);
+		case SKIP_EVERY_NTH:
+			return skipEveryNth(n);
+		default:
+			return STRICT;
+		}
+	}
+
+	public Mode getMode() {
+		return mode_;
+	}
+
+	public long getBudgetMs() {
+		return budgetMs_;
+	}
+
+	public int getN() {
+		return n_;
+	}
+
+	/**
+	 * Returns why a frame is to be forwarded uncorrected, or null to correct
+	 * it.
+	 *
+	 * @param nowMs
+	 *            - System.currentTimeMillis() when the frame arrived
+	 */
+	public Reason check(JSONObject tags, long nowMs) {
+		switch (mode_) {
+		case PASS_THROUGH_WHEN_LATE:
+			return latenessMs(tags, nowMs) > budgetMs_ ? Reason.LATE : null;
+		case SKIP_EVERY_NTH:
+			return ++frames_ % n_ == 0 ? Reason.SKIPPED : null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns how much later than the earliest frame of the acquisition this
+	 * frame arrived, 0 without an ElapsedTime-ms tag.
+	 */
+	long latenessMs(JSONObject tags, long nowMs) {
+		return Math.max(0, arrival_.delayMs(tags, nowMs));
+	}
+}
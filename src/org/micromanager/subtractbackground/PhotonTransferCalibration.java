@@ -0,0 +1,207 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PhotonTransferCalibration.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.micromanager.utils.MMException;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Per-pixel offset and gain of a camera, e.g. an sCMOS, measured with the
+ * photon transfer method. The offset is the mean of a dark series. The gain
+ * of a pixel is its conversion factor (flat - dark) / (flat variance - dark
+ * variance) relative to the mean over the chip, so corrected frames keep the
+ * scale of an average pixel. Offsets are unsigned shorts and gains are Q14
+ * fixed-point shorts, i.e. 4 bytes per pixel, and frames are corrected by
+ * (frame - offset) * gain + offset value in one integer pass, see
+ * ImageUtils2.subtractCalibrated.
+ */
+public final class PhotonTransferCalibration {
+	public static final int GAIN_SHIFT = 14;
+	public static final int GAIN_ONE = 1 << GAIN_SHIFT;
+	/**
+	 * Largest gain, just below 2. It keeps (frame - offset) * gain within an
+	 * int.
+	 */
+	public static final int MAX_GAIN = Short.MAX_VALUE;
+	private static final String LABEL_OFFSET = "offset";
+	private static final String LABEL_GAIN = "gain Q" + GAIN_SHIFT;
+
+	private final int width_;
+	private final int height_;
+	private final short[] offset_;
+	private final short[] gain_;
+	private final String source_;
+
+	/**
+	 * @param offset
+	 *            - unsigned offset of every pixel
+	 * @param gain
+	 *            - gain of every pixel in units of GAIN_ONE, 0 to MAX_GAIN
+	 */
+	public PhotonTransferCalibration(int width, int height, short[] offset, short[] gain) {
+		this(width, height, offset, gain, null);
+	}
+
+	/**
+	 * @param source
+	 *            - where the calibration came from, e.g. the path of its file
+	 */
+	public PhotonTransferCalibration(int width, int height, short[] offset, short[] gain, String source) {
+		if (offset.length != width * height || gain.length != width * height) {
+			throw new IllegalArgumentException("Calibration maps differ in size");
+		}
+		width_ = width;
+		height_ = height;
+		offset_ = offset;
+		gain_ = gain;
+		source_ = source;
+	}
+
+	/**
+	 * Calibrates from estimators that averaged a dark and a flat series of at
+	 * least 2 frames each. Pixels without signal or excess variance keep a gain
+	 * of 1.
+	 *
+	 * @throws MMException
+	 *             when the series are too short or differ in size
+	 */
+	public static PhotonTransferCalibration create(BackgroundEstimator dark, BackgroundEstimator flat)
+			throws MMException {
+		FloatProcessor darkVariance = dark.getVariance();
+		FloatProcessor flatVariance = flat.getVariance();
+		if (darkVariance == null || flatVariance == null) {
+			throw new MMException("Calibration needs at least 2 dark and 2 flat frames");
+		}
+		int width = dark.getWidth();
+		int height = dark.getHeight();
+		if (flat.getWidth() != width || flat.getHeight() != height) {
+			throw new MMException("Dark and flat frames differ in size");
+		}
+		int l = width * height;
+		int[] darkMean = ImageUtils2.makeCorrectionPlane(dark.getBackground(), 0);
+		int[] flatMean = ImageUtils2.makeCorrectionPlane(flat.getBackground(), 0);
+		float[] dv = (float[]) darkVariance.getPixels();
+		float[] fv = (float[]) flatVariance.getPixels();
+		// Conversion factor of every pixel, NaN when it cannot be measured
+		double[] factor = new double[l];
+		double sum = 0;
+		int n = 0;
+		for (int i = 0; i < l; i++) {
+			double signal = flatMean[i] - darkMean[i];
+			double noise = fv[i] - dv[i];
+			if (signal > 0 && noise > 0) {
+				factor[i] = signal / noise;
+				sum += factor[i];
+				n++;
+			} else {
+				factor[i] = Double.NaN;
+			}
+		}
+		double mean = n > 0 ? sum / n : 1;
+		short[] offset = new short[l];
+		short[] gain = new short[l];
+		for (int i = 0; i < l; i++) {
+			offset[i] = (short) darkMean[i];
+			long g = Double.isNaN(factor[i]) ? GAIN_ONE : Math.round(factor[i] / mean * GAIN_ONE);
+			gain[i] = (short) Math.min(MAX_GAIN, g);
+		}
+		return new PhotonTransferCalibration(width, height, offset, gain);
+	}
+
+	/**
+	 * Saves offset and gain as a 2 slice 16 bit TIFF
+	 *
+	 * @throws IOException
+	 *             when the file could not be written
+	 */
+	public void write(File file) throws IOException {
+		ImageStack stack = new ImageStack(width_, height_);
+		stack.addSlice(LABEL_OFFSET, new ShortProcessor(width_, height_, offset_, null));
+		stack.addSlice(LABEL_GAIN, new ShortProcessor(width_, height_, gain_, null));
+		if (!new FileSaver(new ImagePlus("Calibration", stack)).saveAsTiffStack(file.getAbsolutePath())
+				|| !file.isFile()) {
+			throw new IOException("Failed to write " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads a calibration saved by write
+	 *
+	 * @throws IOException
+	 *             when the file is no calibration
+	 */
+	public static PhotonTransferCalibration read(File file) throws IOException {
+		ImagePlus imp = new ij.io.Opener().openImage(file.getAbsolutePath());
+		if (imp == null || imp.getStackSize() != 2 || imp.getBitDepth() != 16) {
+			throw new IOException(file.getName() + " is not a calibration file");
+		}
+		ImageStack stack = imp.getStack();
+		ImageProcessor offset = stack.getProcessor(1);
+		ImageProcessor gain = stack.getProcessor(2);
+		short[] g = (short[]) gain.getPixels();
+		for (short value : g) {
+			if (value < 0) {
+				throw new IOException(file.getName() + " has gains out of range");
+			}
+		}
+		return new PhotonTransferCalibration(offset.getWidth(), offset.getHeight(), (short[]) offset.getPixels(), g,
+				file.getAbsolutePath());
+	}
+
+	/**
+	 * Returns where the calibration came from, or null if unknown
+	 */
+	public String getSource() {
+		return source_;
+	}
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	/**
+	 * Unsigned offsets of all pixels
+	 */
+	public short[] getOffset() {
+		return offset_;
+	}
+
+	/**
+	 * Gains of all pixels in units of GAIN_ONE
+	 */
+	public short[] getGain() {
+		return gain_;
+	}
+}
@@ -0,0 +1,223 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RawBackgroundFile.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Uncompressed background file that is memory-mapped instead of decoded.
+ * A 64 byte little-endian header is followed by the pixels:
+ *
+ * <pre>
+ * 0  "MMBG"        4  version
+ * 8  width         12 height
+ * 16 bytes/pixel   20 frame count
+ * 24 estimator     28 reserved
+ * 32 timestamp ms  40 CRC32 of the pixels
+ * </pre>
+ */
+public class RawBackgroundFile {
+	public static final String SUFFIX = "mmbg";
+	public static final int HEADER_SIZE = 64;
+	private static final int MAGIC = 0x47424d4d; // "MMBG" little-endian
+	private static final int VERSION = 1;
+	private static final int CHUNK = 1 << 16;
+
+	private final int width_;
+	private final int height_;
+	private final int bytesPerPixel_;
+	private final int count_;
+	private final int estimator_;
+	private final long timestamp_;
+	private final long checksum_;
+	private final ByteBuffer pixels_;
+
+	private RawBackgroundFile(ByteBuffer header, ByteBuffer pixels) {
+		width_ = header.getInt(8);
+		height_ = header.getInt(12);
+		bytesPerPixel_ = header.getInt(16);
+		count_ = header.getInt(20);
+		estimator_ = header.getInt(24);
+		timestamp_ = header.getLong(32);
+		checksum_ = header.getLong(40);
+		pixels_ = pixels;
+	}
+
+	/**
+	 * Maps a raw background file. The pixels are not read until used.
+	 *
+	 * @throws IOException
+	 *             when the file is not a raw background
+	 */
+	public static RawBackgroundFile map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException(file.getName() + " is not a background file");
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+				throw new IOException(file.getName() + " is not a background file");
+			}
+			map.position(HEADER_SIZE);
+			ByteBuffer pixels = map.slice().order(ByteOrder.LITTLE_ENDIAN);
+			RawBackgroundFile raw = new RawBackgroundFile(map, pixels);
+			if ((raw.bytesPerPixel_ != 1 && raw.bytesPerPixel_ != 2)
+					|| (long) raw.width_ * raw.height_ * raw.bytesPerPixel_ != pixels.capacity()) {
+				throw new IOException(file.getName() + " is truncated or corrupt");
+			}
+			return raw;
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes an 8 or 16 bit background.
+	 *
+	 * @param count
+	 *            - number of frames the background was estimated from
+	 * @param estimator
+	 *            - estimator used, null if unknown
+	 */
+	public static void write(File file, ImageProcessor background, int count, BackgroundEstimator.Method estimator)
+			throws IOException {
+		Object pixels = background.getPixels();
+		int bytesPerPixel = (pixels instanceof short[]) ? 2 : 1;
+		int length = background.getWidth() * background.getHeight();
+		ByteBuffer data = ByteBuffer.allocate(length * bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+		if (bytesPerPixel == 2) {
+			data.asShortBuffer().put((short[]) pixels, 0, length);
+		} else {
+			data.put((byte[]) pixels, 0, length);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), 0, data.capacity());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, MAGIC).putInt(4, VERSION);
+		header.putInt(8, background.getWidth()).putInt(12, background.getHeight());
+		header.putInt(16, bytesPerPixel).putInt(20, count);
+		header.putInt(24, estimator != null ? estimator.ordinal() : -1);
+		header.putLong(32, System.currentTimeMillis()).putLong(40, crc.getValue());
+		data.rewind();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Opens a raw background or any image ImageJ can open, e.g. TIFF.
+	 *
+	 * @return the background, null when it cannot be opened
+	 */
+	public static ImageProcessor open(File file) throws IOException {
+		if (file.getName().toLowerCase().endsWith("." + SUFFIX)) {
+			RawBackgroundFile raw = map(file);
+			if (!raw.verify()) {
+				throw new IOException("Checksum of " + file.getName() + " does not match");
+			}
+			return raw.toProcessor();
+		}
+		ImagePlus ip = new ij.io.Opener().openImage(file.getAbsolutePath());
+		return ip != null ? ip.getProcessor() : null;
+	}
+
+	/**
+	 * Returns true when the CRC32 of the pixels matches the header.
+	 */
+	public boolean verify() {
+		CRC32 crc = new CRC32();
+		ByteBuffer pixels = pixels_.duplicate();
+		byte[] chunk = new byte[CHUNK];
+		while (pixels.hasRemaining()) {
+			int n = Math.min(CHUNK, pixels.remaining());
+			pixels.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue() == checksum_;
+	}
+
+	/**
+	 * Copies the mapped pixels into a new ImageProcessor.
+	 */
+	public ImageProcessor toProcessor() {
+		return ImageUtils2.makeProcessor(getPixels(), width_, height_, bytesPerPixel_);
+	}
+
+	/**
+	 * Returns a read-only view of the mapped pixels in little-endian order.
+	 */
+	public ByteBuffer getPixels() {
+		return pixels_.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	public int getBytesPerPixel() {
+		return bytesPerPixel_;
+	}
+
+	public int getCount() {
+		return count_;
+	}
+
+	/**
+	 * Returns the estimator, null if unknown
+	 */
+	public BackgroundEstimator.Method getEstimator() {
+		BackgroundEstimator.Method[] methods = BackgroundEstimator.Method.values();
+		return (estimator_ >= 0 && estimator_ < methods.length) ? methods[estimator_] : null;
+	}
+
+	public long getTimestamp() {
+		return timestamp_;
+	}
+}
@@ -0,0 +1,156 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RollingBackground.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Exponentially weighted running background for illumination that drifts
+ * during long acquisitions. Every interval-th frame, and every frame tagged
+ * with TAG_BACKGROUND_FRAME, is folded into the running mean in one pass over
+ * its pixels. Until window frames were folded in, the plain mean is used.
+ * Folding does not allocate; the background image is made from the mean by
+ * getBackground(), which the processor calls off the frame path.
+ */
+public class RollingBackground {
+	/** Source of the backgrounds published by the processor */
+	public static final String SOURCE = "Rolling background";
+	/** Frames tagged true are always used for the background */
+	public static final String TAG_BACKGROUND_FRAME = "SubtractBackground-BackgroundFrame";
+
+	private final int interval_;
+	private final int window_;
+	private final AtomicLong frames_ = new AtomicLong();
+	private float[] mean_;
+	private int width_;
+	private int height_;
+	private int ijType_;
+	private int updates_;
+
+	/**
+	 * @param interval
+	 *            - every interval-th frame is used, 0 for tagged frames only
+	 * @param window
+	 *            - number of frames the mean decays over
+	 */
+	public RollingBackground(int interval, int window) {
+		interval_ = Math.max(0, interval);
+		window_ = Math.max(1, window);
+	}
+
+	public int getInterval() {
+		return interval_;
+	}
+
+	public int getWindow() {
+		return window_;
+	}
+
+	/**
+	 * Counts a frame and returns whether it should update the background.
+	 */
+	public boolean select(JSONObject tags) {
+		long frame = frames_.getAndIncrement();
+		if (tags.optBoolean(TAG_BACKGROUND_FRAME, false)) {
+			return true;
+		}
+		return interval_ > 0 && frame % interval_ == 0;
+	}
+
+	/**
+	 * Folds a frame into the running background. The running mean restarts
+	 * when the frame size or type changes; it starts from seed if that matches
+	 * the frame.
+	 *
+	 * @param pixels
+	 *            - byte[] or short[] pixels of the uncorrected frame
+	 * @param seed
+	 *            - current background, or null
+	 */
+	public synchronized void fold(Object pixels, int width, int height, int ijType, ImageProcessor seed) {
+		int l = width * height;
+		if (mean_ == null || width != width_ || height != height_ || ijType != ijType_) {
+			mean_ = new float[l];
+			width_ = width;
+			height_ = height;
+			ijType_ = ijType;
+			updates_ = 0;
+			if (seed != null && seed.getWidth() == width && seed.getHeight() == height
+					&& (seed.getPixels() instanceof short[]) == (ijType == ImagePlus.GRAY16)) {
+				for (int i = 0; i < l; i++) {
+					mean_[i] = seed.getf(i);
+				}
+				updates_ = window_;
+			}
+		}
+		updates_ = Math.min(window_, updates_ + 1);
+		float alpha = 1f / updates_;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < l; i++) {
+				mean_[i] += alpha * ((p[i] & 0xff) - mean_[i]);
+			}
+		} else {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < l; i++) {
+				mean_[i] += alpha * ((p[i] & 0xffff) - mean_[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the running background as a new image of the type of the folded
+	 * frames, null before the first fold.
+	 */
+	public synchronized ImageProcessor getBackground() {
+		if (mean_ == null) {
+			return null;
+		}
+		int l = width_ * height_;
+		if (ijType_ == ImagePlus.GRAY8) {
+			byte[] background = new byte[l];
+			for (int i = 0; i < l; i++) {
+				background[i] = (byte) (int) (mean_[i] + 0.5f);
+			}
+			return new ByteProcessor(width_, height_, background, null);
+		}
+		short[] background = new short[l];
+		for (int i = 0; i < l; i++) {
+			background[i] = (short) (int) (mean_[i] + 0.5f);
+		}
+		return new ShortProcessor(width_, height_, background, null);
+	}
+
+	/**
+	 * Forgets the running background, the next update starts over.
+	 */
+	public synchronized void reset() {
+		mean_ = null;
+	}
+}
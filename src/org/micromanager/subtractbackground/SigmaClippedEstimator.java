@@ -0,0 +1,69 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SigmaClippedEstimator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+/**
+ * Streaming sigma-clipped mean. After a few frames, a sample further than
+ * CLIP_SIGMA standard deviations from the running mean of its pixel is
+ * rejected, so cosmic rays and other transient outliers do not enter the
+ * background.
+ */
+public class SigmaClippedEstimator extends BackgroundEstimator {
+	public static final double CLIP_SIGMA = 3;
+	// Frames accepted unconditionally to seed the mean and variance
+	private static final int WARMUP = 5;
+
+	private final int[] n_;
+
+	public SigmaClippedEstimator(int width, int height, int ijType) {
+		super(width, height, ijType);
+		n_ = new int[width * height];
+	}
+
+	@Override
+	protected void accumulate(int[] frame) {
+		boolean clip = count_ >= WARMUP;
+		for (int i = 0; i < frame.length; i++) {
+			int x = frame[i];
+			int n = n_[i];
+			if (clip && n > 1) {
+				// Shot noise is at least 1 ADU, keeps flat pixels from rejecting everything
+				double limit = CLIP_SIGMA * Math.sqrt(Math.max(m2_[i] / (n - 1), 1));
+				if (Math.abs(x - mean_[i]) > limit) {
+					continue;
+				}
+			}
+			n_[i] = n + 1;
+			update(i, x, n + 1);
+		}
+	}
+
+	@Override
+	protected double estimate(int i) {
+		return mean_[i];
+	}
+
+	@Override
+	protected int samples(int i) {
+		return n_[i];
+	}
+}
@@ -0,0 +1,356 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SpatialBackground.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import org.micromanager.utils.MMException;
+
+/**
+ * Per-frame spatial background removal for samples without a dark frame, a
+ * fast approximation of the rolling ball. The frame is shrunk by taking the
+ * minimum of blocks, opened (erosion then dilation) with a square of the
+ * given radius using the van Herk/Gil-Werman algorithm, which costs a few
+ * operations per pixel independent of the radius, and the result is
+ * interpolated bilinearly while it is subtracted from the frame. Every step
+ * runs on bands of lines through SubtractionEngine.
+ */
+public class SpatialBackground {
+	/** Background tag of frames corrected in spatial mode */
+	public static final String SOURCE = "Spatial background";
+
+	private final double radius_;
+	private final int shrink_;
+	private final int smallRadius_;
+	// Buffers of the last frame size, one set per processing thread
+	private final ThreadLocal<Scratch> scratch_ = new ThreadLocal<Scratch>();
+
+	private static final class Scratch {
+		final int width_, height_, smallWidth_, smallHeight_;
+		final int[] small_;
+		final int[] tmp_;
+		// Block minima or maxima from the top and from the bottom, by column
+		final int[] g_;
+		final int[] h_;
+		// Source columns and rows of the frame, see sourceOf
+		final int[] x0_, dx_, fx_;
+		final int[] y0_, dy_, fy_;
+
+		Scratch(int width, int height, int shrink) {
+			width_ = width;
+			height_ = height;
+			smallWidth_ = (width + shrink - 1) / shrink;
+			smallHeight_ = (height + shrink - 1) / shrink;
+			small_ = new int[smallWidth_ * smallHeight_];
+			tmp_ = new int[smallWidth_ * smallHeight_];
+			g_ = new int[smallWidth_ * smallHeight_];
+			h_ = new int[smallWidth_ * smallHeight_];
+			x0_ = new int[width];
+			dx_ = new int[width];
+			fx_ = new int[width];
+			sourceOf(shrink, smallWidth_, x0_, dx_, fx_);
+			y0_ = new int[height];
+			dy_ = new int[height];
+			fy_ = new int[height];
+			sourceOf(shrink, smallHeight_, y0_, dy_, fy_);
+		}
+	}
+
+	/**
+	 * @param radius
+	 *            - radius of the structuring element in pixels, larger than
+	 *            the objects to be kept
+	 */
+	public SpatialBackground(double radius) {
+		radius_ = Math.max(1, radius);
+		// Shrink factors as in ImageJ's rolling ball
+		shrink_ = radius_ <= 10 ? 1 : radius_ <= 30 ? 2 : radius_ <= 100 ? 4 : 8;
+		smallRadius_ = Math.max(1, (int) Math.round(radius_ / shrink_));
+	}
+
+	public double getRadius() {
+		return radius_;
+	}
+
+	public int getShrink() {
+		return shrink_;
+	}
+
+	/**
+	 * Subtracts the spatial background of pixels and adds offset, writing into
+	 * result, which may be pixels itself.
+	 *
+	 * @param pixels
+	 *            - byte[] or short[] frame of width x height
+	 * @throws MMException
+	 *             when the frame does not have width x height pixels
+	 */
+	public void subtract(SubtractionEngine engine, final Object pixels, final int width, final int height,
+			final int offset, final Object result) throws MMException {
+		if (ImageUtils2.pixelCount(pixels) != width * height || ImageUtils2.pixelCount(result) != width * height) {
+			throw new MMException("Image does not have " + width + " x " + height + " pixels");
+		}
+		Scratch scratch = scratch_.get();
+		if (scratch == null || scratch.width_ != width || scratch.height_ != height) {
+			scratch = new Scratch(width, height, shrink_);
+			scratch_.set(scratch);
+		}
+		final Scratch s = scratch;
+		final int sw = s.smallWidth_;
+		final int sh = s.smallHeight_;
+
+		engine.execute(sw, sh, new SubtractionEngine.Band() {
+			@Override
+			public void run(int from, int to) {
+				shrink(pixels, width, height, shrink_, s.small_, sw, from / sw, to / sw);
+			}
+		});
+		// Opening: erosion then dilation
+		filter(engine, s, false);
+		filter(engine, s, true);
+		engine.execute(width, height, new SubtractionEngine.Band() {
+			@Override
+			public void run(int from, int to) {
+				subtractRows(pixels, s, offset, result, from / width, to / width);
+			}
+		});
+	}
+
+	/**
+	 * Square minimum or maximum filter of the shrunk image: rows from small_
+	 * into tmp_, then columns from tmp_ back into small_. Columns are filtered
+	 * a row at a time over strips of columns, so memory is read in order.
+	 */
+	private void filter(SubtractionEngine engine, final Scratch s, final boolean max) throws MMException {
+		final int r = smallRadius_;
+		final int sw = s.smallWidth_;
+		final int sh = s.smallHeight_;
+		engine.execute(sw, sh, new SubtractionEngine.Band() {
+			@Override
+			public void run(int from, int to) {
+				int[] g = new int[sw];
+				int[] h = new int[sw];
+				for (int row = from / sw; row < to / sw; row++) {
+					filterLine(s.small_, s.tmp_, row * sw, sw, r, max, g, h);
+				}
+			}
+		});
+		engine.execute(sh, sw, new SubtractionEngine.Band() {
+			@Override
+			public void run(int from, int to) {
+				filterColumns(s.tmp_, s.small_, sw, sh, from / sh, to / sh, r, max, s.g_, s.h_);
+			}
+		});
+	}
+
+	/**
+	 * Minimum or maximum over a window of 2r+1 values of a line, clipped at
+	 * the ends, in O(1) per value (van Herk/Gil-Werman): g holds the running
+	 * value from the start of each block of 2r+1 values, h from its end, and
+	 * every full window spans the end of one block and the start of the next.
+	 *
+	 * @param g,h
+	 *            - buffers of at least n values
+	 */
+	static void filterLine(int[] src, int[] dst, int start, int n, int r, boolean max, int[] g, int[] h) {
+		int k = 2 * r + 1;
+		for (int b = 0; b < n; b += k) {
+			int e = Math.min(n, b + k) - 1;
+			g[b] = src[start + b];
+			for (int i = b + 1; i <= e; i++) {
+				g[i] = max ? Math.max(g[i - 1], src[start + i]) : Math.min(g[i - 1], src[start + i]);
+			}
+			h[e] = src[start + e];
+			for (int i = e - 1; i >= b; i--) {
+				h[i] = max ? Math.max(h[i + 1], src[start + i]) : Math.min(h[i + 1], src[start + i]);
+			}
+		}
+		int left = Math.min(r, n);
+		int right = Math.max(left, n - r);
+		// Windows clipped at the start lie in the first block
+		for (int i = 0; i < left; i++) {
+			dst[start + i] = g[Math.min(n - 1, i + r)];
+		}
+		for (int i = left; i < right; i++) {
+			int a = h[i - r];
+			int c = g[i + r];
+			dst[start + i] = max ? Math.max(a, c) : Math.min(a, c);
+		}
+		// Windows clipped at the end, h alone when they lie in one block
+		for (int i = right; i < n; i++) {
+			int a = i - r;
+			if (a / k == (n - 1) / k) {
+				dst[start + i] = h[a];
+			} else {
+				dst[start + i] = max ? Math.max(h[a], g[n - 1]) : Math.min(h[a], g[n - 1]);
+			}
+		}
+	}
+
+	/**
+	 * filterLine applied to columns [col0, col1) of a width x height image,
+	 * a row at a time. g and h are width x height buffers.
+	 */
+	static void filterColumns(int[] src, int[] dst, int width, int height, int col0, int col1, int r,
+			boolean max, int[] g, int[] h) {
+		int k = 2 * r + 1;
+		for (int b = 0; b < height; b += k) {
+			int e = Math.min(height, b + k) - 1;
+			System.arraycopy(src, b * width + col0, g, b * width + col0, col1 - col0);
+			for (int i = b + 1; i <= e; i++) {
+				int row = i * width;
+				int prev = row - width;
+				for (int c = col0; c < col1; c++) {
+					g[row + c] = max ? Math.max(g[prev + c], src[row + c]) : Math.min(g[prev + c], src[row + c]);
+				}
+			}
+			System.arraycopy(src, e * width + col0, h, e * width + col0, col1 - col0);
+			for (int i = e - 1; i >= b; i--) {
+				int row = i * width;
+				int next = row + width;
+				for (int c = col0; c < col1; c++) {
+					h[row + c] = max ? Math.max(h[next + c], src[row + c]) : Math.min(h[next + c], src[row + c]);
+				}
+			}
+		}
+		for (int i = 0; i < height; i++) {
+			int a = i - r;
+			int z = Math.min(height - 1, i + r);
+			int row = i * width;
+			if (a <= 0) {
+				System.arraycopy(g, z * width + col0, dst, row + col0, col1 - col0);
+			} else if (i + r >= height && a / k == z / k) {
+				System.arraycopy(h, a * width + col0, dst, row + col0, col1 - col0);
+			} else {
+				int ha = a * width;
+				int gz = z * width;
+				for (int c = col0; c < col1; c++) {
+					dst[row + c] = max ? Math.max(h[ha + c], g[gz + c]) : Math.min(h[ha + c], g[gz + c]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Minimum of shrink x shrink blocks for small rows [row0, row1). The
+	 * minimum over the rows of a block is taken first, a full row at a time.
+	 */
+	private static void shrink(Object pixels, int width, int height, int shrink, int[] small, int sw, int row0,
+			int row1) {
+		int[] column = new int[width];
+		for (int sy = row0; sy < row1; sy++) {
+			int yEnd = Math.min(height, (sy + 1) * shrink);
+			for (int x = 0; x < width; x++) {
+				column[x] = Integer.MAX_VALUE;
+			}
+			for (int y = sy * shrink; y < yEnd; y++) {
+				int offset = y * width;
+				if (pixels instanceof byte[]) {
+					byte[] p = (byte[]) pixels;
+					for (int x = 0; x < width; x++) {
+						column[x] = Math.min(column[x], p[offset + x] & 0xff);
+					}
+				} else {
+					short[] p = (short[]) pixels;
+					for (int x = 0; x < width; x++) {
+						column[x] = Math.min(column[x], p[offset + x] & 0xffff);
+					}
+				}
+			}
+			int base = sy * sw;
+			for (int sx = 0, x = 0; sx < sw; sx++) {
+				int m = column[x++];
+				int xEnd = Math.min(width, x - 1 + shrink);
+				for (; x < xEnd; x++) {
+					m = Math.min(m, column[x]);
+				}
+				small[base + sx] = m;
+			}
+		}
+	}
+
+	/**
+	 * Interpolates the background of frame rows [row0, row1) and subtracts it.
+	 * Each row is first interpolated between two rows of the shrunk image, in
+	 * Q7, then along the row, in Q14.
+	 */
+	private static void subtractRows(Object pixels, Scratch s, int offset, Object result, int row0, int row1) {
+		int width = s.width_;
+		int sw = s.smallWidth_;
+		int[] small = s.small_;
+		int[] x0 = s.x0_;
+		int[] dx = s.dx_;
+		int[] fx = s.fx_;
+		int[] line = new int[sw];
+		for (int y = row0; y < row1; y++) {
+			int top = s.y0_[y] * sw;
+			int bottom = (s.y0_[y] + s.dy_[y]) * sw;
+			int fy = s.fy_[y];
+			for (int sx = 0; sx < sw; sx++) {
+				line[sx] = small[top + sx] * (128 - fy) + small[bottom + sx] * fy;
+			}
+			int start = y * width;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[]) pixels;
+				byte[] out = (byte[]) result;
+				for (int x = 0; x < width; x++) {
+					int a = x0[x];
+					int f = fx[x];
+					int bg = (line[a] * (128 - f) + line[a + dx[x]] * f + 8192) >> 14;
+					int v = (p[start + x] & 0xff) - bg + offset;
+					v &= ~(v >> 31);
+					out[start + x] = (byte) (v | ((255 - v) >> 31));
+				}
+			} else {
+				short[] p = (short[]) pixels;
+				short[] out = (short[]) result;
+				for (int x = 0; x < width; x++) {
+					int a = x0[x];
+					int f = fx[x];
+					int bg = (line[a] * (128 - f) + line[a + dx[x]] * f + 8192) >> 14;
+					int v = (p[start + x] & 0xffff) - bg + offset;
+					v &= ~(v >> 31);
+					out[start + x] = (short) (v | ((65535 - v) >> 31));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maps every coordinate of the frame to the centers of the shrunk blocks:
+	 * the first source index, 0 or 1 to the second and the Q7 weight of the
+	 * second.
+	 */
+	private static void sourceOf(int shrink, int smallLength, int[] i0, int[] di, int[] f) {
+		for (int i = 0; i < i0.length; i++) {
+			double u = (i + 0.5) / shrink - 0.5;
+			int first = (int) Math.floor(u);
+			if (first < 0) {
+				i0[i] = 0;
+			} else if (first >= smallLength - 1) {
+				i0[i] = smallLength - 1;
+			} else {
+				i0[i] = first;
+				di[i] = 1;
+				f[i] = (int) Math.round((u - first) * 128);
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SubtractBackgroundMetrics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Counters and latency histogram of a SubtractBackgroundProcessor. Recording
+ * does not allocate, so it is safe to call for every frame.
+ */
+public class SubtractBackgroundMetrics implements SubtractBackgroundMetricsMBean {
+	private static final String DOMAIN = "org.micromanager.subtractbackground";
+
+	private final AtomicLong framesProcessed_ = new AtomicLong();
+	private final AtomicLong framesPassedThrough_ = new AtomicLong();
+	private final AtomicLong framesFailed_ = new AtomicLong();
+	private final AtomicLong framesLate_ = new AtomicLong();
+	private final AtomicLong framesSkipped_ = new AtomicLong();
+	private final LatencyHistogram latency_ = new LatencyHistogram();
+	private final LatencyHistogram queueWait_ = new LatencyHistogram();
+	private ObjectName name_;
+
+	public void recordProcessed(long nanos) {
+		framesProcessed_.incrementAndGet();
+		latency_.record(nanos);
+	}
+
+	/**
+	 * A frame was forwarded unmodified, e.g. because of its type.
+	 */
+	public void recordPassedThrough() {
+		framesPassedThrough_.incrementAndGet();
+	}
+
+	/**
+	 * A frame was forwarded unmodified because processing failed.
+	 */
+	public void recordFailed() {
+		framesFailed_.incrementAndGet();
+		framesPassedThrough_.incrementAndGet();
+	}
+
+	/**
+	 * A frame was forwarded uncorrected because it arrived late.
+	 */
+	public void recordLate() {
+		framesLate_.incrementAndGet();
+		framesPassedThrough_.incrementAndGet();
+	}
+
+	/**
+	 * A frame was forwarded uncorrected by the skip every Nth policy.
+	 */
+	public void recordSkipped() {
+		framesSkipped_.incrementAndGet();
+		framesPassedThrough_.incrementAndGet();
+	}
+
+	/**
+	 * Time a frame spent queued between acquisition and processing.
+	 */
+	public void recordQueueWait(long nanos) {
+		queueWait_.record(nanos);
+	}
+
+	@Override
+	public long getFramesProcessed() {
+		return framesProcessed_.get();
+	}
+
+	@Override
+	public long getFramesPassedThrough() {
+		return framesPassedThrough_.get();
+	}
+
+	@Override
+	public long getFramesFailed() {
+		return framesFailed_.get();
+	}
+
+	@Override
+	public long getFramesLate() {
+		return framesLate_.get();
+	}
+
+	@Override
+	public long getFramesSkipped() {
+		return framesSkipped_.get();
+	}
+
+	@Override
+	public double getLatencyMeanMicros() {
+		return latency_.getMean() / 1000;
+	}
+
+	@Override
+	public double getLatencyMedianMicros() {
+		return latency_.getPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getLatency99Micros() {
+		return latency_.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyMaxMicros() {
+		return latency_.getMax() / 1000.0;
+	}
+
+	@Override
+	public double getQueueWaitMeanMicros() {
+		return queueWait_.getMean() / 1000;
+	}
+
+	@Override
+	public String getSummary() {
+		return String.format(
+				"%d done, %d passed (%d late, %d skipped), latency %.0f/%.0f/%.0f us (p50/p99/max), queued %.1f ms",
+				getFramesProcessed(), getFramesPassedThrough(), getFramesLate(), getFramesSkipped(),
+				getLatencyMedianMicros(), getLatency99Micros(), getLatencyMaxMicros(),
+				getQueueWaitMeanMicros() / 1000);
+	}
+
+	@Override
+	public void reset() {
+		framesProcessed_.set(0);
+		framesPassedThrough_.set(0);
+		framesFailed_.set(0);
+		framesLate_.set(0);
+		framesSkipped_.set(0);
+		latency_.reset();
+		queueWait_.reset();
+	}
+
+	/**
+	 * Registers this object with the platform MBean server.
+	 *
+	 * @param id
+	 *            - distinguishes several processors
+	 */
+	public synchronized void register(String id) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(id));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+				name_ = name;
+			}
+		} catch (Exception ex) {
+			ReportingUtils.logError(ex, "Failed to register SubtractBackground metrics");
+		}
+	}
+
+	public synchronized void unregister() {
+		if (name_ == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name_);
+		} catch (Exception ex) {
+			ReportingUtils.logError(ex, "Failed to unregister SubtractBackground metrics");
+		}
+		name_ = null;
+	}
+}
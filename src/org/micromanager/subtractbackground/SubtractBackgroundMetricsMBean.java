@@ -0,0 +1,51 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SubtractBackgroundMetricsMBean.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+/**
+ * JMX view of SubtractBackgroundMetrics. Durations are in microseconds.
+ */
+public interface SubtractBackgroundMetricsMBean {
+	long getFramesProcessed();
+
+	long getFramesPassedThrough();
+
+	long getFramesFailed();
+
+	long getFramesLate();
+
+	long getFramesSkipped();
+
+	double getLatencyMeanMicros();
+
+	double getLatencyMedianMicros();
+
+	double getLatency99Micros();
+
+	double getLatencyMaxMicros();
+
+	double getQueueWaitMeanMicros();
+
+	String getSummary();
+
+	void reset();
+}
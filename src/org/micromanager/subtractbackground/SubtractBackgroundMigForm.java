@@ -33,21 +33,29 @@ import java.awt.event.FocusListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 import java.util.prefs.Preferences;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JProgressBar;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.WindowConstants;
 
@@ -55,17 +63,16 @@ import org.micromanager.MMStudio;
 import org.micromanager.api.DataProcessor;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.FileDialogs;
-import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMDialog;
+import org.micromanager.utils.MMException;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.WaitDialog;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import mmcorej.TaggedImage;
 import net.miginfocom.swing.MigLayout;
 
@@ -81,28 +88,111 @@ public class SubtractBackgroundMigForm extends MMDialog {
 	private final SubtractBackgroundProcessor processor_;
 	private static SpinnerNumberModel spinnerOffsetModel_;
 	private static SpinnerNumberModel spinnerAverageModel_;
-	private final String[] IMAGESUFFIXES = { "tif", "tiff", "jpg", "png" };
+	private final String[] IMAGESUFFIXES = { "tif", "tiff", "jpg", "png", RawBackgroundFile.SUFFIX };
 	private String backgroundFileName_;
-	private String statusMessage_;
+	private String flatFileName_ = "";
 	private final Font fontSmall_;
 	private final Font fontSmallBold_;
 	private final JCheckBox chkEnable_;
+	private final JCheckBox chkInPlace_;
+	private final JCheckBox chkStatistics_;
+	private final JCheckBox chkDeferred_;
+	private final JCheckBox chkStream_;
+	private final JComboBox<BackgroundEstimator.Method> estimatorCombo_;
+	private final JCheckBox chkRaw_;
+	private final JCheckBox chkLibrary_;
+	private final JSpinner librarySpinner_;
+	private final JCheckBox chkRolling_;
+	private final JSpinner rollingIntervalSpinner_;
+	private final JSpinner rollingWindowSpinner_;
+	private final JCheckBox chkSpatial_;
+	private final JSpinner spatialSpinner_;
+	private final JComboBox<String> channelCombo_;
+	private final JCheckBox chkChannelCamera_;
+	private final JLabel channelsLabel_;
+	private final JComboBox<OverloadPolicy.Mode> overloadCombo_;
+	private final JSpinner budgetSpinner_;
+	private final JSpinner skipSpinner_;
+	private final JCheckBox chkCalibration_;
+	private final JLabel calibrationLabel_;
+	// Dark series of a calibration in progress, null before it was snapped
+	private BackgroundEstimator darkSeries_;
+	private String calibrationFileName_;
+	// Camera TAB channel -> background file of the channel backgrounds
+	private final Map<String, String> channelPaths_ = new LinkedHashMap<String, String>();
 	private final Dimension buttonSize_;
 	private final JLabel statusLabel_;
+	private final JLabel metricsLabel_;
+	private final Timer statusTimer_;
+	private long lastFrames_;
+	private long lastTime_;
+	private int lastSummary_;
 	private final JButton snapButton_;
 	private final JTextField textBG;
+	private final JTextField textFlat_;
 	private long fpsInterval_;
 
 	private static final String LABEL_BACKGROUND = "Background Image";
+	private static final String LABEL_FLAT = "Flat-field Image";
 	private static final String LABEL_EXECUTE = "Subtract BG from acquired image ?";
 	private static final String LABEL_AVR = "BG averaging count:";
 	private static final String LABEL_OFFSET = "+ Offset (%): ";
+	private static final String LABEL_IN_PLACE = "Subtract in place (no copy)";
+	private static final String LABEL_STATISTICS = "Write frame statistics to tags";
+	private static final String LABEL_DEFERRED = "Defer subtraction (tag frames, correct on read)";
+	private static final String LABEL_THREADS = "Threads:";
+	private static final String LABEL_PIPELINE = "Frames in flight:";
+	private static final String LABEL_STREAM = "Acquire BG as sequence";
+	private static final String LABEL_OVERLOAD = "When behind:";
+	private static final String LABEL_BUDGET = "Latency budget (ms):";
+	private static final String LABEL_SKIP = "Skip every (frames):";
+	private static final String LABEL_ESTIMATOR = "BG estimator:";
+	private static final String LABEL_LIBRARY = "Pick BG by camera settings (BG folder)";
+	private static final String LABEL_LIBRARY_MB = "BG cache (MB):";
+	private static final String LABEL_ROLLING = "Rolling BG from acquired frames";
+	private static final String LABEL_ROLLING_INTERVAL = "Update BG every (frames):";
+	private static final String LABEL_ROLLING_WINDOW = "Rolling window (updates):";
+	private static final String LABEL_SPATIAL = "Spatial BG from each frame (no BG image)";
+	private static final String LABEL_SPATIAL_RADIUS = "Spatial BG radius (px):";
+	private static final String LABEL_CHANNEL = "Channel:";
+	private static final String LABEL_CHANNEL_CAMERA = "Channel BG for the current camera only";
+	private static final String LABEL_CALIBRATION = "Per-pixel offset/gain (photon transfer)";
+	private static final String LABEL_RAW = "Save BG as raw (." + RawBackgroundFile.SUFFIX + ")";
 	private static final String LABEL_NONE = "None";
 	private static final String PREF_OFFSET = "OffsetValue";
 	private static final String PREF_ENABLE = "UseSubtractBG";
 	private static final String PREF_BG_PATH = "BackgroundFileName";
+	private static final String PREF_FLAT_PATH = "FlatFileName";
 	private static final String PREF_AVR_COUNT = "AverageAccumCount";
+	private static final String PREF_IN_PLACE = "SubtractInPlace";
+	private static final String PREF_STATISTICS = "WriteFrameStatistics";
+	private static final String PREF_DEFERRED = "DeferSubtraction";
+	private static final String PREF_THREADS = "ThreadCount";
+	private static final String PREF_PIPELINE = "PipelineDepth";
+	private static final String PREF_OVERLOAD = "OverloadPolicy";
+	private static final String PREF_BUDGET = "LatencyBudgetMs";
+	private static final String PREF_SKIP = "SkipEveryNth";
+	private static final String PREF_STREAM = "StreamBackground";
+	private static final String PREF_ESTIMATOR = "BackgroundEstimator";
+	private static final String PREF_RAW = "SaveBackgroundRaw";
+	private static final String PREF_LIBRARY = "UseBackgroundLibrary";
+	private static final String PREF_LIBRARY_MB = "BackgroundLibraryMB";
+	private static final String PREF_ROLLING = "UseRollingBackground";
+	private static final String PREF_ROLLING_INTERVAL = "RollingBackgroundInterval";
+	private static final String PREF_ROLLING_WINDOW = "RollingBackgroundWindow";
+	private static final String PREF_SPATIAL = "UseSpatialBackground";
+	private static final String PREF_SPATIAL_RADIUS = "SpatialBackgroundRadius";
+	private static final String PREF_CHANNELS = "ChannelBackgrounds";
+	private static final String PREF_CALIBRATION = "UseCalibration";
+	private static final String PREF_CALIBRATION_PATH = "CalibrationFileName";
+	private static final long SEQUENCE_POLL_NS = 100000;
+	private static final int STATUS_INTERVAL_MS = 250;
+	private static final int METRICS_INTERVAL_MS = 1000;
 	private static final String ERR_SUBTRACTION = "Failed to set background image";
+	private static final String ERR_FLAT = "Failed to set flat-field image";
+	private static final String ERR_CALIBRATION = "Snap a dark series first, then a flat series";
+	private static final String ERR_CHANNEL = "Select a channel and a background image first";
+	private static final String ERR_FLAT_SIZE = "Flat-field image is not applied, its size differs from the background image";
 
 	/**
 	 * entry point to test
@@ -173,7 +263,19 @@ public class SubtractBackgroundMigForm extends MMDialog {
 				saveAndSetBackgroundImage();
 			}
 		});
-		add(snapButton_, "wrap");
+		add(snapButton_);
+
+		chkStream_ = new JCheckBox();
+		chkStream_.setText(LABEL_STREAM);
+		chkStream_.setFont(fontSmall_);
+		chkStream_.setSelected(prefs_.getBoolean(PREF_STREAM, false));
+		chkStream_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				prefs_.putBoolean(PREF_STREAM, chkStream_.isSelected());
+			}
+		});
+		add(chkStream_, "span 2, wrap");
 
 		// Background image setting
 		JLabel darkImageLabel = new JLabel("BG Image:");
@@ -219,6 +321,47 @@ public class SubtractBackgroundMigForm extends MMDialog {
 		add(textBG, "span 2, growx");
 		add(btnBG, "wrap");
 
+		// Flat-field image setting, empty for dark subtraction only
+		JLabel flatImageLabel = new JLabel("Flat Image:");
+		flatImageLabel.setFont(fontSmall_);
+
+		textFlat_ = new JTextField();
+		textFlat_.setFont(fontSmall_);
+		textFlat_.setHorizontalAlignment(JTextField.RIGHT);
+		textFlat_.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(java.awt.event.ActionEvent evt) {
+				processFlatImage(textFlat_.getText());
+			}
+		});
+		textFlat_.addFocusListener(new FocusListener() {
+			@Override
+			public void focusGained(FocusEvent fe) {
+			}
+
+			@Override
+			public void focusLost(FocusEvent fe) {
+				processFlatImage(textFlat_.getText());
+			}
+		});
+		textFlat_.setText(processFlatImage(prefs_.get(PREF_FLAT_PATH, "")));
+
+		final JButton btnFlat = mcsButton(buttonSize_, fontSmall_);
+		btnFlat.setText("...");
+		btnFlat.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(java.awt.event.ActionEvent evt) {
+				File f = FileDialogs.openFile(mcsPluginWindow, LABEL_FLAT,
+						new FileDialogs.FileType("MMAcq", LABEL_FLAT, flatFileName_, true, IMAGESUFFIXES));
+				if (f != null) {
+					textFlat_.setText(processFlatImage(f.getAbsolutePath()));
+				}
+			}
+		});
+		add(flatImageLabel);
+		add(textFlat_, "span 2, growx");
+		add(btnFlat, "wrap");
+
 		// Averager spinner
 		JLabel lblAvr = new JLabel(LABEL_AVR);
 		lblAvr.setFont(fontSmall_);
@@ -244,6 +387,38 @@ public class SubtractBackgroundMigForm extends MMDialog {
 		add(lblAvr);
 		add(avrSpinner, "growx, wrap");
 
+		// Background estimator
+		JLabel estimatorLabel = new JLabel(LABEL_ESTIMATOR);
+		estimatorLabel.setFont(fontSmall_);
+		estimatorCombo_ = new JComboBox<BackgroundEstimator.Method>(BackgroundEstimator.Method.values());
+		estimatorCombo_.setFont(fontSmall_);
+		try {
+			estimatorCombo_.setSelectedItem(BackgroundEstimator.Method.valueOf(
+					prefs_.get(PREF_ESTIMATOR, BackgroundEstimator.Method.MEAN.name())));
+		} catch (IllegalArgumentException e) {
+			estimatorCombo_.setSelectedItem(BackgroundEstimator.Method.MEAN);
+		}
+		estimatorCombo_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				prefs_.put(PREF_ESTIMATOR, ((BackgroundEstimator.Method) estimatorCombo_.getSelectedItem()).name());
+			}
+		});
+		add(estimatorLabel);
+		add(estimatorCombo_, "growx, wrap");
+
+		chkRaw_ = new JCheckBox();
+		chkRaw_.setText(LABEL_RAW);
+		chkRaw_.setFont(fontSmall_);
+		chkRaw_.setSelected(prefs_.getBoolean(PREF_RAW, false));
+		chkRaw_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				prefs_.putBoolean(PREF_RAW, chkRaw_.isSelected());
+			}
+		});
+		add(chkRaw_, "span 3, wrap");
+
 		// Offset spinner
 		JLabel offsetLabel = new JLabel(LABEL_OFFSET);
 		offsetLabel.setFont(fontSmall_);
@@ -268,10 +443,344 @@ public class SubtractBackgroundMigForm extends MMDialog {
 			}
 		});
 		add(offsetSpinner, "growx, wrap");
+
+		// In-place subtraction
+		chkInPlace_ = new JCheckBox();
+		chkInPlace_.setText(LABEL_IN_PLACE);
+		chkInPlace_.setFont(fontSmall_);
+		chkInPlace_.setSelected(prefs_.getBoolean(PREF_IN_PLACE, false));
+		processor_.setInPlace(chkInPlace_.isSelected());
+		chkInPlace_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				processor_.setInPlace(chkInPlace_.isSelected());
+				prefs_.putBoolean(PREF_IN_PLACE, chkInPlace_.isSelected());
+			}
+		});
+		add(chkInPlace_, "span 3, wrap");
+
+		// Mean, min, max and clipped pixels, collected while subtracting
+		chkStatistics_ = new JCheckBox();
+		chkStatistics_.setText(LABEL_STATISTICS);
+		chkStatistics_.setFont(fontSmall_);
+		chkStatistics_.setSelected(prefs_.getBoolean(PREF_STATISTICS, false));
+		processor_.setStatistics(chkStatistics_.isSelected());
+		chkStatistics_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				processor_.setStatistics(chkStatistics_.isSelected());
+				prefs_.putBoolean(PREF_STATISTICS, chkStatistics_.isSelected());
+			}
+		});
+		add(chkStatistics_, "span 3, wrap");
+
+		// Deferred mode, frames are only tagged during acquisition
+		chkDeferred_ = new JCheckBox();
+		chkDeferred_.setText(LABEL_DEFERRED);
+		chkDeferred_.setFont(fontSmall_);
+		chkDeferred_.setSelected(prefs_.getBoolean(PREF_DEFERRED, false));
+		processor_.setDeferred(chkDeferred_.isSelected());
+		chkDeferred_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				processor_.setDeferred(chkDeferred_.isSelected());
+				prefs_.putBoolean(PREF_DEFERRED, chkDeferred_.isSelected());
+			}
+		});
+		add(chkDeferred_, "span 3, wrap");
+
+		// Thread count spinner
+		JLabel threadsLabel = new JLabel(LABEL_THREADS);
+		threadsLabel.setFont(fontSmall_);
+		add(threadsLabel);
+
+		final JSpinner threadsSpinner = new JSpinner();
+		threadsSpinner.setFont(fontSmall_);
+		int maxThreads = Math.max(Runtime.getRuntime().availableProcessors(), 64);
+		int threads = Math.max(1, Math.min(maxThreads, prefs_.getInt(PREF_THREADS, processor_.getThreadCount())));
+		threadsSpinner.setModel(new SpinnerNumberModel(threads, 1, maxThreads, 1));
+		processor_.setThreadCount(threads, processor_.getParallelThreshold());
+		threadsSpinner.addChangeListener(new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				int v = (Integer) threadsSpinner.getValue();
+				processor_.setThreadCount(v, processor_.getParallelThreshold());
+				prefs_.putInt(PREF_THREADS, v);
+			}
+		});
+		add(threadsSpinner, "growx, wrap");
+
+		// Pipeline depth spinner, 1 processes frames one by one
+		JLabel pipelineLabel = new JLabel(LABEL_PIPELINE);
+		pipelineLabel.setFont(fontSmall_);
+		add(pipelineLabel);
+
+		final JSpinner pipelineSpinner = new JSpinner();
+		pipelineSpinner.setFont(fontSmall_);
+		int depth = Math.max(1, Math.min(maxThreads, prefs_.getInt(PREF_PIPELINE, processor_.getPipelineDepth())));
+		pipelineSpinner.setModel(new SpinnerNumberModel(depth, 1, maxThreads, 1));
+		processor_.setPipelineDepth(depth);
+		pipelineSpinner.addChangeListener(new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				int v = (Integer) pipelineSpinner.getValue();
+				processor_.setPipelineDepth(v);
+				prefs_.putInt(PREF_PIPELINE, v);
+			}
+		});
+		add(pipelineSpinner, "growx, wrap");
+
+		// Overload policy, frames may be forwarded uncorrected instead of waiting
+		JLabel overloadLabel = new JLabel(LABEL_OVERLOAD);
+		overloadLabel.setFont(fontSmall_);
+		add(overloadLabel);
+		overloadCombo_ = new JComboBox<OverloadPolicy.Mode>(OverloadPolicy.Mode.values());
+		overloadCombo_.setFont(fontSmall_);
+		try {
+			overloadCombo_.setSelectedItem(OverloadPolicy.Mode.valueOf(
+					prefs_.get(PREF_OVERLOAD, OverloadPolicy.Mode.STRICT.name())));
+		} catch (IllegalArgumentException ex) {
+			overloadCombo_.setSelectedItem(OverloadPolicy.Mode.STRICT);
+		}
+		overloadCombo_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				updateOverload();
+			}
+		});
+		add(overloadCombo_, "growx, wrap");
+
+		JLabel budgetLabel = new JLabel(LABEL_BUDGET);
+		budgetLabel.setFont(fontSmall_);
+		add(budgetLabel);
+		budgetSpinner_ = new JSpinner();
+		budgetSpinner_.setFont(fontSmall_);
+		int budget = Math.max(0, Math.min(60000, prefs_.getInt(PREF_BUDGET, 100)));
+		budgetSpinner_.setModel(new SpinnerNumberModel(budget, 0, 60000, 10));
+		budgetSpinner_.addChangeListener(new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				updateOverload();
+			}
+		});
+		add(budgetSpinner_, "growx, wrap");
+
+		JLabel skipLabel = new JLabel(LABEL_SKIP);
+		skipLabel.setFont(fontSmall_);
+		add(skipLabel);
+		skipSpinner_ = new JSpinner();
+		skipSpinner_.setFont(fontSmall_);
+		int skip = Math.max(2, Math.min(1000, prefs_.getInt(PREF_SKIP, 2)));
+		skipSpinner_.setModel(new SpinnerNumberModel(skip, 2, 1000, 1));
+		skipSpinner_.addChangeListener(new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				updateOverload();
+			}
+		});
+		add(skipSpinner_, "growx, wrap");
+		updateOverload();
+
+		// Background library
+		chkLibrary_ = new JCheckBox();
+		chkLibrary_.setText(LABEL_LIBRARY);
+		chkLibrary_.setFont(fontSmall_);
+		chkLibrary_.setSelected(prefs_.getBoolean(PREF_LIBRARY, false));
+		chkLibrary_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				prefs_.putBoolean(PREF_LIBRARY, chkLibrary_.isSelected());
+				updateLibrary();
+			}
+		});
+		add(chkLibrary_, "span 3, wrap");
+
+		JLabel libraryLabel = new JLabel(LABEL_LIBRARY_MB);
+		libraryLabel.setFont(fontSmall_);
+		add(libraryLabel);
+		librarySpinner_ = new JSpinner();
+		librarySpinner_.setFont(fontSmall_);
+		int libraryMB = Math.max(16, Math.min(65536, prefs_.getInt(PREF_LIBRARY_MB, 512)));
+		librarySpinner_.setModel(new SpinnerNumberModel(libraryMB, 16, 65536, 16));
+		librarySpinner_.addChangeListener(new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				int v = (Integer) librarySpinner_.getValue();
+				prefs_.putInt(PREF_LIBRARY_MB, v);
+				BackgroundLibrary library = processor_.getLibrary();
+				if (library != null) {
+					library.setBudget((long) v << 20);
+				}
+			}
+		});
+		add(librarySpinner_, "growx, wrap");
+		updateLibrary();
+
+		// Rolling background
+		javax.swing.event.ChangeListener rollingListener = new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				updateRolling();
+			}
+		};
+		chkRolling_ = new JCheckBox();
+		chkRolling_.setText(LABEL_ROLLING);
+		chkRolling_.setFont(fontSmall_);
+		chkRolling_.setSelected(prefs_.getBoolean(PREF_ROLLING, false));
+		chkRolling_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				updateRolling();
+			}
+		});
+		add(chkRolling_, "span 3, wrap");
+
+		JLabel rollingIntervalLabel = new JLabel(LABEL_ROLLING_INTERVAL);
+		rollingIntervalLabel.setFont(fontSmall_);
+		add(rollingIntervalLabel);
+		rollingIntervalSpinner_ = new JSpinner();
+		rollingIntervalSpinner_.setFont(fontSmall_);
+		int interval = Math.max(1, Math.min(10000, prefs_.getInt(PREF_ROLLING_INTERVAL, 10)));
+		rollingIntervalSpinner_.setModel(new SpinnerNumberModel(interval, 1, 10000, 1));
+		rollingIntervalSpinner_.addChangeListener(rollingListener);
+		add(rollingIntervalSpinner_, "growx, wrap");
+
+		JLabel rollingWindowLabel = new JLabel(LABEL_ROLLING_WINDOW);
+		rollingWindowLabel.setFont(fontSmall_);
+		add(rollingWindowLabel);
+		rollingWindowSpinner_ = new JSpinner();
+		rollingWindowSpinner_.setFont(fontSmall_);
+		int window = Math.max(1, Math.min(10000, prefs_.getInt(PREF_ROLLING_WINDOW, 16)));
+		rollingWindowSpinner_.setModel(new SpinnerNumberModel(window, 1, 10000, 1));
+		rollingWindowSpinner_.addChangeListener(rollingListener);
+		add(rollingWindowSpinner_, "growx, wrap");
+		updateRolling();
+
+		// Spatial background
+		chkSpatial_ = new JCheckBox();
+		chkSpatial_.setText(LABEL_SPATIAL);
+		chkSpatial_.setFont(fontSmall_);
+		chkSpatial_.setSelected(prefs_.getBoolean(PREF_SPATIAL, false));
+		chkSpatial_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				updateSpatial();
+			}
+		});
+		add(chkSpatial_, "span 3, wrap");
+
+		JLabel spatialLabel = new JLabel(LABEL_SPATIAL_RADIUS);
+		spatialLabel.setFont(fontSmall_);
+		add(spatialLabel);
+		spatialSpinner_ = new JSpinner();
+		spatialSpinner_.setFont(fontSmall_);
+		int radius = Math.max(1, Math.min(1000, prefs_.getInt(PREF_SPATIAL_RADIUS, 50)));
+		spatialSpinner_.setModel(new SpinnerNumberModel(radius, 1, 1000, 1));
+		spatialSpinner_.addChangeListener(new javax.swing.event.ChangeListener() {
+			@Override
+			public void stateChanged(javax.swing.event.ChangeEvent evt) {
+				updateSpatial();
+			}
+		});
+		add(spatialSpinner_, "growx, wrap");
+		updateSpatial();
+
+		// Channel backgrounds, the current BG image is assigned to a channel
+		JLabel channelLabel = new JLabel(LABEL_CHANNEL);
+		channelLabel.setFont(fontSmall_);
+		add(channelLabel);
+		channelCombo_ = new JComboBox<String>(getChannelNames());
+		channelCombo_.setEditable(true);
+		channelCombo_.setFont(fontSmall_);
+		add(channelCombo_, "span 2, growx, wrap");
+
+		chkChannelCamera_ = new JCheckBox();
+		chkChannelCamera_.setText(LABEL_CHANNEL_CAMERA);
+		chkChannelCamera_.setFont(fontSmall_);
+		add(chkChannelCamera_, "span 3, wrap");
+
+		JButton btnChannel = new JButton("Use BG for channel");
+		btnChannel.setFont(fontSmall_);
+		btnChannel.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				assignChannelBackground();
+			}
+		});
+		JButton btnClearChannels = new JButton("Clear");
+		btnClearChannels.setFont(fontSmall_);
+		btnClearChannels.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				processor_.getChannelBackgrounds().clear();
+				channelPaths_.clear();
+				saveChannelBackgrounds();
+			}
+		});
+		channelsLabel_ = new JLabel(" ");
+		channelsLabel_.setFont(fontSmall_);
+		add(btnChannel);
+		add(btnClearChannels);
+		add(channelsLabel_, "wrap");
+		loadChannelBackgrounds();
+
+		// Per-pixel calibration from a dark and a flat series
+		chkCalibration_ = new JCheckBox();
+		chkCalibration_.setText(LABEL_CALIBRATION);
+		chkCalibration_.setFont(fontSmall_);
+		chkCalibration_.setSelected(prefs_.getBoolean(PREF_CALIBRATION, false));
+		chkCalibration_.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				updateCalibration();
+			}
+		});
+		add(chkCalibration_, "span 3, wrap");
+
+		JButton btnDark = new JButton("Snap dark series");
+		btnDark.setFont(fontSmall_);
+		btnDark.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				darkSeries_ = snapSeries("Averaging dark images...");
+				if (darkSeries_ != null) {
+					calibrationLabel_.setText("Dark: " + darkSeries_.getCount() + " frames");
+				}
+			}
+		});
+		JButton btnFlatSeries = new JButton("Snap flat series");
+		btnFlatSeries.setFont(fontSmall_);
+		btnFlatSeries.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				calibrate();
+			}
+		});
+		calibrationLabel_ = new JLabel(" ");
+		calibrationLabel_.setFont(fontSmall_);
+		add(btnDark);
+		add(btnFlatSeries);
+		add(calibrationLabel_, "wrap");
+		calibrationFileName_ = prefs_.get(PREF_CALIBRATION_PATH, "");
+		updateCalibration();
+
+		// Live metrics summary
+		metricsLabel_ = new JLabel(" ");
+		metricsLabel_.setFont(fontSmall_);
+		add(metricsLabel_, "span 3, wrap");
+		lastTime_ = System.nanoTime();
+		statusTimer_ = new Timer(STATUS_INTERVAL_MS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				updateStatus();
+			}
+		});
+		statusTimer_.start();
 	}
 
 	@Override
 	public void dispose() {
+		statusTimer_.stop();
 		super.dispose();
 		processor_.setMyFrameToNull();
 	}
@@ -294,23 +803,77 @@ public class SubtractBackgroundMigForm extends MMDialog {
 		return button;
 	}
 
-	public synchronized void setStatus(final String status) {
-		statusMessage_ = status;
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				// update the statusLabel from this thread
-				if (status != null) {
-					statusLabel_.setText(status);
-				}
+	/**
+	 * Polls the processor status on the EDT, called by statusTimer_
+	 */
+	private void updateStatus() {
+		long frames = processor_.getMetrics().getFramesProcessed();
+		long now = System.nanoTime();
+		double fps = (frames - lastFrames_) * 1e9 / Math.max(1, now - lastTime_);
+		lastFrames_ = frames;
+		lastTime_ = now;
+		String status = processor_.getStatus();
+		String error = processor_.getLastError();
+		StringBuilder text = new StringBuilder(status != null ? status : " ");
+		if (fps > 0) {
+			text.append(String.format(" %.1f fps", fps));
+		}
+		if (error != null && !error.equals(status)) {
+			text.append(" (last error: ").append(error).append(")");
+		}
+		statusLabel_.setText(text.toString());
+		lastSummary_ += STATUS_INTERVAL_MS;
+		if (lastSummary_ >= METRICS_INTERVAL_MS) {
+			lastSummary_ = 0;
+			metricsLabel_.setText(processor_.getMetrics().getSummary());
+		}
+	}
+
+	/**
+	 * Sets the flat-field image, an empty name turns flat-field correction off.
+	 * Returns the file name if successful, empty string otherwise.
+	 * 
+	 * @param fileName
+	 * @return fileName
+	 */
+	private String processFlatImage(String fileName) {
+		if (fileName.equals(flatFileName_)) {
+			return flatFileName_;
+		}
+		ImageProcessor flat = null;
+		if (!fileName.equals("")) {
+			try {
+				flat = RawBackgroundFile.open(new File(fileName));
+			} catch (IOException ex) {
+				ReportingUtils.logError(ex);
 			}
-		});
+			if (flat == null) {
+				ReportingUtils.showMessage(ERR_FLAT);
+				fileName = "";
+			}
+		}
+		processor_.setFlatImage(flat, flat != null ? new File(fileName).getAbsolutePath() : null);
+		flatFileName_ = fileName;
+		prefs_.put(PREF_FLAT_PATH, flatFileName_);
+		if (flat != null && processor_.getBackgroundImage() != null
+				&& !processor_.getCorrectionState().isFlatFielded()) {
+			ReportingUtils.showMessage(ERR_FLAT_SIZE);
+		}
+		return flatFileName_;
 	}
 
-	public synchronized String getStatus() {
-		String status = statusMessage_;
-		statusMessage_ = null;
-		return status;
+	/**
+	 * Returns the hot pixels saved with a background, null if there are none
+	 */
+	private int[] readHotPixels(File file, ImageProcessor background) {
+		try {
+			int[] hotPixels = HotPixelMap.read(HotPixelMap.fileFor(file), background.getWidth(),
+					background.getHeight());
+			return hotPixels != null && hotPixels.length > 0 ? hotPixels : null;
+		} catch (IOException ex) {
+			ReportingUtils.logError(ex);
+			return null;
+		}
 	}
 
 	/**
@@ -325,12 +888,20 @@ public class SubtractBackgroundMigForm extends MMDialog {
 			fileName = "";
 		}
 		if (!fileName.equals("")) {
-			ij.io.Opener opener = new ij.io.Opener();
-			ImagePlus ip = opener.openImage(fileName);
-			if (ip != null) {
-				processor_.setBackgroundImage(ip.getProcessor());
+			ImageProcessor background = null;
+			try {
+				background = RawBackgroundFile.open(new File(fileName));
+			} catch (IOException ex) {
+				ReportingUtils.logError(ex);
+			}
+			if (background != null) {
+				processor_.setBackgroundImage(background, new File(fileName).getAbsolutePath(),
+						readHotPixels(new File(fileName), background));
 				backgroundFileName_ = fileName;
 				prefs_.put(PREF_BG_PATH, backgroundFileName_);
+				if (chkLibrary_ != null) {
+					updateLibrary();
+				}
 				return backgroundFileName_;
 			}
 		}
@@ -348,7 +919,7 @@ public class SubtractBackgroundMigForm extends MMDialog {
 	 */
 	public void saveAndSetBackgroundImage() {
 		// Disable current enabled data processors
-		List<DataProcessor<TaggedImage>> enabledProcessors = new ArrayList<DataProcessor<TaggedImage>>();
+		final List<DataProcessor<TaggedImage>> enabledProcessors = new ArrayList<DataProcessor<TaggedImage>>();
 		for (DataProcessor<TaggedImage> dp : gui_.getImageProcessorPipeline()) {
 			if (dp.getIsEnabled() == true) {
 				enabledProcessors.add(dp);
@@ -356,74 +927,437 @@ public class SubtractBackgroundMigForm extends MMDialog {
 			}
 		}
 		fpsInterval_ = getInterval();
-		boolean wasLiveModeOn = gui_.isLiveModeOn();
+		final boolean wasLiveModeOn = gui_.isLiveModeOn();
 		if (wasLiveModeOn) {
 			gui_.enableLiveMode(false);
 		}
+		if (chkStream_.isSelected()) {
+			streamBackgroundImage(enabledProcessors, wasLiveModeOn);
+			return;
+		}
 		final WaitDialog waitDlg = new WaitDialog("Averaging background images...");
 		waitDlg.setAlwaysOnTop(true);
 		waitDlg.showDialog();
 		try {
-			// try first image.
-			TaggedImage bg = mmc_.getLastTaggedImage();
-			String type = MDUtils.getPixelType(bg.tags);
-			if (!(type.equals("GRAY8") || type.equals("GRAY16"))) {
-				ReportingUtils.showError("Image format error. Nothing saved.");
+			BackgroundEstimator estimator = newEstimator();
+			if (estimator == null) {
 				return;
 			}
-			int ijType = type.equals("GRAY16") ? ImagePlus.GRAY16 : ImagePlus.GRAY8;
-			int count = (int) prefs_.getDouble(PREF_AVR_COUNT, 1);
-			int height = MDUtils.getHeight(bg.tags);
-			int width = MDUtils.getWidth(bg.tags);
-			int pixelCount = height * width;
-			int[] sum = new int[pixelCount];
-			for (int i = 0; i < count; i++) {
-				mmc_.snapImage();
-				TaggedImage ti = mmc_.getTaggedImage();
-				ImageProcessor newIP = ImageUtils.makeProcessor(ti);
-				for (int j = 0; j < pixelCount; j++) {
-					sum[j] += (int) newIP.get(j);
+			snapFrames(estimator);
+			saveBackground(estimator);
+		} catch (Exception ex) {
+			ReportingUtils.logError("Couldnt get tagged image.");
+		} finally {
+			waitDlg.closeDialog();
+			restoreAcquisition(enabledProcessors, wasLiveModeOn);
+		}
+	}
+
+	/**
+	 * Snaps the averaging count of frames into estimator
+	 */
+	private void snapFrames(BackgroundEstimator estimator) throws Exception {
+		int count = getAverageCount();
+		for (int i = 0; i < count; i++) {
+			mmc_.snapImage();
+			TaggedImage ti = mmc_.getTaggedImage();
+			estimator.add(ti.pix);
+			Thread.sleep(fpsInterval_);
+		}
+	}
+
+	/**
+	 * Snaps a series for the calibration with processors and live mode off.
+	 * The mean estimator is used, it keeps the variance of every pixel.
+	 *
+	 * @return the series, null when it failed
+	 */
+	private BackgroundEstimator snapSeries(String message) {
+		final List<DataProcessor<TaggedImage>> enabledProcessors = new ArrayList<DataProcessor<TaggedImage>>();
+		for (DataProcessor<TaggedImage> dp : gui_.getImageProcessorPipeline()) {
+			if (dp.getIsEnabled() == true) {
+				enabledProcessors.add(dp);
+				dp.setEnabled(false);
+			}
+		}
+		fpsInterval_ = getInterval();
+		final boolean wasLiveModeOn = gui_.isLiveModeOn();
+		if (wasLiveModeOn) {
+			gui_.enableLiveMode(false);
+		}
+		final WaitDialog waitDlg = new WaitDialog(message);
+		waitDlg.setAlwaysOnTop(true);
+		waitDlg.showDialog();
+		try {
+			BackgroundEstimator estimator = newEstimator(BackgroundEstimator.Method.MEAN);
+			if (estimator != null) {
+				snapFrames(estimator);
+			}
+			return estimator;
+		} catch (Exception ex) {
+			ReportingUtils.logError(ex, "Couldnt acquire calibration images.");
+			return null;
+		} finally {
+			waitDlg.closeDialog();
+			restoreAcquisition(enabledProcessors, wasLiveModeOn);
+		}
+	}
+
+	/**
+	 * Snaps the flat series, calibrates with the dark series, saves the
+	 * calibration next to the current background, or the last one when none
+	 * was loaded, and uses it.
+	 */
+	private void calibrate() {
+		if (darkSeries_ == null) {
+			ReportingUtils.showMessage(ERR_CALIBRATION);
+			return;
+		}
+		String backgroundName = backgroundFileName_;
+		if (backgroundName == null || backgroundName.equals("")) {
+			backgroundName = prefs_.get(PREF_BG_PATH, "");
+		}
+		if (backgroundName.equals("")) {
+			backgroundName = System.getProperty("user.home");
+		}
+		File tmpFile = new File(backgroundName);
+		File parentDir = (tmpFile.isDirectory()) ? tmpFile : tmpFile.getAbsoluteFile().getParentFile();
+		BackgroundEstimator flatSeries = snapSeries("Averaging flat images...");
+		if (flatSeries == null) {
+			return;
+		}
+		PhotonTransferCalibration calibration;
+		try {
+			calibration = PhotonTransferCalibration.create(darkSeries_, flatSeries);
+		} catch (MMException ex) {
+			ReportingUtils.showError(ex.getMessage());
+			return;
+		}
+		String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Timestamp(System.currentTimeMillis()));
+		File newFile = new File(parentDir.getAbsolutePath(),
+				timeStamp + "-PTC" + String.valueOf(flatSeries.getCount()) + ".tiff");
+		try {
+			calibration.write(newFile);
+		} catch (IOException ex) {
+			ReportingUtils.showError(ex, "Failed to save " + newFile.getAbsolutePath());
+			return;
+		}
+		ReportingUtils.logMessage(newFile.getAbsolutePath() + " was saved.");
+		darkSeries_ = null;
+		calibrationFileName_ = newFile.getAbsolutePath();
+		chkCalibration_.setSelected(true);
+		updateCalibration();
+	}
+
+	/**
+	 * Acquires the background frames with a sequence acquisition on a worker
+	 * thread, showing progress. Processors and live mode are restored when the
+	 * worker is done or cancelled.
+	 */
+	private void streamBackgroundImage(final List<DataProcessor<TaggedImage>> enabledProcessors,
+			final boolean wasLiveModeOn) {
+		final BackgroundEstimator estimator;
+		try {
+			estimator = newEstimator();
+		} catch (Exception ex) {
+			ReportingUtils.logError("Couldnt get tagged image.");
+			restoreAcquisition(enabledProcessors, wasLiveModeOn);
+			return;
+		}
+		if (estimator == null) {
+			restoreAcquisition(enabledProcessors, wasLiveModeOn);
+			return;
+		}
+		final int count = getAverageCount();
+		final ProgressMonitor monitor = new ProgressMonitor(this, "Acquiring background images...", null, 0, count);
+		monitor.setMillisToDecideToPopup(0);
+		monitor.setMillisToPopup(0);
+		snapButton_.setEnabled(false);
+		SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
+			@Override
+			protected Void doInBackground() throws Exception {
+				mmc_.startSequenceAcquisition(count, 0, false);
+				try {
+					while (estimator.getCount() < count && !isCancelled()) {
+						if (mmc_.getRemainingImageCount() > 0) {
+							estimator.add(mmc_.popNextTaggedImage().pix);
+							publish(estimator.getCount());
+						} else if (!mmc_.isSequenceRunning()) {
+							break;
+						} else {
+							// Wait for the camera, not a fixed interval
+							LockSupport.parkNanos(SEQUENCE_POLL_NS);
+						}
+					}
+				} finally {
+					if (mmc_.isSequenceRunning()) {
+						mmc_.stopSequenceAcquisition();
+					}
 				}
-				Thread.sleep(fpsInterval_);
+				return null;
 			}
-			ImageProcessor averagedImp;
-			if (ijType == ImagePlus.GRAY8) {
-				byte[] averaged = new byte[pixelCount];
-				for (int j = 0; j < pixelCount; j++) {
-					averaged[j] = (byte) (sum[j] / count);
+
+			@Override
+			protected void process(List<Integer> chunks) {
+				monitor.setProgress(chunks.get(chunks.size() - 1));
+				if (monitor.isCanceled()) {
+					cancel(false);
 				}
-				averagedImp = new ByteProcessor(width, height);
-				averagedImp.setPixels(averaged);
-			} else {
-				short[] averaged = new short[pixelCount];
-				for (int j = 0; j < pixelCount; j++) {
-					averaged[j] = (short) (sum[j] / count);
+			}
+
+			@Override
+			protected void done() {
+				monitor.close();
+				snapButton_.setEnabled(true);
+				try {
+					if (!isCancelled()) {
+						get();
+						saveBackground(estimator);
+					}
+				} catch (Exception ex) {
+					ReportingUtils.logError(ex, "Couldnt acquire background images.");
+				} finally {
+					restoreAcquisition(enabledProcessors, wasLiveModeOn);
 				}
-				averagedImp = new ShortProcessor(width, height);
-				averagedImp.setPixels(averaged);
 			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * Returns an estimator for frames like the last acquired one, or null after
+	 * reporting an unsupported format.
+	 */
+	private BackgroundEstimator newEstimator() throws Exception {
+		return newEstimator((BackgroundEstimator.Method) estimatorCombo_.getSelectedItem());
+	}
+
+	private BackgroundEstimator newEstimator(BackgroundEstimator.Method method) throws Exception {
+		// try first image.
+		TaggedImage bg = mmc_.getLastTaggedImage();
+		String type = MDUtils.getPixelType(bg.tags);
+		if (!(type.equals("GRAY8") || type.equals("GRAY16"))) {
+			ReportingUtils.showError("Image format error. Nothing saved.");
+			return null;
+		}
+		int ijType = type.equals("GRAY16") ? ImagePlus.GRAY16 : ImagePlus.GRAY8;
+		return BackgroundEstimator.create(method, MDUtils.getWidth(bg.tags), MDUtils.getHeight(bg.tags), ijType,
+				getAverageCount());
+	}
+
+	private int getAverageCount() {
+		return (int) prefs_.getDouble(PREF_AVR_COUNT, 1);
+	}
 
-			File tmpFile = new File(backgroundFileName_);
-			File parentDir = (tmpFile.isDirectory()) ? tmpFile : new File(tmpFile.getAbsoluteFile().getParent());
-			Timestamp ts = new Timestamp(System.currentTimeMillis());
-			String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(ts);
-			File newFile = new File(parentDir.getAbsolutePath(), timeStamp + "-BG" + String.valueOf(count) + ".tiff");
+	/**
+	 * Saves the averaged background next to the current one and sets it.
+	 */
+	private void saveBackground(BackgroundEstimator estimator) {
+		ImageProcessor averagedImp = estimator.getBackground();
+		if (averagedImp == null) {
+			ReportingUtils.logError("No background image acquired.");
+			return;
+		}
+		int count = estimator.getCount();
+		File tmpFile = new File(backgroundFileName_);
+		File parentDir = (tmpFile.isDirectory()) ? tmpFile : new File(tmpFile.getAbsoluteFile().getParent());
+		Timestamp ts = new Timestamp(System.currentTimeMillis());
+		String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(ts);
+		File newFile;
+		if (chkRaw_.isSelected()) {
+			newFile = new File(parentDir.getAbsolutePath(),
+					timeStamp + "-BG" + String.valueOf(count) + "." + RawBackgroundFile.SUFFIX);
+			try {
+				RawBackgroundFile.write(newFile, averagedImp, count,
+						(BackgroundEstimator.Method) estimatorCombo_.getSelectedItem());
+			} catch (IOException ex) {
+				ReportingUtils.showError(ex, "Failed to save " + newFile.getAbsolutePath());
+				return;
+			}
+		} else {
+			newFile = new File(parentDir.getAbsolutePath(), timeStamp + "-BG" + String.valueOf(count) + ".tiff");
 			IJ.saveAs(new ImagePlus("BG", averagedImp), "tiff", newFile.getAbsolutePath());
+		}
+		FloatProcessor variance = estimator.getVariance();
+		if (variance != null) {
+			File varFile = new File(parentDir.getAbsolutePath(),
+					timeStamp + "-BG" + String.valueOf(count) + "-var.tiff");
+			IJ.saveAs(new ImagePlus("BG variance", variance), "tiff", varFile.getAbsolutePath());
+		}
+		int[] hotPixels = HotPixelMap.find(averagedImp, HotPixelMap.DEFAULT_SIGMAS);
+		try {
+			HotPixelMap.write(HotPixelMap.fileFor(newFile), hotPixels, averagedImp.getWidth(),
+					averagedImp.getHeight());
+			ReportingUtils.logMessage(hotPixels.length + " hot pixels found.");
+		} catch (IOException ex) {
+			ReportingUtils.logError(ex);
+		}
 
-			String openedFile = processBackgroundImage(newFile.getAbsolutePath());
-			if (openedFile.equals(newFile.getAbsolutePath())) {
-				textBG.setText(backgroundFileName_);
+		String openedFile = processBackgroundImage(newFile.getAbsolutePath());
+		if (openedFile.equals(newFile.getAbsolutePath())) {
+			textBG.setText(backgroundFileName_);
+		}
+		ReportingUtils.logMessage(openedFile + " was saved.");
+		addToLibrary(newFile);
+	}
+
+	/**
+	 * Indexes a background file in the library under the current camera
+	 * settings.
+	 */
+	private void addToLibrary(File file) {
+		BackgroundLibrary library = processor_.getLibrary();
+		if (library == null || !library.getDirectory().equals(file.getAbsoluteFile().getParentFile())) {
+			return;
+		}
+		try {
+			library.put(BackgroundKey.fromTags(mmc_.getLastTaggedImage().tags), file);
+		} catch (Exception ex) {
+			ReportingUtils.logError(ex, "Failed to add " + file.getName() + " to the background library");
+		}
+	}
+
+	/**
+	 * Starts a new rolling background with the current interval and window,
+	 * or turns it off when disabled.
+	 */
+	private void updateRolling() {
+		int interval = (Integer) rollingIntervalSpinner_.getValue();
+		int window = (Integer) rollingWindowSpinner_.getValue();
+		prefs_.putBoolean(PREF_ROLLING, chkRolling_.isSelected());
+		prefs_.putInt(PREF_ROLLING_INTERVAL, interval);
+		prefs_.putInt(PREF_ROLLING_WINDOW, window);
+		processor_.setRollingBackground(chkRolling_.isSelected() ? new RollingBackground(interval, window) : null);
+	}
+
+	private String[] getChannelNames() {
+		try {
+			mmcorej.StrVector configs = mmc_.getAvailableConfigs(mmc_.getChannelGroup());
+			String[] names = new String[(int) configs.size()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = configs.get(i);
 			}
-			ReportingUtils.logMessage(openedFile + " was saved.");
+			return names;
 		} catch (Exception ex) {
-			ReportingUtils.logError("Couldnt get tagged image.");
-		} finally {
-			waitDlg.closeDialog();
-			if (wasLiveModeOn) {
-				gui_.enableLiveMode(true);
+			ReportingUtils.logError(ex);
+			return new String[0];
+		}
+	}
+
+	/**
+	 * Uses the current background image for frames of the selected channel
+	 */
+	private void assignChannelBackground() {
+		Object selected = channelCombo_.getSelectedItem();
+		String channel = selected == null ? "" : selected.toString().trim();
+		if (channel.isEmpty() || backgroundFileName_ == null || backgroundFileName_.equals("")) {
+			ReportingUtils.showMessage(ERR_CHANNEL);
+			return;
+		}
+		String camera = chkChannelCamera_.isSelected() ? mmc_.getCameraDevice() : ChannelBackgrounds.ANY_CAMERA;
+		if (setChannelBackground(camera, channel, backgroundFileName_)) {
+			channelPaths_.put(camera + "\t" + channel, backgroundFileName_);
+			saveChannelBackgrounds();
+		} else {
+			ReportingUtils.showMessage(ERR_SUBTRACTION);
+		}
+	}
+
+	private boolean setChannelBackground(String camera, String channel, String fileName) {
+		try {
+			ImageProcessor background = RawBackgroundFile.open(new File(fileName));
+			if (background != null) {
+				processor_.getChannelBackgrounds().put(camera, channel, background, new File(fileName).getAbsolutePath());
+				return true;
+			}
+		} catch (IOException ex) {
+			ReportingUtils.logError(ex);
+		}
+		return false;
+	}
+
+	/**
+	 * Restores the channel backgrounds, saved as camera TAB channel TAB file
+	 * lines
+	 */
+	private void loadChannelBackgrounds() {
+		for (String line : prefs_.get(PREF_CHANNELS, "").split("\n")) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length == 3 && setChannelBackground(fields[0], fields[1], fields[2])) {
+				channelPaths_.put(fields[0] + "\t" + fields[1], fields[2]);
+			}
+		}
+		saveChannelBackgrounds();
+	}
+
+	private void saveChannelBackgrounds() {
+		StringBuilder value = new StringBuilder();
+		for (Map.Entry<String, String> entry : channelPaths_.entrySet()) {
+			if (value.length() > 0) {
+				value.append('\n');
 			}
+			value.append(entry.getKey()).append('\t').append(entry.getValue());
 		}
+		prefs_.put(PREF_CHANNELS, value.toString());
+		channelsLabel_.setText(channelPaths_.size() + " channel BG(s)");
+	}
+
+	private void updateOverload() {
+		OverloadPolicy.Mode mode = (OverloadPolicy.Mode) overloadCombo_.getSelectedItem();
+		int budget = (Integer) budgetSpinner_.getValue();
+		int skip = (Integer) skipSpinner_.getValue();
+		prefs_.put(PREF_OVERLOAD, mode.name());
+		prefs_.putInt(PREF_BUDGET, budget);
+		prefs_.putInt(PREF_SKIP, skip);
+		processor_.setOverloadPolicy(OverloadPolicy.create(mode, budget, skip));
+	}
+
+	/**
+	 * Loads the last saved calibration into the processor when enabled
+	 */
+	private void updateCalibration() {
+		prefs_.putBoolean(PREF_CALIBRATION, chkCalibration_.isSelected());
+		prefs_.put(PREF_CALIBRATION_PATH, calibrationFileName_);
+		PhotonTransferCalibration calibration = null;
+		if (chkCalibration_.isSelected() && calibrationFileName_.length() > 0) {
+			try {
+				calibration = PhotonTransferCalibration.read(new File(calibrationFileName_));
+			} catch (IOException ex) {
+				ReportingUtils.logError(ex);
+			}
+		}
+		processor_.setCalibration(calibration);
+		calibrationLabel_.setText(calibration != null ? new File(calibrationFileName_).getName() : " ");
+	}
 
+	private void updateSpatial() {
+		int radius = (Integer) spatialSpinner_.getValue();
+		prefs_.putBoolean(PREF_SPATIAL, chkSpatial_.isSelected());
+		prefs_.putInt(PREF_SPATIAL_RADIUS, radius);
+		processor_.setSpatialBackground(chkSpatial_.isSelected() ? new SpatialBackground(radius) : null);
+	}
+
+	/**
+	 * Opens the library in the folder of the current background, or closes it
+	 * when disabled.
+	 */
+	private void updateLibrary() {
+		if (!chkLibrary_.isSelected() || backgroundFileName_ == null || backgroundFileName_.equals("")) {
+			processor_.setLibrary(null);
+			return;
+		}
+		File directory = new File(backgroundFileName_).getAbsoluteFile().getParentFile();
+		BackgroundLibrary library = processor_.getLibrary();
+		if (library == null || !library.getDirectory().equals(directory)) {
+			long budget = (long) ((Integer) librarySpinner_.getValue()) << 20;
+			processor_.setLibrary(new BackgroundLibrary(directory, budget));
+		}
+	}
+
+	private void restoreAcquisition(List<DataProcessor<TaggedImage>> enabledProcessors, boolean wasLiveModeOn) {
+		if (wasLiveModeOn) {
+			gui_.enableLiveMode(true);
+		}
 		// Enable formerly disabled data processors
 		for (DataProcessor<TaggedImage> dp : enabledProcessors) {
 			dp.setEnabled(true);
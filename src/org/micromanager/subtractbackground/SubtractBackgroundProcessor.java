@@ -21,11 +21,16 @@
 
 package org.micromanager.subtractbackground;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -39,13 +44,58 @@ import mmcorej.TaggedImage;
  */
 public class SubtractBackgroundProcessor extends DataProcessor<TaggedImage> {
 	private SubtractBackgroundMigForm myFrame_;
-	private ImageProcessor backgroundImage_;
-	private static double offsetPercent_ = 0;
+	private final AtomicReference<CorrectionState> state_ = new AtomicReference<CorrectionState>(
+			CorrectionState.EMPTY);
+	private volatile boolean inPlace_ = false;
+	private volatile SubtractionEngine engine_;
+	private int threadCount_ = Runtime.getRuntime().availableProcessors();
+	private int parallelThreshold_ = SubtractionEngine.DEFAULT_THRESHOLD;
+	private volatile int pipelineDepth_ = 1;
+	private volatile FramePipeline pipeline_;
+	private volatile BackgroundLibrary library_;
+	private final ChannelBackgrounds channels_ = new ChannelBackgrounds();
+	private volatile RollingBackground rolling_;
+	private final AtomicBoolean rollingPending_ = new AtomicBoolean();
+	private ExecutorService rollingPublisher_;
+	private volatile SpatialBackground spatial_;
+	private volatile PhotonTransferCalibration calibration_;
+	private volatile OverloadPolicy overloadPolicy_ = OverloadPolicy.STRICT;
+	private volatile boolean statistics_ = false;
+	private volatile boolean deferred_ = false;
+	// States of the frames passed on in deferred mode, for DeferredCorrection
+	private final DeferredCorrection.Registry deferredStates_ = DeferredCorrection.newRegistry();
+	private final SubtractBackgroundMetrics metrics_ = new SubtractBackgroundMetrics();
+	// Processor thread only
+	private final ArrivalDelay queueWait_ = new ArrivalDelay();
+	private final AtomicReference<String> status_ = new AtomicReference<String>(" ");
+	private final AtomicReference<String> lastError_ = new AtomicReference<String>();
 
 	private static final String MSG_DONE = "Subtracted.";
-	private static final String ERR_ILLEGAL_TYPE = "Cannot subtract images other than 8 or 16 bit grayscale";
+	private static final String ERR_ILLEGAL_TYPE = "Cannot subtract images other than 8, 16 or 32 bit grayscale or RGB32";
 	private static final String ERR_NO_BG_IMAGE = "No background image specified.";
-	private static final String ERR_FRAME_MISSING = "myFrame_ missing.";
+	private static final String ERR_SIZE = "Image does not fit in the background image.";
+	static final String TAG_ROI = "ROI";
+	static final String TAG_BINNING = "Binning";
+
+	/** Tag recording the generation of the CorrectionState applied to a frame */
+	public static final String TAG_GENERATION = "SubtractBackground-Generation";
+	/**
+	 * Tag of frames forwarded uncorrected by the overload policy, its value is
+	 * OverloadPolicy.REASON_LATE or REASON_SKIPPED
+	 */
+	public static final String TAG_UNCORRECTED = "SubtractBackground-Uncorrected";
+	/**
+	 * Tag with where the background of a corrected frame came from, e.g. the
+	 * path of the background or of the calibration file
+	 */
+	public static final String TAG_BACKGROUND = "SubtractBackground-Background";
+	/** Tag with the offset added to a corrected frame, in pixel values */
+	public static final String TAG_OFFSET = "SubtractBackground-Offset";
+
+	public SubtractBackgroundProcessor() {
+		metrics_.register("SubtractBackground@" + Integer.toHexString(System.identityHashCode(this)));
+	}
+
 	/**
 	 * Executes subtraction
 	 * 
@@ -56,60 +106,720 @@ public class SubtractBackgroundProcessor extends DataProcessor<TaggedImage> {
 	 * @throws MMScriptException
 	 */
 	public TaggedImage processTaggedImage(TaggedImage nextImage) throws JSONException, MMScriptException, Exception {
+		long start = System.nanoTime();
 		JSONObject newTags = nextImage.tags;
 
-		// Check pixel depth
-		String type = MDUtils.getPixelType(newTags);
-		if (!(type.equals("GRAY8") || type.equals("GRAY16"))) {
-			ReportingUtils.logError(ERR_ILLEGAL_TYPE);
-			setStatus(ERR_ILLEGAL_TYPE);
-			return nextImage;
+		// Check pixel depth, the kernel is chosen once per frame
+		int ijType = ijTypeOf(MDUtils.getPixelType(newTags));
+		if (ijType < 0) {
+			return passThrough(nextImage, ERR_ILLEGAL_TYPE);
 		}
-		int ijType = type.equals("GRAY16") ? ImagePlus.GRAY16 : ImagePlus.GRAY8;
+		boolean gray = ijType == ImagePlus.GRAY8 || ijType == ImagePlus.GRAY16;
+		int width = MDUtils.getWidth(newTags);
+		int height = MDUtils.getHeight(newTags);
 
-		// Check background image
-		if (backgroundImage_ == null) {
-			ReportingUtils.logError(ERR_NO_BG_IMAGE);
-			setStatus(ERR_NO_BG_IMAGE);
-			return nextImage;
+		// Spatial mode estimates the background from the frame itself
+		SpatialBackground spatial = spatial_;
+		if (spatial != null) {
+			if (!gray) {
+				return passThrough(nextImage, ERR_ILLEGAL_TYPE);
+			}
+			Object result = inPlace_ ? nextImage.pix : ImageUtils2.newPixelArray(nextImage.pix);
+			CorrectionState state = state_.get();
+			spatial.subtract(getEngine(), nextImage.pix, width, height, state.offsetValue(ijType), result);
+			return done(nextImage, result, state, SpatialBackground.SOURCE, ijType, start);
+		}
+
+		// Calibration mode corrects every pixel with its own offset and gain
+		PhotonTransferCalibration calibration = calibration_;
+		if (calibration != null) {
+			if (!gray) {
+				return passThrough(nextImage, ERR_ILLEGAL_TYPE);
+			}
+			if (width != calibration.getWidth() || height != calibration.getHeight()) {
+				return passThrough(nextImage, ERR_SIZE);
+			}
+			Object result = inPlace_ ? nextImage.pix : ImageUtils2.newPixelArray(nextImage.pix);
+			CorrectionState state = state_.get();
+			FrameStatistics stats = statistics_ ? new FrameStatistics() : null;
+			getEngine().subtractCalibrated(nextImage.pix, calibration, state.offsetValue(ijType), result, width,
+					height, stats);
+			if (stats != null) {
+				stats.putTags(newTags);
+			}
+			return done(nextImage, result, state, calibration.getSource(), ijType, start);
 		}
 
-		// Actual offset value = signal * (max value) / 100
-		int offsetValue = (ijType == ImagePlus.GRAY16) ? (int) (offsetPercent_ * 655.35)
-				: (int) (offsetPercent_ * 2.55);
-		ImageProcessor imp = ImageUtils.makeProcessor(nextImage);
-		imp = ImageUtils2.subtractImageProcessorsWithOffset(imp, backgroundImage_, offsetValue);
+		// Fold the frame into the rolling background before its pixels are
+		// corrected, the new background is published by another thread
+		RollingBackground rolling = rolling_;
+		if (rolling != null && gray && rolling.select(newTags)) {
+			rolling.fold(nextImage.pix, width, height, ijType, getBackgroundImage());
+			publishRolling(rolling);
+		}
+
+		// Check background image, one snapshot is used for the whole frame
+		CorrectionState state = resolveState(newTags);
+		if (state.getBackground() == null) {
+			return passThrough(nextImage, ERR_NO_BG_IMAGE);
+		}
+
+		if (!gray) {
+			return subtractOther(nextImage, ijType, width, height, state, start);
+		}
+
+		// Deferred mode only tags the frame, DeferredCorrection corrects it on read
+		if (deferred_) {
+			deferredStates_.register(state);
+			// The processor's flat is the only one with a known file
+			CorrectionState current = state_.get();
+			String flatSource = state.isFlatFielded() && state.getFlat() == current.getFlat()
+					? current.getFlatSource() : null;
+			DeferredCorrection.tag(newTags, state, flatSource);
+			return done(nextImage, nextImage.pix, state, ijType, start);
+		}
+
+		int[] plane;
+		int[] gain;
+		int[] hotPixels = null;
+		if (width == state.getWidth() && height == state.getHeight()) {
+			plane = state.getPlane(ijType);
+			gain = state.getGain();
+			hotPixels = state.getHotPixels();
+		} else {
+			// Cropped camera ROI, use the matching part of the background
+			int[] roi = parseRoi(newTags.optString(TAG_ROI, ""));
+			if (roi == null) {
+				return passThrough(nextImage, ERR_SIZE);
+			}
+			int binning = parseBinning(newTags.optString(TAG_BINNING, "1"));
+			plane = state.getPlane(ijType, roi[0], roi[1], width, height, binning);
+			gain = state.getGain(ijType, roi[0], roi[1], width, height, binning);
+			if (plane == null) {
+				return passThrough(nextImage, ERR_SIZE);
+			}
+		}
+		if (plane == null) {
+			return passThrough(nextImage, ERR_ILLEGAL_TYPE);
+		}
+		// In place, the incoming pixels are overwritten and no frame buffer is allocated
+		Object result = inPlace_ ? nextImage.pix : ImageUtils2.newPixelArray(nextImage.pix);
+		FrameStatistics stats = statistics_ ? new FrameStatistics() : null;
+		getEngine().subtract(nextImage.pix, plane, gain, state.offsetValue(ijType), result, width, height, stats);
+		if (hotPixels != null) {
+			ImageUtils2.replaceHotPixels(result, width, height, hotPixels);
+		}
+		if (stats != null) {
+			stats.putTags(newTags);
+		}
+		return done(nextImage, result, state, ijType, start);
+	}
+
+	/**
+	 * Subtracts the background from a full-frame 32 bit float or RGB32 frame
+	 */
+	private TaggedImage subtractOther(TaggedImage nextImage, int ijType, int width, int height,
+			CorrectionState state, long start) throws Exception {
+		if (width != state.getWidth() || height != state.getHeight()) {
+			return passThrough(nextImage, ERR_SIZE);
+		}
+		Object result = inPlace_ ? nextImage.pix : ImageUtils2.newPixelArray(nextImage.pix);
+		if (ijType == ImagePlus.GRAY32) {
+			float[] plane = state.getFloatPlane();
+			if (plane == null) {
+				return passThrough(nextImage, ERR_ILLEGAL_TYPE);
+			}
+			getEngine().subtractFloat(nextImage.pix, plane, result, width, height);
+		} else {
+			int[] plane = state.getPlane(ImagePlus.COLOR_RGB);
+			if (plane == null) {
+				return passThrough(nextImage, ERR_ILLEGAL_TYPE);
+			}
+			getEngine().subtractRgb(nextImage.pix, plane, state.offsetValue(ijType), result, width, height);
+		}
+		return done(nextImage, result, state, ijType, start);
+	}
+
+	private TaggedImage done(TaggedImage nextImage, Object result, CorrectionState state, int ijType, long start)
+			throws JSONException {
+		return done(nextImage, result, state, state.getSource(), ijType, start);
+	}
+
+	/**
+	 * Tags a corrected frame with the generation and offset of state and with
+	 * source as its background, and records it as processed.
+	 */
+	private TaggedImage done(TaggedImage nextImage, Object result, CorrectionState state, String source,
+			int ijType, long start) throws JSONException {
+		nextImage.tags.put(TAG_GENERATION, state.getGeneration());
+		nextImage.tags.put(TAG_OFFSET, state.offsetValue(ijType));
+		if (source != null) {
+			nextImage.tags.put(TAG_BACKGROUND, source);
+		}
 		setStatus(MSG_DONE);
-		return new TaggedImage(imp.getPixels(), newTags);
+		metrics_.recordProcessed(System.nanoTime() - start);
+		return result == nextImage.pix ? nextImage : new TaggedImage(result, nextImage.tags);
+	}
+
+	/**
+	 * Returns the ImagePlus type of a pixel type tag, -1 when not supported
+	 */
+	static int ijTypeOf(String pixelType) {
+		if (pixelType.equals("GRAY8")) {
+			return ImagePlus.GRAY8;
+		} else if (pixelType.equals("GRAY16")) {
+			return ImagePlus.GRAY16;
+		} else if (pixelType.equals("GRAY32")) {
+			return ImagePlus.GRAY32;
+		} else if (pixelType.equals("RGB32")) {
+			return ImagePlus.COLOR_RGB;
+		}
+		return -1;
 	}
 
-	public synchronized void setBackgroundImage(ImageProcessor background) {
-		backgroundImage_ = background;
+	/**
+	 * Returns the background of the frame's channel if one was set, else the
+	 * background from the library matching the frame's camera settings if it
+	 * is in memory, the background set by setBackgroundImage otherwise.
+	 */
+	private CorrectionState resolveState(JSONObject tags) {
+		CorrectionState state = state_.get();
+		CorrectionState channel = channels_.lookup(tags);
+		if (channel != null) {
+			return channel;
+		}
+		BackgroundLibrary library = library_;
+		if (library != null) {
+			CorrectionState matched = library.lookup(tags);
+			if (matched != null) {
+				return matched;
+			}
+		}
+		return state;
 	}
 
-	public synchronized ImageProcessor getBackgroundImage() {
-		return backgroundImage_;
+	/**
+	 * Parses an ROI tag "x-y-width-height"
+	 *
+	 * @return {x, y, width, height}, null when malformed
+	 */
+	static int[] parseRoi(String roi) {
+		int[] values = new int[4];
+		int n = 0;
+		int value = -1;
+		for (int i = 0; i < roi.length(); i++) {
+			char c = roi.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+			} else if (c == '-' && value >= 0 && n < 3) {
+				values[n++] = value;
+				value = -1;
+			} else {
+				return null;
+			}
+		}
+		if (n != 3 || value < 0) {
+			return null;
+		}
+		values[3] = value;
+		return values;
+	}
+
+	/**
+	 * Parses a binning tag such as "2" or "2x2", 1 when malformed
+	 */
+	static int parseBinning(String binning) {
+		int value = 0;
+		for (int i = 0; i < binning.length(); i++) {
+			char c = binning.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value > 0 ? value : 1;
+	}
+
+	private TaggedImage passThrough(TaggedImage nextImage, String error) {
+		ReportingUtils.logError(error);
+		setError(error);
+		metrics_.recordPassedThrough();
+		return nextImage;
+	}
+
+	public SubtractBackgroundMetrics getMetrics() {
+		return metrics_;
+	}
+
+	private SubtractionEngine getEngine() {
+		SubtractionEngine engine = engine_;
+		if (engine == null) {
+			synchronized (this) {
+				engine = engine_;
+				if (engine == null) {
+					engine = new SubtractionEngine(threadCount_, parallelThreshold_);
+					engine_ = engine;
+				}
+			}
+		}
+		return engine;
+	}
+
+	/**
+	 * Sets the number of threads a frame is split into. Frames with fewer
+	 * pixels than threshold are subtracted on the processor thread only.
+	 * 
+	 * @param threads
+	 * @param threshold
+	 */
+	public synchronized void setThreadCount(int threads, int threshold) {
+		threadCount_ = Math.max(1, threads);
+		parallelThreshold_ = threshold;
+		SubtractionEngine old = engine_;
+		engine_ = null;
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	public synchronized int getThreadCount() {
+		return threadCount_;
+	}
+
+	public synchronized int getParallelThreshold() {
+		return parallelThreshold_;
+	}
+
+	public void setBackgroundImage(ImageProcessor background) {
+		setBackgroundImage(background, null, null);
+	}
+
+	/**
+	 * Sets a background without hot pixels.
+	 *
+	 * @param background
+	 * @param source
+	 *            - where the background came from, e.g. its file name
+	 */
+	public void setBackgroundImage(ImageProcessor background, String source) {
+		setBackgroundImage(background, source, null);
+	}
+
+	/**
+	 * Sets a background together with its hot pixels, made by
+	 * HotPixelMap.find, so no frame sees one without the other.
+	 *
+	 * @param background
+	 * @param source
+	 *            - where the background came from, e.g. its file name
+	 * @param hotPixels
+	 *            - null for none
+	 */
+	public void setBackgroundImage(ImageProcessor background, String source, int[] hotPixels) {
+		CorrectionState current;
+		do {
+			current = state_.get();
+		} while (!state_.compareAndSet(current, current.withBackground(background, source, hotPixels)));
+	}
+
+	public ImageProcessor getBackgroundImage() {
+		return state_.get().getBackground();
+	}
+
+	/**
+	 * Sets the flat-field image, frames are then corrected by (image - BG) *
+	 * mean(flat - BG) / (flat - BG) + offset. The flat must have the size of
+	 * the background, null turns flat-field correction off.
+	 * 
+	 * @param flat
+	 */
+	public void setFlatImage(ImageProcessor flat) {
+		setFlatImage(flat, null);
+	}
+
+	/**
+	 * @param flat
+	 * @param source
+	 *            - path of the flat-field file, tagged on deferred frames so
+	 *            they can be corrected after a restart
+	 */
+	public void setFlatImage(ImageProcessor flat, String source) {
+		CorrectionState current;
+		do {
+			current = state_.get();
+		} while (!state_.compareAndSet(current, current.withFlat(flat, source)));
+		updateCorrection();
+	}
+
+	/**
+	 * Sets the hot pixels of the background, made by HotPixelMap.find. They
+	 * are replaced by the median of their neighbours after subtraction, null
+	 * turns this off.
+	 * 
+	 * @param hotPixels
+	 */
+	public void setHotPixels(int[] hotPixels) {
+		CorrectionState current;
+		do {
+			current = state_.get();
+		} while (!state_.compareAndSet(current, current.withHotPixels(hotPixels)));
+	}
+
+	public ImageProcessor getFlatImage() {
+		return state_.get().getFlat();
 	}
 
 	public void setOffset(double offset) {
-		offsetPercent_ = offset;
+		CorrectionState current;
+		do {
+			current = state_.get();
+		} while (!state_.compareAndSet(current, current.withOffset(offset)));
+		updateCorrection();
+	}
+
+	/**
+	 * Hands the current offset and flat-field image to the channel backgrounds
+	 * and the library, whose states are rebuilt with them off the frame path.
+	 */
+	private synchronized void updateCorrection() {
+		CorrectionState state = state_.get();
+		channels_.setCorrection(state.getOffsetPercent(), state.getFlat());
+		BackgroundLibrary library = library_;
+		if (library != null) {
+			library.setCorrection(state.getOffsetPercent(), state.getFlat());
+		}
 	}
 
 	public double getOffset() {
-		return offsetPercent_;
+		return state_.get().getOffsetPercent();
+	}
+
+	/**
+	 * Returns the background and offset currently applied to frames.
+	 */
+	public CorrectionState getCorrectionState() {
+		return state_.get();
+	}
+
+	/**
+	 * Sets the library backgrounds are picked from by the camera settings of
+	 * each frame, null to always use the background set by setBackgroundImage.
+	 * 
+	 * @param library
+	 */
+	public void setLibrary(BackgroundLibrary library) {
+		BackgroundLibrary old;
+		synchronized (this) {
+			old = library_;
+			library_ = library;
+		}
+		updateCorrection();
+		if (old != null && old != library) {
+			old.dispose();
+		}
+	}
+
+	public BackgroundLibrary getLibrary() {
+		return library_;
+	}
+
+	/**
+	 * Returns the backgrounds used for frames of particular channels instead
+	 * of the background set by setBackgroundImage.
+	 */
+	public ChannelBackgrounds getChannelBackgrounds() {
+		return channels_;
+	}
+
+	/**
+	 * Keeps the background up to date from the acquired frames, null to keep
+	 * the background fixed. Frames are folded in on the frame path without
+	 * allocating; the new background is then built and published as
+	 * setBackgroundImage does on a separate thread. The folded frame and those
+	 * in flight are still corrected with the previous background.
+	 * 
+	 * @param rolling
+	 */
+	public void setRollingBackground(RollingBackground rolling) {
+		rolling_ = rolling;
+	}
+
+	/**
+	 * Publishes the background of rolling on the rolling thread. Requests made
+	 * while one is pending are merged into it.
+	 */
+	private void publishRolling(final RollingBackground rolling) {
+		if (!rollingPending_.compareAndSet(false, true)) {
+			return;
+		}
+		getRollingPublisher().execute(new Runnable() {
+			@Override
+			public void run() {
+				// Folds from now on need another publication
+				rollingPending_.set(false);
+				if (rolling_ != rolling) {
+					return;
+				}
+				ImageProcessor background = rolling.getBackground();
+				if (background == null) {
+					return;
+				}
+				// Same camera, so hot pixels stay valid while the size does
+				CorrectionState current;
+				CorrectionState next;
+				do {
+					current = state_.get();
+					int[] hotPixels = background.getWidth() == current.getWidth()
+							&& background.getHeight() == current.getHeight() ? current.getHotPixels() : null;
+					next = current.withBackground(background, RollingBackground.SOURCE, hotPixels);
+				} while (!state_.compareAndSet(current, next));
+			}
+		});
+	}
+
+	private synchronized ExecutorService getRollingPublisher() {
+		if (rollingPublisher_ == null) {
+			rollingPublisher_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SubtractBackground-rolling");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return rollingPublisher_;
+	}
+
+	public RollingBackground getRollingBackground() {
+		return rolling_;
+	}
+
+	/**
+	 * Removes a background estimated from each frame itself instead of the
+	 * background image, null to subtract the background image.
+	 * 
+	 * @param spatial
+	 */
+	public void setSpatialBackground(SpatialBackground spatial) {
+		spatial_ = spatial;
+	}
+
+	public SpatialBackground getSpatialBackground() {
+		return spatial_;
+	}
+
+	/**
+	 * Corrects full frames with a per-pixel offset and gain instead of the
+	 * background image, null to subtract the background image. The offset set
+	 * by setOffset is added.
+	 * 
+	 * @param calibration
+	 */
+	public void setCalibration(PhotonTransferCalibration calibration) {
+		calibration_ = calibration;
+	}
+
+	public PhotonTransferCalibration getCalibration() {
+		return calibration_;
+	}
+
+	/**
+	 * Sets what happens to frames when processing falls behind, see
+	 * OverloadPolicy. The default is OverloadPolicy.STRICT.
+	 * 
+	 * @param policy
+	 */
+	public void setOverloadPolicy(OverloadPolicy policy) {
+		overloadPolicy_ = policy != null ? policy : OverloadPolicy.STRICT;
+	}
+
+	public OverloadPolicy getOverloadPolicy() {
+		return overloadPolicy_;
+	}
+
+	/**
+	 * When set, mean, min, max and the number of pixels clipped at 0 and at
+	 * the maximum of every corrected 8 or 16 bit frame are collected by the
+	 * kernel and written into its tags, see FrameStatistics.
+	 * 
+	 * @param statistics
+	 */
+	public void setStatistics(boolean statistics) {
+		statistics_ = statistics;
+	}
+
+	public boolean getStatistics() {
+		return statistics_;
+	}
+
+	/**
+	 * When set, 8 and 16 bit frames are not corrected but tagged with their
+	 * background generation and files, to be corrected by DeferredCorrection
+	 * when read. States are kept for this until the acquisition ends, later
+	 * only backgrounds and flats read from files can be restored. Spatial and
+	 * calibration modes are not deferred.
+	 * 
+	 * @param deferred
+	 */
+	public void setDeferred(boolean deferred) {
+		deferred_ = deferred;
+		if (!deferred) {
+			deferredStates_.release();
+		}
+	}
+
+	public boolean getDeferred() {
+		return deferred_;
+	}
+
+	/**
+	 * When set, corrected pixels are written back into the pixel array of the
+	 * incoming TaggedImage instead of a newly allocated one.
+	 * 
+	 * @param inPlace
+	 */
+	public void setInPlace(boolean inPlace) {
+		inPlace_ = inPlace;
+	}
+
+	public boolean getInPlace() {
+		return inPlace_;
+	}
+
+	/**
+	 * Sets the number of frames processed concurrently. With 1, frames are
+	 * processed one after another on the processor thread. Output order is
+	 * kept in both cases.
+	 * 
+	 * @param depth
+	 */
+	public void setPipelineDepth(int depth) {
+		pipelineDepth_ = Math.max(1, depth);
+	}
+
+	public int getPipelineDepth() {
+		return pipelineDepth_;
+	}
+
+	private FramePipeline getPipeline() throws InterruptedException {
+		FramePipeline pipeline = pipeline_;
+		if (pipeline == null || pipeline.getDepth() != pipelineDepth_) {
+			drainPipeline();
+			pipeline = new FramePipeline(pipelineDepth_, new FramePipeline.Stage() {
+				@Override
+				public TaggedImage process(TaggedImage image) {
+					return processSafely(image);
+				}
+			}, new FramePipeline.Output() {
+				@Override
+				public void produce(TaggedImage image) {
+					if (image == TaggedImageQueue.POISON) {
+						deferredStates_.release();
+					}
+					SubtractBackgroundProcessor.this.produce(image);
+				}
+			});
+			pipeline_ = pipeline;
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Waits for frames in flight in the pipeline and stops it
+	 */
+	private void drainPipeline() throws InterruptedException {
+		FramePipeline pipeline = pipeline_;
+		if (pipeline != null) {
+			pipeline.drain();
+			pipeline.shutdown();
+			pipeline_ = null;
+		}
+	}
+
+	/**
+	 * Returns the processed image, or the input image when processing failed
+	 */
+	private TaggedImage processSafely(TaggedImage nextImage) {
+		try {
+			return processTaggedImage(nextImage);
+		} catch (Exception ex) {
+			ReportingUtils.logError(ex);
+			setError(ex);
+			metrics_.recordFailed();
+			return nextImage;
+		}
+	}
+
+	/**
+	 * Asks the overload policy whether the frame is to be forwarded as it is,
+	 * and if so tags and counts it.
+	 */
+	private boolean forwardUncorrected(TaggedImage nextImage) throws JSONException {
+		OverloadPolicy.Reason reason = overloadPolicy_.check(nextImage.tags, System.currentTimeMillis());
+		if (reason == null) {
+			return false;
+		}
+		nextImage.tags.put(TAG_UNCORRECTED, reason.getTag());
+		if (reason == OverloadPolicy.Reason.LATE) {
+			metrics_.recordLate();
+		} else {
+			metrics_.recordSkipped();
+		}
+		return true;
+	}
+
+	/**
+	 * Records how long image waited between acquisition and the start of its
+	 * processing, including the wait for a pipeline slot.
+	 */
+	private void recordQueueWait(TaggedImage image) {
+		if (image == TaggedImageQueue.POISON) {
+			return;
+		}
+		long delayMs = queueWait_.delayMs(image.tags, System.currentTimeMillis());
+		if (delayMs >= 0) {
+			metrics_.recordQueueWait(delayMs * 1000000L);
+		}
 	}
 
 	public void setMyFrameToNull() {
 		myFrame_ = null;
 	}
 
+	/**
+	 * Only records the status, the dialog polls it with getStatus() so frames
+	 * never wait for the UI.
+	 */
 	private void setStatus(String status) {
-		if(myFrame_!=null) {
-			myFrame_.setStatus(status);
-		}else {
-			ReportingUtils.logDebugMessage(ERR_FRAME_MISSING);
+		if (status_.get() != status) {
+			status_.set(status);
 		}
 	}
+
+	private void setError(String error) {
+		setStatus(error);
+		lastError_.set(error);
+	}
+
+	/**
+	 * Records ex as error, by class name when it has no message (e.g. an NPE)
+	 */
+	private void setError(Exception ex) {
+		String message = ex.getMessage();
+		setError(message != null ? message : ex.toString());
+	}
+
+	public String getStatus() {
+		return status_.get();
+	}
+
+	/**
+	 * Returns the most recent error, or null when there was none.
+	 */
+	public String getLastError() {
+		return lastError_.get();
+	}
 	
 	//
 	// DataProcessor
@@ -130,21 +840,37 @@ public class SubtractBackgroundProcessor extends DataProcessor<TaggedImage> {
 		this.setName("SubtractBackground");
 		try {
 			TaggedImage nextImage = poll();
-			if (nextImage != TaggedImageQueue.POISON) {
-				try {
-					produce(processTaggedImage(nextImage));
-				} catch (Exception ex) {
-					produce(nextImage);
-					ReportingUtils.logError(ex);
-					setStatus(ex.getMessage());
+			boolean uncorrected = nextImage != null && nextImage != TaggedImageQueue.POISON
+					&& forwardUncorrected(nextImage);
+			if (pipelineDepth_ > 1) {
+				// Poison is queued behind the frames in flight
+				if (uncorrected) {
+					getPipeline().forward(nextImage);
+				} else if (nextImage != null) {
+					// Before submit, a worker owns the tags from then on
+					recordQueueWait(nextImage);
+					getPipeline().submit(nextImage);
 				}
+				return;
+			}
+			drainPipeline();
+			if (nextImage == null) {
+				// Stop was requested
+				return;
+			}
+			if (uncorrected) {
+				produce(nextImage);
+			} else if (nextImage != TaggedImageQueue.POISON) {
+				recordQueueWait(nextImage);
+				produce(processSafely(nextImage));
 			} else {
 				// Must produce Poison (sentinel) image to terminate tagged image pipeline
+				deferredStates_.release();
 				produce(nextImage);
 			}
 		} catch (Exception ex) {
-			ReportingUtils.logError(ex.getMessage());
-			setStatus(ex.getMessage());
+			ReportingUtils.logError(ex);
+			setError(ex);
 		}
 	}
 	
@@ -163,6 +889,25 @@ public class SubtractBackgroundProcessor extends DataProcessor<TaggedImage> {
 			myFrame_.dispose();
 			myFrame_ = null;
 		}
+		metrics_.unregister();
+		deferredStates_.dispose();
+		setLibrary(null);
+		channels_.dispose();
+		FramePipeline pipeline = pipeline_;
+		if (pipeline != null) {
+			pipeline.shutdown();
+			pipeline_ = null;
+		}
+		synchronized (this) {
+			if (engine_ != null) {
+				engine_.shutdown();
+				engine_ = null;
+			}
+			if (rollingPublisher_ != null) {
+				rollingPublisher_.shutdownNow();
+				rollingPublisher_ = null;
+			}
+		}
 	}
 
 }
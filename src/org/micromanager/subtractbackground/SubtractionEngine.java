@@ -0,0 +1,333 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SubtractionEngine.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.micromanager.utils.MMException;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Runs the ImageUtils2 kernels on bands of rows in parallel. Frames smaller
+ * than the threshold are processed serially on the calling thread.
+ */
+public class SubtractionEngine {
+	public static final int DEFAULT_THRESHOLD = 512 * 512;
+
+	private final int threads_;
+	private final int threshold_;
+	private final ExecutorService pool_;
+
+	/**
+	 * Work on pixels [from, to) of a frame.
+	 */
+	public interface Band {
+		void run(int from, int to);
+	}
+
+	/**
+	 * @param threads
+	 *            - number of bands a frame is split into, 1 for serial
+	 * @param threshold
+	 *            - frames with fewer pixels are processed serially
+	 */
+	public SubtractionEngine(int threads, int threshold) {
+		threads_ = Math.max(1, threads);
+		threshold_ = threshold;
+		if (threads_ > 1) {
+			final AtomicInteger count = new AtomicInteger();
+			pool_ = Executors.newFixedThreadPool(threads_ - 1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SubtractBackground-worker-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			pool_ = null;
+		}
+	}
+
+	public int getThreadCount() {
+		return threads_;
+	}
+
+	public int getThreshold() {
+		return threshold_;
+	}
+
+	/**
+	 * Subtracts the background from pixels into result, which may be pixels
+	 * itself.
+	 *
+	 * @throws MMException
+	 *             when sizes or types do not match
+	 */
+	public void subtract(final Object pixels, ImageProcessor background, final int offset, final Object result)
+			throws MMException {
+		ImageUtils2.checkPixels(pixels, background);
+		final Object bgPixels = background.getPixels();
+		execute(background.getWidth(), background.getHeight(), new Band() {
+			@Override
+			public void run(int from, int to) {
+				ImageUtils2.subtractPixelsWithOffset(pixels, bgPixels, offset, result, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Subtracts a plane made by ImageUtils2.makeCorrectionPlane from pixels into
+	 * result, which may be pixels itself.
+	 *
+	 * @throws MMException
+	 *             when sizes or types do not match
+	 */
+	public void subtract(final Object pixels, final int[] plane, final Object result, int width, int height)
+			throws MMException {
+		int length = ImageUtils2.pixelCount(pixels);
+		if (length < 0) {
+			throw new MMException("Types of images to be subtracted were not compatible");
+		}
+		if (length != plane.length || length != width * height) {
+			throw new MMException("Error: Images are of unequal size, " + String.valueOf(length) + ","
+					+ String.valueOf(plane.length));
+		}
+		execute(width, height, new Band() {
+			@Override
+			public void run(int from, int to) {
+				ImageUtils2.subtractCorrectionPlane(pixels, plane, result, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Flat-field corrects pixels into result, which may be pixels itself. With
+	 * a null gain map this is subtract(pixels, plane, result, width, height)
+	 * and plane must already include the offset.
+	 *
+	 * @param plane
+	 *            - dark plane made by ImageUtils2.makeCorrectionPlane(dark, 0)
+	 * @param gain
+	 *            - map made by ImageUtils2.makeGainMap, or null
+	 * @throws MMException
+	 *             when sizes or types do not match
+	 */
+	public void subtract(final Object pixels, final int[] plane, final int[] gain, final int offset,
+			final Object result, int width, int height) throws MMException {
+		subtract(pixels, plane, gain, offset, result, width, height, null);
+	}
+
+	/**
+	 * Same as subtract(pixels, plane, gain, offset, result, width, height), and
+	 * collects statistics of the result in the same pass unless stats is null.
+	 */
+	public void subtract(final Object pixels, final int[] plane, final int[] gain, final int offset,
+			final Object result, int width, int height, final FrameStatistics stats) throws MMException {
+		if (gain == null && stats == null) {
+			subtract(pixels, plane, result, width, height);
+			return;
+		}
+		int length = ImageUtils2.pixelCount(pixels);
+		if (length < 0) {
+			throw new MMException("Types of images to be subtracted were not compatible");
+		}
+		if (length != plane.length || (gain != null && length != gain.length) || length != width * height) {
+			throw new MMException("Error: Images are of unequal size, " + String.valueOf(length) + ","
+					+ String.valueOf(plane.length));
+		}
+		execute(width, height, new Band() {
+			@Override
+			public void run(int from, int to) {
+				if (gain == null) {
+					ImageUtils2.subtractCorrectionPlane(pixels, plane, result, from, to, stats);
+				} else if (stats == null) {
+					ImageUtils2.subtractAndScale(pixels, plane, gain, offset, result, from, to);
+				} else {
+					ImageUtils2.subtractAndScale(pixels, plane, gain, offset, result, from, to, stats);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Corrects pixels with a per-pixel calibration into result, which may be
+	 * pixels itself.
+	 *
+	 * @param offset
+	 *            - value added after scaling
+	 * @throws MMException
+	 *             when sizes or types do not match
+	 */
+	public void subtractCalibrated(Object pixels, PhotonTransferCalibration calibration, int offset, Object result,
+			int width, int height) throws MMException {
+		subtractCalibrated(pixels, calibration, offset, result, width, height, null);
+	}
+
+	/**
+	 * Same as subtractCalibrated(pixels, calibration, offset, result, width,
+	 * height), and collects statistics of the result in the same pass unless
+	 * stats is null.
+	 */
+	public void subtractCalibrated(final Object pixels, PhotonTransferCalibration calibration, final int offset,
+			final Object result, int width, int height, final FrameStatistics stats) throws MMException {
+		int length = ImageUtils2.pixelCount(pixels);
+		if (length < 0) {
+			throw new MMException("Types of images to be subtracted were not compatible");
+		}
+		final short[] dark = calibration.getOffset();
+		final short[] gain = calibration.getGain();
+		if (length != dark.length || length != width * height) {
+			throw new MMException("Error: Images are of unequal size, " + String.valueOf(length) + ","
+					+ String.valueOf(dark.length));
+		}
+		execute(width, height, new Band() {
+			@Override
+			public void run(int from, int to) {
+				if (stats == null) {
+					ImageUtils2.subtractCalibrated(pixels, dark, gain, offset, result, from, to);
+				} else {
+					ImageUtils2.subtractCalibrated(pixels, dark, gain, offset, result, from, to, stats);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Subtracts a plane made by ImageUtils2.makeFloatPlane from float pixels
+	 * into result, which may be pixels itself.
+	 *
+	 * @throws MMException
+	 *             when sizes or types do not match
+	 */
+	public void subtractFloat(Object pixels, final float[] plane, Object result, int width, int height)
+			throws MMException {
+		if (!(pixels instanceof float[]) || !(result instanceof float[])) {
+			throw new MMException("Types of images to be subtracted were not compatible");
+		}
+		final float[] p = (float[]) pixels;
+		final float[] r = (float[]) result;
+		if (p.length != plane.length || p.length != width * height) {
+			throw new MMException("Error: Images are of unequal size, " + String.valueOf(p.length) + ","
+					+ String.valueOf(plane.length));
+		}
+		execute(width, height, new Band() {
+			@Override
+			public void run(int from, int to) {
+				ImageUtils2.subtractFloatPlane(p, plane, r, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Subtracts a plane made by ImageUtils2.makeRgbPlane from packed int[] or
+	 * B, G, R, A byte[] pixels into result, which may be pixels itself.
+	 *
+	 * @throws MMException
+	 *             when sizes or types do not match
+	 */
+	public void subtractRgb(final Object pixels, final int[] plane, final int offset, final Object result,
+			int width, int height) throws MMException {
+		int length;
+		if (pixels instanceof int[] && result instanceof int[]) {
+			length = ((int[]) pixels).length;
+		} else if (pixels instanceof byte[] && result instanceof byte[]) {
+			length = ((byte[]) pixels).length / 4;
+		} else {
+			throw new MMException("Types of images to be subtracted were not compatible");
+		}
+		if (length != plane.length || length != width * height) {
+			throw new MMException("Error: Images are of unequal size, " + String.valueOf(length) + ","
+					+ String.valueOf(plane.length));
+		}
+		execute(width, height, new Band() {
+			@Override
+			public void run(int from, int to) {
+				ImageUtils2.subtractRgbPlane(pixels, plane, offset, result, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Splits width x height pixels into bands of whole rows and runs them. The
+	 * last band runs on the calling thread. Returns when all bands are done.
+	 *
+	 * @throws MMException
+	 *             when a band failed
+	 */
+	public void execute(int width, int height, Band band) throws MMException {
+		int length = width * height;
+		if (pool_ == null || length < threshold_ || height < threads_) {
+			band.run(0, length);
+			return;
+		}
+		int rowsPerBand = (height + threads_ - 1) / threads_;
+		int bandLength = rowsPerBand * width;
+		Future<?>[] futures = new Future<?>[threads_ - 1];
+		int submitted = 0;
+		int from = 0;
+		try {
+			for (; submitted < futures.length && from + bandLength < length; submitted++) {
+				futures[submitted] = pool_.submit(newTask(band, from, from + bandLength));
+				from += bandLength;
+			}
+		} catch (RejectedExecutionException ex) {
+			// Engine was shut down while this frame was in flight
+		}
+		band.run(from, length);
+		try {
+			for (int i = 0; i < submitted; i++) {
+				futures[i].get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MMException("Interrupted while subtracting");
+		} catch (ExecutionException ex) {
+			throw new MMException("Subtraction failed: " + ex.getCause());
+		}
+	}
+
+	private static Runnable newTask(final Band band, final int from, final int to) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				band.run(from, to);
+			}
+		};
+	}
+
+	/**
+	 * Stops the worker threads after queued bands are done.
+	 */
+	public void shutdown() {
+		if (pool_ != null) {
+			pool_.shutdown();
+		}
+	}
+}
@@ -0,0 +1,329 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TiffPlanes.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Locates the planes of an uncompressed TIFF file, as written by
+ * Micro-Manager and ImageJ, without decoding them. Every IFD must hold one
+ * unsigned 8 or 16 bit gray plane in contiguous strips, all of the same size.
+ * A single IFD that ImageJ writes for stacks over 4 GB ("images=" in its
+ * description) stands for that many consecutive planes, like in
+ * ij.io.TiffDecoder.
+ */
+public final class TiffPlanes {
+	private static final int WIDTH = 256;
+	private static final int HEIGHT = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int SAMPLE_FORMAT = 339;
+
+	private final ByteOrder order_;
+	private final int width_;
+	private final int height_;
+	private final int bytesPerPixel_;
+	private final long[] offsets_;
+
+	private TiffPlanes(ByteOrder order, int width, int height, int bytesPerPixel, long[] offsets) {
+		order_ = order;
+		width_ = width;
+		height_ = height;
+		bytesPerPixel_ = bytesPerPixel;
+		offsets_ = offsets;
+	}
+
+	/**
+	 * Reads the IFDs of a TIFF file
+	 *
+	 * @throws IOException
+	 *             when the file is no TIFF or holds planes of another kind
+	 */
+	public static TiffPlanes read(FileChannel channel) throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(8);
+		readFully(channel, header, 0);
+		ByteOrder order;
+		if (header.get(0) == 'I' && header.get(1) == 'I') {
+			order = ByteOrder.LITTLE_ENDIAN;
+		} else if (header.get(0) == 'M' && header.get(1) == 'M') {
+			order = ByteOrder.BIG_ENDIAN;
+		} else {
+			throw new IOException("Not a TIFF file");
+		}
+		header.order(order);
+		if (header.getShort(2) != 42) {
+			throw new IOException("Not a TIFF file or a BigTIFF file");
+		}
+		int width = 0;
+		int height = 0;
+		int bytesPerPixel = 0;
+		long planeSize = 0;
+		long[] offsets = new long[16];
+		int count = 0;
+		String description = null;
+		long ifd = header.getInt(4) & 0xffffffffL;
+		while (ifd != 0) {
+			// An IFD has 2 + 12n + 4 bytes, n >= 1
+			if (ifd + 18 > size || count > size / 18) {
+				throw new IOException("Corrupt TIFF file");
+			}
+			ByteBuffer entries = read(channel, ifd, 2, order);
+			int n = entries.getShort(0) & 0xffff;
+			entries = read(channel, ifd + 2, 12 * n + 4, order);
+			int w = 0;
+			int h = 0;
+			int bits = 0;
+			int samples = 1;
+			int compression = 1;
+			int format = 1;
+			long[] stripOffsets = null;
+			long[] stripCounts = null;
+			for (int i = 0; i < n; i++) {
+				int entry = 12 * i;
+				int tag = entries.getShort(entry) & 0xffff;
+				switch (tag) {
+				case WIDTH:
+					w = (int) value(entries, entry);
+					break;
+				case HEIGHT:
+					h = (int) value(entries, entry);
+					break;
+				case BITS_PER_SAMPLE:
+					bits = (int) values(channel, entries, entry, order)[0];
+					break;
+				case COMPRESSION:
+					compression = (int) value(entries, entry);
+					break;
+				case SAMPLES_PER_PIXEL:
+					samples = (int) value(entries, entry);
+					break;
+				case SAMPLE_FORMAT:
+					format = (int) values(channel, entries, entry, order)[0];
+					break;
+				case STRIP_OFFSETS:
+					stripOffsets = values(channel, entries, entry, order);
+					break;
+				case STRIP_BYTE_COUNTS:
+					stripCounts = values(channel, entries, entry, order);
+					break;
+				case DESCRIPTION:
+					if (count == 0) {
+						description = ascii(channel, entries, entry, order);
+					}
+					break;
+				default:
+					break;
+				}
+			}
+			// Signed (2) and floating point (3) samples are not supported
+			if (compression != 1 || samples != 1 || format != 1 || (bits != 8 && bits != 16)) {
+				throw new IOException("Only uncompressed unsigned 8 or 16 bit gray TIFF files are supported");
+			}
+			if (stripOffsets == null || stripCounts == null || stripOffsets.length != stripCounts.length) {
+				throw new IOException("TIFF plane without strips");
+			}
+			if (count == 0) {
+				width = w;
+				height = h;
+				bytesPerPixel = bits / 8;
+				planeSize = (long) w * h * bytesPerPixel;
+			} else if (w != width || h != height || bits / 8 != bytesPerPixel) {
+				throw new IOException("TIFF planes differ in size or type");
+			}
+			long end = stripOffsets[0];
+			for (int i = 0; i < stripOffsets.length; i++) {
+				if (stripOffsets[i] != end) {
+					throw new IOException("TIFF strips are not contiguous");
+				}
+				end += stripCounts[i];
+			}
+			if (end - stripOffsets[0] < planeSize || stripOffsets[0] + planeSize > size) {
+				throw new IOException("TIFF file is truncated");
+			}
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			offsets[count++] = stripOffsets[0];
+			long next = entries.getInt(12 * n) & 0xffffffffL;
+			if (next == ifd) {
+				throw new IOException("Corrupt TIFF file");
+			}
+			ifd = next;
+		}
+		if (count == 0) {
+			throw new IOException("TIFF file without planes");
+		}
+		int images = imagesOf(description);
+		if (count == 1 && images > 1) {
+			// ImageJ stacks over 4 GB have one IFD and consecutive planes
+			if (offsets[0] + images * planeSize > size) {
+				throw new IOException("TIFF file is truncated");
+			}
+			long first = offsets[0];
+			offsets = new long[images];
+			for (int i = 0; i < images; i++) {
+				offsets[i] = first + i * planeSize;
+			}
+			count = images;
+		}
+		return new TiffPlanes(order, width, height, bytesPerPixel, Arrays.copyOf(offsets, count));
+	}
+
+	/**
+	 * Returns the "images=" entry of an ImageJ description, 0 if there is none
+	 */
+	private static int imagesOf(String description) {
+		if (description == null || !description.startsWith("ImageJ")) {
+			return 0;
+		}
+		for (String line : description.split("\n")) {
+			if (line.startsWith("images=")) {
+				try {
+					return Integer.parseInt(line.substring(7).trim());
+				} catch (NumberFormatException ex) {
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Value of a SHORT or LONG entry with count 1
+	 */
+	private static long value(ByteBuffer entries, int entry) {
+		int type = entries.getShort(entry + 2);
+		return type == 3 ? entries.getShort(entry + 8) & 0xffff : entries.getInt(entry + 8) & 0xffffffffL;
+	}
+
+	/**
+	 * Values of a SHORT or LONG entry, read from the file unless they fit into
+	 * the entry
+	 */
+	private static long[] values(FileChannel channel, ByteBuffer entries, int entry, ByteOrder order)
+			throws IOException {
+		int type = entries.getShort(entry + 2);
+		long n = entries.getInt(entry + 4) & 0xffffffffL;
+		int size = type == 3 ? 2 : 4;
+		if (type != 3 && type != 4) {
+			throw new IOException("Unexpected TIFF field type " + type);
+		}
+		if (n * size > channel.size()) {
+			throw new IOException("Corrupt TIFF file");
+		}
+		ByteBuffer data;
+		int base;
+		if (n * size <= 4) {
+			data = entries;
+			base = entry + 8;
+		} else {
+			data = read(channel, entries.getInt(entry + 8) & 0xffffffffL, (int) n * size, order);
+			base = 0;
+		}
+		long[] values = new long[(int) n];
+		for (int i = 0; i < n; i++) {
+			values[i] = size == 2 ? data.getShort(base + 2 * i) & 0xffff : data.getInt(base + 4 * i) & 0xffffffffL;
+		}
+		return values;
+	}
+
+	private static String ascii(FileChannel channel, ByteBuffer entries, int entry, ByteOrder order)
+			throws IOException {
+		long n = entries.getInt(entry + 4) & 0xffffffffL;
+		if (n <= 4 || n > 1 << 20) {
+			return null;
+		}
+		ByteBuffer data = read(channel, entries.getInt(entry + 8) & 0xffffffffL, (int) n, order);
+		return new String(data.array(), 0, (int) n, "ISO-8859-1");
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+		readFully(channel, buffer, position);
+		return buffer;
+	}
+
+	/**
+	 * Fills buffer from position on
+	 */
+	public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Writes all of buffer at position
+	 */
+	public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.rewind();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	public ByteOrder getByteOrder() {
+		return order_;
+	}
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	/**
+	 * 1 for 8 bit, 2 for 16 bit planes
+	 */
+	public int getBytesPerPixel() {
+		return bytesPerPixel_;
+	}
+
+	public int getPlaneCount() {
+		return offsets_.length;
+	}
+
+	/**
+	 * Position of the first byte of plane i in the file
+	 */
+	public long getOffset(int i) {
+		return offsets_[i];
+	}
+}
@@ -0,0 +1,90 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CMMCore.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package mmcorej;
+
+/**
+ * Core without any device. Every acquisition call fails.
+ */
+public class CMMCore {
+	private static final String NO_DEVICE = "No camera in the build stand-in";
+
+	public void snapImage() throws Exception {
+		throw new Exception(NO_DEVICE);
+	}
+
+	public TaggedImage getTaggedImage() throws Exception {
+		throw new Exception(NO_DEVICE);
+	}
+
+	public TaggedImage getLastTaggedImage() throws Exception {
+		throw new Exception(NO_DEVICE);
+	}
+
+	public TaggedImage popNextTaggedImage() throws Exception {
+		throw new Exception(NO_DEVICE);
+	}
+
+	public void startSequenceAcquisition(int numImages, double intervalMs, boolean stopOnOverflow)
+			throws Exception {
+		throw new Exception(NO_DEVICE);
+	}
+
+	public void stopSequenceAcquisition() throws Exception {
+	}
+
+	public boolean isSequenceRunning() throws Exception {
+		return false;
+	}
+
+	public int getRemainingImageCount() {
+		return 0;
+	}
+
+	public double getExposure() throws Exception {
+		return 0;
+	}
+
+	public long getImageWidth() {
+		return 0;
+	}
+
+	public long getImageHeight() {
+		return 0;
+	}
+
+	public long getBytesPerPixel() {
+		return 0;
+	}
+
+	public String getCameraDevice() {
+		return "";
+	}
+
+	public String getChannelGroup() {
+		return "";
+	}
+
+	public StrVector getAvailableConfigs(String group) {
+		return new StrVector();
+	}
+
+	public String getCurrentConfig(String group) throws Exception {
+		return "";
+	}
+
+	public String getProperty(String label, String propName) throws Exception {
+		throw new Exception(NO_DEVICE);
+	}
+}
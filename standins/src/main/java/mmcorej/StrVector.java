@@ -0,0 +1,34 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          StrVector.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package mmcorej;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StrVector {
+	private final List<String> values_ = new ArrayList<String>();
+
+	public long size() {
+		return values_.size();
+	}
+
+	public String get(int i) {
+		return values_.get(i);
+	}
+
+	public void add(String value) {
+		values_.add(value);
+	}
+}
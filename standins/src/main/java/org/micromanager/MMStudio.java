@@ -0,0 +1,70 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MMStudio.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager;
+
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.List;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+import org.micromanager.api.DataProcessor;
+import org.micromanager.api.ScriptInterface;
+
+public class MMStudio implements ScriptInterface {
+	private final CMMCore core_ = new CMMCore();
+	private final AcquisitionEngine engine_ = new AcquisitionEngine();
+	private boolean liveModeOn_ = false;
+
+	public MMStudio(boolean shouldRunAsPlugin) {
+	}
+
+	public static class AcquisitionEngine {
+		private final List<DataProcessor<TaggedImage>> processors_ = new ArrayList<DataProcessor<TaggedImage>>();
+
+		public List<DataProcessor<TaggedImage>> getImageProcessors() {
+			return processors_;
+		}
+	}
+
+	public AcquisitionEngine getAcquisitionEngine() {
+		return engine_;
+	}
+
+	@Override
+	public CMMCore getMMCore() {
+		return core_;
+	}
+
+	@Override
+	public List<DataProcessor<TaggedImage>> getImageProcessorPipeline() {
+		return engine_.getImageProcessors();
+	}
+
+	@Override
+	public boolean isLiveModeOn() {
+		return liveModeOn_;
+	}
+
+	@Override
+	public void enableLiveMode(boolean enable) {
+		liveModeOn_ = enable;
+	}
+
+	@Override
+	public void addMMBackgroundListener(Component frame) {
+	}
+}
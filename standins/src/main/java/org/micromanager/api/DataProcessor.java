@@ -0,0 +1,102 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DataProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.api;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread that takes data from an input queue, processes it and puts the
+ * result on an output queue.
+ */
+public abstract class DataProcessor<E> extends Thread {
+	private BlockingQueue<E> input_;
+	private BlockingQueue<E> output_;
+	private boolean stopRequested_ = false;
+	private boolean isEnabled_ = true;
+	protected ScriptInterface gui_;
+
+	/**
+	 * Polls the input queue once and produces the processed data
+	 */
+	protected abstract void process();
+
+	@Override
+	public void run() {
+		while (!stopRequested()) {
+			process();
+		}
+	}
+
+	public void setApp(ScriptInterface gui) {
+		gui_ = gui;
+	}
+
+	public void setInput(BlockingQueue<E> input) {
+		input_ = input;
+	}
+
+	public void setOutput(BlockingQueue<E> output) {
+		output_ = output;
+	}
+
+	/**
+	 * Waits for the next datum, null once a stop was requested
+	 */
+	protected E poll() {
+		while (!stopRequested()) {
+			try {
+				E datum = input_.poll(100, TimeUnit.MILLISECONDS);
+				if (datum != null) {
+					return datum;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	protected void produce(E datum) {
+		try {
+			output_.put(datum);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized void requestStop() {
+		stopRequested_ = true;
+	}
+
+	public synchronized boolean stopRequested() {
+		return stopRequested_;
+	}
+
+	public void makeConfigurationGUI() {
+	}
+
+	public void dispose() {
+	}
+
+	public void setEnabled(boolean isEnabled) {
+		isEnabled_ = isEnabled;
+	}
+
+	public boolean getIsEnabled() {
+		return isEnabled_;
+	}
+}
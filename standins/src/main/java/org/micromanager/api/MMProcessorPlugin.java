@@ -0,0 +1,25 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MMProcessorPlugin.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.api;
+
+public interface MMProcessorPlugin {
+	String getDescription();
+
+	String getInfo();
+
+	String getVersion();
+
+	String getCopyright();
+}
@@ -0,0 +1,33 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ScriptInterface.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.api;
+
+import java.awt.Component;
+import java.util.List;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+public interface ScriptInterface {
+	CMMCore getMMCore();
+
+	List<DataProcessor<TaggedImage>> getImageProcessorPipeline();
+
+	boolean isLiveModeOn();
+
+	void enableLiveMode(boolean enable);
+
+	void addMMBackgroundListener(Component frame);
+}
@@ -0,0 +1,41 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FileDialogs.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.utils;
+
+import java.awt.Window;
+import java.io.File;
+
+import javax.swing.JFileChooser;
+
+public class FileDialogs {
+	public static class FileType {
+		final String defaultFileName_;
+
+		public FileType(String name, String description, String defaultFileName, boolean suggestFileOnSave,
+				String... suffixes) {
+			defaultFileName_ = defaultFileName;
+		}
+	}
+
+	public static File openFile(Window parent, String title, FileType type) {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setDialogTitle(title);
+		if (type.defaultFileName_ != null) {
+			chooser.setSelectedFile(new File(type.defaultFileName_));
+		}
+		int result = chooser.showOpenDialog(parent);
+		return result == JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile() : null;
+	}
+}
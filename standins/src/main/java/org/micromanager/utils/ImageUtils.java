@@ -0,0 +1,55 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageUtils.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+
+public class ImageUtils {
+	public static int unsignedValue(byte b) {
+		return b & 0xff;
+	}
+
+	public static int unsignedValue(short s) {
+		return s & 0xffff;
+	}
+
+	/**
+	 * Wraps the pixels of a frame in an ImageJ processor without copying
+	 */
+	public static ImageProcessor makeProcessor(TaggedImage taggedImage) {
+		try {
+			int width = MDUtils.getWidth(taggedImage.tags);
+			int height = MDUtils.getHeight(taggedImage.tags);
+			Object pixels = taggedImage.pix;
+			if (pixels instanceof byte[]) {
+				return new ByteProcessor(width, height, (byte[]) pixels, null);
+			} else if (pixels instanceof short[]) {
+				return new ShortProcessor(width, height, (short[]) pixels, null);
+			} else if (pixels instanceof float[]) {
+				return new FloatProcessor(width, height, (float[]) pixels, null);
+			} else if (pixels instanceof int[]) {
+				return new ColorProcessor(width, height, (int[]) pixels);
+			}
+		} catch (Exception ex) {
+			ReportingUtils.logError(ex);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,67 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MDUtils.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Typed access to the metadata tags of a frame
+ */
+public class MDUtils {
+	public static String getPixelType(JSONObject tags) throws JSONException {
+		return tags.getString("PixelType");
+	}
+
+	public static int getWidth(JSONObject tags) throws JSONException {
+		return tags.getInt("Width");
+	}
+
+	public static int getHeight(JSONObject tags) throws JSONException {
+		return tags.getInt("Height");
+	}
+
+	public static int getBinning(JSONObject tags) throws JSONException {
+		return tags.getInt("Binning");
+	}
+
+	public static String getCamera(JSONObject tags) throws JSONException {
+		return tags.getString("Camera");
+	}
+
+	public static double getExposureMs(JSONObject tags) throws JSONException {
+		return tags.getDouble("Exposure-ms");
+	}
+
+	public static String getChannelName(JSONObject tags) throws JSONException {
+		return tags.getString("Channel");
+	}
+
+	public static int getChannelIndex(JSONObject tags) throws JSONException {
+		return tags.getInt("ChannelIndex");
+	}
+
+	public static int getFrameIndex(JSONObject tags) throws JSONException {
+		return tags.getInt("FrameIndex");
+	}
+
+	public static int getSliceIndex(JSONObject tags) throws JSONException {
+		return tags.getInt("SliceIndex");
+	}
+
+	public static int getPositionIndex(JSONObject tags) throws JSONException {
+		return tags.getInt("PositionIndex");
+	}
+}
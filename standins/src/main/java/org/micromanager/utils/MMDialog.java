@@ -0,0 +1,34 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MMDialog.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.utils;
+
+import java.util.prefs.Preferences;
+
+import javax.swing.JDialog;
+
+/**
+ * Dialog that remembers its position in the user preferences
+ */
+public class MMDialog extends JDialog {
+	private static final long serialVersionUID = 1L;
+
+	protected Preferences getPrefsNode() {
+		return Preferences.userNodeForPackage(getClass());
+	}
+
+	protected void loadAndRestorePosition(int x, int y, int width, int height) {
+		setBounds(x, y, width, height);
+	}
+}
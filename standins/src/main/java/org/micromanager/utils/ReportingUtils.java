@@ -0,0 +1,57 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ReportingUtils.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.utils;
+
+/**
+ * Logs to standard error instead of the CoreLog.
+ */
+public class ReportingUtils {
+	public static void logMessage(String msg) {
+		System.err.println(msg);
+	}
+
+	public static void logDebugMessage(String msg) {
+		System.err.println(msg);
+	}
+
+	public static void logError(String msg) {
+		System.err.println(msg);
+	}
+
+	public static void logError(Throwable e) {
+		e.printStackTrace();
+	}
+
+	public static void logError(Throwable e, String msg) {
+		System.err.println(msg);
+		e.printStackTrace();
+	}
+
+	public static void showMessage(String msg) {
+		logMessage(msg);
+	}
+
+	public static void showError(String msg) {
+		logError(msg);
+	}
+
+	public static void showError(Throwable e) {
+		logError(e);
+	}
+
+	public static void showError(Throwable e, String msg) {
+		logError(e, msg);
+	}
+}
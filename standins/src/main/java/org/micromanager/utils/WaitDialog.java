@@ -0,0 +1,32 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          WaitDialog.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin, build stand-ins
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               Minimal stand-in for the Micro-Manager 1.4 class of the same
+//               name. It only exists to compile, test and benchmark the
+//               plugin without a Micro-Manager installation and is never
+//               packaged with the plugin.
+
+package org.micromanager.utils;
+
+import javax.swing.JWindow;
+
+public class WaitDialog extends JWindow {
+	private static final long serialVersionUID = 1L;
+
+	public WaitDialog(String message) {
+	}
+
+	public void showDialog() {
+		setVisible(true);
+	}
+
+	public void closeDialog() {
+		dispose();
+	}
+}
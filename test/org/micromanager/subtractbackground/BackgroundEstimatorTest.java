@@ -0,0 +1,176 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BackgroundEstimatorTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.micromanager.utils.MMException;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class BackgroundEstimatorTest {
+	private static final int WIDTH = 8;
+	private static final int HEIGHT = 4;
+
+	private final Random random_ = new Random(13);
+
+	private short[] frame(int base, int noise) {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (base + i + random_.nextInt(noise + 1));
+		}
+		return pixels;
+	}
+
+	private static int value(ImageProcessor ip, int i) {
+		return ((short[]) ip.getPixels())[i] & 0xffff;
+	}
+
+	@Test
+	public void meanAndVarianceMatchTwoPasses() throws Exception {
+		BackgroundEstimator estimator = BackgroundEstimator.create(BackgroundEstimator.Method.MEAN, WIDTH, HEIGHT,
+				ImagePlus.GRAY16, 200);
+		assertNull(estimator.getBackground());
+		short[][] frames = new short[200][];
+		for (int f = 0; f < frames.length; f++) {
+			// Large values with a small spread, where a naive sum of squares loses precision
+			frames[f] = frame(60000, 100);
+			estimator.add(frames[f]);
+			if (f == 0) {
+				assertNull(estimator.getVariance());
+			}
+		}
+		assertEquals(200, estimator.getCount());
+		ImageProcessor background = estimator.getBackground();
+		FloatProcessor variance = estimator.getVariance();
+		for (int i = 0; i < WIDTH * HEIGHT; i++) {
+			double sum = 0;
+			for (short[] frame : frames) {
+				sum += frame[i] & 0xffff;
+			}
+			double mean = sum / frames.length;
+			double squares = 0;
+			for (short[] frame : frames) {
+				double d = (frame[i] & 0xffff) - mean;
+				squares += d * d;
+			}
+			assertEquals((int) (mean + 0.5), value(background, i));
+			assertEquals(squares / (frames.length - 1), variance.getf(i), 1e-3);
+		}
+	}
+
+	@Test
+	public void sigmaClippingRejectsTransientOutliers() throws Exception {
+		BackgroundEstimator clipped = BackgroundEstimator.create(BackgroundEstimator.Method.SIGMA_CLIPPED, WIDTH,
+				HEIGHT, ImagePlus.GRAY16, 40);
+		BackgroundEstimator mean = BackgroundEstimator.create(BackgroundEstimator.Method.MEAN, WIDTH, HEIGHT,
+				ImagePlus.GRAY16, 40);
+		for (int f = 0; f < 40; f++) {
+			short[] frame = frame(1000, 20);
+			if (f == 20 || f == 30) {
+				// Cosmic ray hits on one pixel
+				frame[5] = (short) 60000;
+			}
+			clipped.add(frame);
+			mean.add(frame);
+		}
+		ImageProcessor background = clipped.getBackground();
+		for (int i = 0; i < WIDTH * HEIGHT; i++) {
+			assertEquals(1000 + i + 10, value(background, i), 5);
+		}
+		assertTrue(value(mean.getBackground(), 5) > 3000);
+		// The variance is that of the accepted samples
+		assertTrue(clipped.getVariance().getf(5) < 100);
+	}
+
+	@Test
+	public void medianIgnoresOutliers() throws Exception {
+		for (int count : new int[] { 1, 3, 10, 125, 300 }) {
+			BackgroundEstimator median = BackgroundEstimator.create(BackgroundEstimator.Method.MEDIAN, WIDTH, HEIGHT,
+					ImagePlus.GRAY16, count);
+			for (int f = 0; f < count; f++) {
+				short[] frame = frame(1000, 4);
+				if (count > 1 && f % 5 == 1) {
+					// One frame in five is bright
+					Arrays.fill(frame, (short) 60000);
+				}
+				median.add(frame);
+			}
+			ImageProcessor background = median.getBackground();
+			for (int i = 0; i < WIDTH * HEIGHT; i++) {
+				int v = value(background, i);
+				assertTrue(count + " frames: " + v, v >= 1000 + i && v <= 1004 + i);
+			}
+		}
+	}
+
+	@Test
+	public void remedianIsCloseToTheExactMedian() throws Exception {
+		int count = 343;
+		BackgroundEstimator median = BackgroundEstimator.create(BackgroundEstimator.Method.MEDIAN, 1, 1,
+				ImagePlus.GRAY16, count);
+		int[] values = new int[count];
+		for (int f = 0; f < count; f++) {
+			values[f] = random_.nextInt(10000);
+			median.add(new short[] { (short) values[f] });
+		}
+		Arrays.sort(values);
+		int estimate = ((short[]) median.getBackground().getPixels())[0] & 0xffff;
+		// The remedian stays within the central third of the samples
+		assertTrue(estimate >= values[count / 3] && estimate <= values[2 * count / 3]);
+	}
+
+	@Test
+	public void estimatesBytes() throws Exception {
+		for (BackgroundEstimator.Method method : BackgroundEstimator.Method.values()) {
+			BackgroundEstimator estimator = BackgroundEstimator.create(method, 2, 1, ImagePlus.GRAY8, 3);
+			estimator.add(new byte[] { 10, (byte) 200 });
+			estimator.add(new byte[] { 12, (byte) 202 });
+			estimator.add(new byte[] { 14, (byte) 204 });
+			byte[] background = (byte[]) estimator.getBackground().getPixels();
+			assertEquals(method.toString(), 12, background[0] & 0xff);
+			assertEquals(method.toString(), 202, background[1] & 0xff);
+		}
+	}
+
+	@Test(expected = MMException.class)
+	public void rejectsFramesOfAnotherSize() throws Exception {
+		BackgroundEstimator estimator = BackgroundEstimator.create(BackgroundEstimator.Method.MEAN, WIDTH, HEIGHT,
+				ImagePlus.GRAY16, 2);
+		estimator.add(new short[WIDTH * HEIGHT + 1]);
+	}
+
+	@Test(expected = MMException.class)
+	public void rejectsFramesOfAnotherType() throws Exception {
+		BackgroundEstimator estimator = BackgroundEstimator.create(BackgroundEstimator.Method.MEAN, WIDTH, HEIGHT,
+				ImagePlus.GRAY16, 2);
+		estimator.add(new byte[WIDTH * HEIGHT]);
+	}
+}
@@ -0,0 +1,156 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BackgroundLibraryTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class BackgroundLibraryTest {
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private static JSONObject tags(Object binning, double exposureMs) throws Exception {
+		JSONObject tags = new JSONObject();
+		tags.put("Camera", "Cam");
+		tags.put("Binning", binning);
+		tags.put("Exposure-ms", exposureMs);
+		tags.put("ROI", "0-0-4-4");
+		tags.put("PixelType", "GRAY16");
+		return tags;
+	}
+
+	@Test
+	public void keyMatchesTagsItWasMadeFrom() throws Exception {
+		BackgroundKey key = BackgroundKey.fromTags(tags(2, 10.0001));
+		assertTrue(key.matches(tags(2, 10.0001)));
+		assertTrue(key.matches(tags("2", 10.0002)));
+		assertFalse(key.matches(tags(1, 10.0001)));
+		assertFalse(key.matches(tags(2, 10.01)));
+		assertFalse(key.matches(tags("2x2", 10.0001)));
+	}
+
+	@Test
+	public void keySurvivesToStringAndParse() throws Exception {
+		BackgroundKey key = new BackgroundKey("Cam", "2", 12.5, "0-0-4-4", "GRAY16");
+		assertEquals("Cam|2|12.500|0-0-4-4|GRAY16", key.toString());
+		assertEquals(key, BackgroundKey.parse(key.toString()));
+		assertEquals(key.hashCode(), BackgroundKey.parse(key.toString()).hashCode());
+		assertNull(BackgroundKey.parse("Cam|2|x|0-0-4-4|GRAY16"));
+		assertNull(BackgroundKey.parse("Cam|2"));
+	}
+
+	@Test
+	public void lookupReturnsStatesWithTheCurrentOffsetAndFlat() throws Exception {
+		final ShortProcessor background = new ShortProcessor(4, 4);
+		background.set(1000);
+		BackgroundLibrary library = new BackgroundLibrary(folder_.getRoot(), 1 << 20) {
+			@Override
+			protected ImageProcessor open(File file) {
+				return background;
+			}
+		};
+		JSONObject tags = tags(1, 10);
+		library.put(BackgroundKey.fromTags(tags), new File(folder_.getRoot(), "bg.tif"));
+		library.setCorrection(1, null);
+		CorrectionState state = await(library, tags, 1, null);
+		assertEquals(1000 - 655, state.getPlane(ij.ImagePlus.GRAY16)[0]);
+		assertSame(state, library.lookup(tags));
+
+		ShortProcessor flat = new ShortProcessor(4, 4);
+		flat.set(3000);
+		library.setCorrection(2, flat);
+		state = await(library, tags, 2, flat);
+		assertTrue(state.isFlatFielded());
+		library.dispose();
+	}
+
+	@Test
+	public void readsAFailedBackgroundOnlyOnce() throws Exception {
+		final AtomicInteger opened = new AtomicInteger();
+		BackgroundLibrary library = new BackgroundLibrary(folder_.getRoot(), 1 << 20) {
+			@Override
+			protected ImageProcessor open(File file) {
+				opened.incrementAndGet();
+				return null;
+			}
+		};
+		JSONObject tags = tags(1, 10);
+		library.put(BackgroundKey.fromTags(tags), new File(folder_.getRoot(), "bg.tif"));
+		for (int i = 0; i < 50; i++) {
+			assertNull(library.lookup(tags));
+			assertNull(library.lookup(tags(4, 10)));
+			Thread.sleep(2);
+		}
+		assertEquals(1, opened.get());
+		// Putting the background again retries it
+		library.put(BackgroundKey.fromTags(tags), new File(folder_.getRoot(), "bg.tif"));
+		for (int i = 0; i < 50 && opened.get() < 2; i++) {
+			library.lookup(tags);
+			Thread.sleep(10);
+		}
+		assertEquals(2, opened.get());
+		library.dispose();
+	}
+
+	@Test
+	public void readsTheIndexBackByKey() throws Exception {
+		BackgroundKey key = new BackgroundKey("Cam", "2", 12.5, "0-0-4-4", "GRAY16");
+		BackgroundLibrary library = new BackgroundLibrary(folder_.getRoot(), 1 << 20);
+		library.put(key, new File(folder_.getRoot(), "bg.tif"));
+		library.dispose();
+		library = new BackgroundLibrary(folder_.getRoot(), 1 << 20);
+		assertTrue(library.contains(new BackgroundKey("Cam", "2", 12.5001, "0-0-4-4", "GRAY16")));
+		assertFalse(library.contains(new BackgroundKey("Cam", "1", 12.5, "0-0-4-4", "GRAY16")));
+		library.dispose();
+	}
+
+	private static CorrectionState await(BackgroundLibrary library, JSONObject tags, double offsetPercent,
+			ImageProcessor flat) throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			CorrectionState state = library.lookup(tags);
+			if (state != null && state.getOffsetPercent() == offsetPercent && state.getFlat() == flat) {
+				return state;
+			}
+			Thread.sleep(10);
+		}
+		CorrectionState state = library.lookup(tags);
+		assertNotNull(state);
+		assertEquals(offsetPercent, state.getOffsetPercent(), 0);
+		assertSame(flat, state.getFlat());
+		return state;
+	}
+}
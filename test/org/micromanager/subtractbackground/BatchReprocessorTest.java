@@ -0,0 +1,197 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BatchReprocessorTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ShortProcessor;
+
+public class BatchReprocessorTest {
+	private static final int WIDTH = 4;
+	private static final int HEIGHT = 3;
+	private static final int PLANES = 5;
+	private static final short MARKER = 12345;
+
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private BatchReprocessor batch_;
+	private File source_;
+
+	@Before
+	public void setUp() throws Exception {
+		short[] background = new short[WIDTH * HEIGHT];
+		Arrays.fill(background, (short) 100);
+		batch_ = new BatchReprocessor(
+				CorrectionState.create(new ShortProcessor(WIDTH, HEIGHT, background, null), 0, "bg.tif"), 1);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int p = 0; p < PLANES; p++) {
+			short[] pixels = new short[WIDTH * HEIGHT];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short) (1000 * (p + 1) + i);
+			}
+			stack.addSlice(null, new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+		}
+		source_ = new File(folder_.newFolder("in"), "stack.tif");
+		assertTrue(new FileSaver(new ImagePlus("stack", stack)).saveAsTiffStack(source_.getPath()));
+	}
+
+	private static short[] plane(File file, int p) {
+		return (short[]) new Opener().openImage(file.getPath()).getStack().getPixels(p + 1);
+	}
+
+	private static short[] corrected(int p) {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (1000 * (p + 1) + i - 100);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Leaves the state of a run interrupted after done planes, with the planes
+	 * written so far set to MARKER.
+	 */
+	private void interrupt(File target, int done) throws IOException {
+		File part = new File(target.getPath() + BatchReprocessor.PART_SUFFIX);
+		copy(source_, part);
+		RandomAccessFile file = new RandomAccessFile(part, "rw");
+		try {
+			TiffPlanes planes = TiffPlanes.read(file.getChannel());
+			ByteBuffer buffer = ByteBuffer.allocate(WIDTH * HEIGHT * 2).order(planes.getByteOrder());
+			for (int p = 0; p < done; p++) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					buffer.putShort(MARKER);
+				}
+				buffer.flip();
+				TiffPlanes.writeFully(file.getChannel(), buffer, planes.getOffset(p));
+			}
+		} finally {
+			file.close();
+		}
+		write(new File(target.getPath() + BatchReprocessor.PROGRESS_SUFFIX), done + "\n");
+	}
+
+	@Test
+	public void correctsEveryPlane() throws Exception {
+		File target = new File(folder_.getRoot(), "out.tif");
+		batch_.process(source_, target);
+		for (int p = 0; p < PLANES; p++) {
+			assertArrayEquals(corrected(p), plane(target, p));
+		}
+		assertEquals(PLANES, batch_.getPlanesDone());
+		assertFalse(new File(target.getPath() + BatchReprocessor.PART_SUFFIX).exists());
+		assertFalse(new File(target.getPath() + BatchReprocessor.PROGRESS_SUFFIX).exists());
+	}
+
+	@Test
+	public void resumesAfterThePlanesDone() throws Exception {
+		File target = new File(folder_.getRoot(), "out.tif");
+		interrupt(target, 2);
+		batch_.process(source_, target);
+		short[] marker = new short[WIDTH * HEIGHT];
+		Arrays.fill(marker, MARKER);
+		assertArrayEquals(marker, plane(target, 0));
+		assertArrayEquals(marker, plane(target, 1));
+		for (int p = 2; p < PLANES; p++) {
+			assertArrayEquals(corrected(p), plane(target, p));
+		}
+		assertEquals(PLANES - 2, batch_.getPlanesDone());
+	}
+
+	@Test
+	public void startsOverWithoutProgress() throws Exception {
+		File target = new File(folder_.getRoot(), "out.tif");
+		interrupt(target, 2);
+		new File(target.getPath() + BatchReprocessor.PROGRESS_SUFFIX).delete();
+		batch_.process(source_, target);
+		for (int p = 0; p < PLANES; p++) {
+			assertArrayEquals(corrected(p), plane(target, p));
+		}
+	}
+
+	@Test
+	public void runSkipsCompleteFilesAndCopiesOthers() throws Exception {
+		File input = source_.getParentFile();
+		write(new File(input, "metadata.txt"), "{}");
+		File output = folder_.newFolder("out");
+		assertEquals(0, batch_.run(output, Arrays.asList(input)));
+		File target = new File(new File(output, "in"), "stack.tif");
+		assertArrayEquals(corrected(PLANES - 1), plane(target, PLANES - 1));
+		assertTrue(new File(new File(output, "in"), "metadata.txt").isFile());
+		assertEquals(1, batch_.getFilesDone());
+
+		long modified = target.lastModified();
+		long planes = batch_.getPlanesDone();
+		assertEquals(0, batch_.run(output, Arrays.asList(input)));
+		assertEquals(planes, batch_.getPlanesDone());
+		assertEquals(modified, target.lastModified());
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesToOverwriteTheInput() throws Exception {
+		batch_.process(source_, source_);
+	}
+
+	private static void copy(File source, File target) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		try {
+			RandomAccessFile out = new RandomAccessFile(target, "rw");
+			try {
+				in.getChannel().transferTo(0, in.length(), out.getChannel());
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, String text) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+}
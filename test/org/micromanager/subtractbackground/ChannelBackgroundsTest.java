@@ -0,0 +1,106 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelBackgroundsTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import ij.process.ShortProcessor;
+
+public class ChannelBackgroundsTest {
+	private final ChannelBackgrounds channels_ = new ChannelBackgrounds();
+
+	@After
+	public void tearDown() {
+		channels_.dispose();
+	}
+
+	private static JSONObject tags(String channel, String camera) throws Exception {
+		JSONObject tags = new JSONObject();
+		if (channel != null) {
+			tags.put("Channel", channel);
+		}
+		if (camera != null) {
+			tags.put("Camera", camera);
+		}
+		return tags;
+	}
+
+	private static ShortProcessor background(int value) {
+		return new ShortProcessor(2, 1, new short[] { (short) value, (short) value }, null);
+	}
+
+	@Test
+	public void prefersTheCameraOfTheFrame() throws Exception {
+		channels_.put(ChannelBackgrounds.ANY_CAMERA, "DAPI", background(100), "any.tif");
+		channels_.put("Left", "DAPI", background(200), "left.tif");
+		assertEquals("left.tif", channels_.lookup(tags("DAPI", "Left")).getSource());
+		assertEquals("any.tif", channels_.lookup(tags("DAPI", "Right")).getSource());
+		assertEquals("any.tif", channels_.lookup(tags("DAPI", null)).getSource());
+		assertEquals(2, channels_.size());
+	}
+
+	@Test
+	public void framesWithoutABackgroundHaveNoState() throws Exception {
+		channels_.put("Left", "DAPI", background(100), "left.tif");
+		assertNull(channels_.lookup(tags("FITC", "Left")));
+		assertNull(channels_.lookup(tags("DAPI", "Right")));
+		assertNull(channels_.lookup(tags(null, "Left")));
+	}
+
+	@Test
+	public void nullRemovesABackground() throws Exception {
+		channels_.put(ChannelBackgrounds.ANY_CAMERA, "DAPI", background(100), "any.tif");
+		channels_.put("Left", "DAPI", background(200), "left.tif");
+		channels_.put("Left", "DAPI", null, null);
+		assertEquals("any.tif", channels_.lookup(tags("DAPI", "Left")).getSource());
+		assertEquals(1, channels_.size());
+		channels_.clear();
+		assertEquals(0, channels_.size());
+	}
+
+	@Test(timeout = 5000)
+	public void rebuildsStatesWithTheNewCorrection() throws Exception {
+		channels_.put(ChannelBackgrounds.ANY_CAMERA, "DAPI", background(100), "any.tif");
+		channels_.put("Left", "FITC", background(200), "left.tif");
+		ShortProcessor flat = background(1000);
+		channels_.setCorrection(2, flat);
+		for (JSONObject tags : new JSONObject[] { tags("DAPI", null), tags("FITC", "Left") }) {
+			CorrectionState state = channels_.lookup(tags);
+			while (state.getOffsetPercent() != 2 || state.getFlat() != flat) {
+				Thread.sleep(5);
+				state = channels_.lookup(tags);
+			}
+			assertSame(flat, state.getFlat());
+		}
+		// Backgrounds put later get the current correction right away
+		channels_.put("Left", "TRITC", background(300), "tritc.tif");
+		CorrectionState state = channels_.lookup(tags("TRITC", "Left"));
+		assertEquals(2, state.getOffsetPercent(), 0);
+		assertSame(flat, state.getFlat());
+	}
+}
@@ -0,0 +1,150 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CorrectionStateTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+
+public class CorrectionStateTest {
+	private static final int WIDTH = 8;
+	private static final int HEIGHT = 6;
+
+	private static ShortProcessor background() {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (100 + i * 7);
+		}
+		return new ShortProcessor(WIDTH, HEIGHT, pixels, null);
+	}
+
+	private static int[] crop(int[] full, int x, int y, int w, int h) {
+		int[] plane = new int[w * h];
+		for (int row = 0; row < h; row++) {
+			System.arraycopy(full, (y + row) * WIDTH + x, plane, row * w, w);
+		}
+		return plane;
+	}
+
+	@Test
+	public void roiIsTheCroppedFullPlane() {
+		CorrectionState state = CorrectionState.create(background(), 1, "bg.tif");
+		int[] full = state.getPlane(ImagePlus.GRAY16);
+		assertArrayEquals(crop(full, 2, 1, 4, 3), state.getPlane(ImagePlus.GRAY16, 2, 1, 4, 3, 1));
+		assertArrayEquals(full, state.getPlane(ImagePlus.GRAY16, 0, 0, WIDTH, HEIGHT, 1));
+	}
+
+	@Test
+	public void binnedRoiIsTheMeanOfEachBin() {
+		CorrectionState state = CorrectionState.create(background(), 0, "bg.tif");
+		int[] full = state.getPlane(ImagePlus.GRAY16);
+		int[] binned = state.getPlane(ImagePlus.GRAY16, 1, 0, 2, 3, 2);
+		assertEquals(6, binned.length);
+		for (int row = 0; row < 3; row++) {
+			for (int col = 0; col < 2; col++) {
+				int x = (1 + col) * 2;
+				int y = row * 2;
+				double mean = (full[y * WIDTH + x] + full[y * WIDTH + x + 1] + full[(y + 1) * WIDTH + x]
+						+ full[(y + 1) * WIDTH + x + 1]) / 4.0;
+				assertEquals(Math.round(mean), binned[row * 2 + col]);
+			}
+		}
+	}
+
+	@Test
+	public void roiOutsideTheBackgroundHasNoPlane() {
+		CorrectionState state = CorrectionState.create(background(), 0, "bg.tif");
+		assertNull(state.getPlane(ImagePlus.GRAY16, 6, 0, 4, 1, 1));
+		assertNull(state.getPlane(ImagePlus.GRAY16, 0, 2, 4, 2, 2));
+		assertNull(state.getPlane(ImagePlus.GRAY16, -1, 0, 2, 2, 1));
+		assertNull(state.getPlane(ImagePlus.GRAY32, 0, 0, 2, 2, 1));
+	}
+
+	@Test
+	public void roiPlanesAreCached() {
+		CorrectionState state = CorrectionState.create(background(), 0, "bg.tif");
+		int[] first = state.getPlane(ImagePlus.GRAY16, 0, 0, 2, 2, 2);
+		int[] other = state.getPlane(ImagePlus.GRAY16, 1, 1, 2, 2, 1);
+		assertSame(first, state.getPlane(ImagePlus.GRAY16, 0, 0, 2, 2, 2));
+		assertSame(other, state.getPlane(ImagePlus.GRAY16, 1, 1, 2, 2, 1));
+	}
+
+	@Test
+	public void roiGainIsCroppedLikeThePlane() {
+		short[] flat = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < flat.length; i++) {
+			flat[i] = (short) (1000 + (i % 5) * 100);
+		}
+		CorrectionState state = CorrectionState.create(background(), new ShortProcessor(WIDTH, HEIGHT, flat, null), 0,
+				"bg.tif");
+		assertArrayEquals(crop(state.getGain(), 3, 2, 5, 4), state.getGain(ImagePlus.GRAY16, 3, 2, 5, 4, 1));
+		assertNull(CorrectionState.create(background(), 0, "bg.tif").getGain(ImagePlus.GRAY16, 0, 0, 2, 2, 1));
+	}
+
+	@Test
+	public void parsesRoiAndBinningTags() {
+		assertArrayEquals(new int[] { 2, 1, 4, 3 }, SubtractBackgroundProcessor.parseRoi("2-1-4-3"));
+		assertNull(SubtractBackgroundProcessor.parseRoi(""));
+		assertNull(SubtractBackgroundProcessor.parseRoi("2-1-4"));
+		assertNull(SubtractBackgroundProcessor.parseRoi("2-1-4-3-5"));
+		assertNull(SubtractBackgroundProcessor.parseRoi("2--4-3"));
+		assertNull(SubtractBackgroundProcessor.parseRoi("2-1-4-"));
+		assertNull(SubtractBackgroundProcessor.parseRoi("2,1,4,3"));
+		assertEquals(2, SubtractBackgroundProcessor.parseBinning("2"));
+		assertEquals(4, SubtractBackgroundProcessor.parseBinning("4x4"));
+		assertEquals(1, SubtractBackgroundProcessor.parseBinning(""));
+		assertEquals(1, SubtractBackgroundProcessor.parseBinning("0"));
+	}
+
+	@Test
+	public void processorSubtractsTheRoiOfTheBackground() throws Exception {
+		SubtractBackgroundProcessor processor = new SubtractBackgroundProcessor();
+		try {
+			processor.setThreadCount(1, SubtractionEngine.DEFAULT_THRESHOLD);
+			processor.setBackgroundImage(background(), "bg.tif");
+			JSONObject tags = new JSONObject();
+			tags.put("PixelType", "GRAY16");
+			tags.put("Width", 2);
+			tags.put("Height", 1);
+			tags.put(SubtractBackgroundProcessor.TAG_ROI, "3-2-2-1");
+			short[] pixels = new short[] { 1000, 1000 };
+			TaggedImage result = processor.processTaggedImage(new TaggedImage(pixels, tags));
+			int[] full = processor.getCorrectionState().getPlane(ImagePlus.GRAY16);
+			assertArrayEquals(new short[] { (short) (1000 - full[2 * WIDTH + 3]), (short) (1000 - full[2 * WIDTH + 4]) },
+					(short[]) result.pix);
+
+			tags.remove(SubtractBackgroundProcessor.TAG_ROI);
+			result = processor.processTaggedImage(new TaggedImage(pixels.clone(), tags));
+			assertArrayEquals(pixels, (short[]) result.pix);
+		} finally {
+			processor.dispose();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DeferredCorrectionTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.utils.MMException;
+
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+
+public class DeferredCorrectionTest {
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private SubtractBackgroundProcessor processor_;
+	private SubtractionEngine engine_;
+
+	@Before
+	public void setUp() {
+		processor_ = new SubtractBackgroundProcessor();
+		processor_.setThreadCount(1, SubtractionEngine.DEFAULT_THRESHOLD);
+		processor_.setDeferred(true);
+		engine_ = new SubtractionEngine(1, SubtractionEngine.DEFAULT_THRESHOLD);
+	}
+
+	@After
+	public void tearDown() {
+		processor_.dispose();
+		engine_.shutdown();
+	}
+
+	private static TaggedImage frame(short[] pixels) throws Exception {
+		JSONObject tags = new JSONObject();
+		tags.put("PixelType", "GRAY16");
+		tags.put("Width", pixels.length);
+		tags.put("Height", 1);
+		tags.put("FrameIndex", 0);
+		return new TaggedImage(pixels, tags);
+	}
+
+	private TaggedImage deferredFrame(File background) throws Exception {
+		ShortProcessor bg = new ShortProcessor(3, 1, new short[] { 100, 100, 100 }, null);
+		RawBackgroundFile.write(background, bg, 1, null);
+		processor_.setBackgroundImage(bg, background.getAbsolutePath());
+		TaggedImage frame = processor_.processTaggedImage(frame(new short[] { 50, 1000, 2000 }));
+		assertTrue(DeferredCorrection.isDeferred(frame));
+		return frame;
+	}
+
+	@Test
+	public void correctsFromTheRegistryDuringTheAcquisition() throws Exception {
+		TaggedImage frame = deferredFrame(folder_.newFile("bg." + RawBackgroundFile.SUFFIX));
+		TaggedImage corrected = new DeferredCorrection(engine_, 1 << 20).apply(frame);
+		assertArrayEquals(new short[] { 0, 900, 1900 }, (short[]) corrected.pix);
+		assertFalse(DeferredCorrection.isDeferred(corrected));
+	}
+
+	@Test
+	public void reloadsTheBackgroundAfterTheRegistryIsReleased() throws Exception {
+		TaggedImage frame = deferredFrame(folder_.newFile("bg." + RawBackgroundFile.SUFFIX));
+		// Ends the acquisition: tags survive, the registered states do not
+		processor_.setDeferred(false);
+		frame = new TaggedImage(frame.pix, new JSONObject(frame.tags.toString()));
+		TaggedImage corrected = new DeferredCorrection(engine_, 1 << 20).apply(frame);
+		assertArrayEquals(new short[] { 0, 900, 1900 }, (short[]) corrected.pix);
+	}
+
+	@Test
+	public void reloadsFramesOfAnotherSession() throws Exception {
+		TaggedImage frame = deferredFrame(folder_.newFile("bg." + RawBackgroundFile.SUFFIX));
+		// A state of this session registered under the frame's generation
+		JSONObject tags = new JSONObject(frame.tags.toString());
+		tags.put(DeferredCorrection.TAG_SESSION, "earlier session");
+		processor_.setBackgroundImage(new ShortProcessor(3, 1, new short[] { 500, 500, 500 }, null), "unsaved");
+		TaggedImage other = processor_.processTaggedImage(frame(new short[] { 1, 2, 3 }));
+		tags.put(SubtractBackgroundProcessor.TAG_GENERATION,
+				other.tags.getLong(SubtractBackgroundProcessor.TAG_GENERATION));
+		TaggedImage corrected = new DeferredCorrection(engine_, 1 << 20).apply(new TaggedImage(frame.pix, tags));
+		assertArrayEquals(new short[] { 0, 900, 1900 }, (short[]) corrected.pix);
+	}
+
+	@Test
+	public void keepsStatesOfOtherProcessors() throws Exception {
+		processor_.setBackgroundImage(new ShortProcessor(3, 1, new short[] { 100, 100, 100 }, null), "unsaved");
+		TaggedImage frame = processor_.processTaggedImage(frame(new short[] { 50, 1000, 2000 }));
+		SubtractBackgroundProcessor other = new SubtractBackgroundProcessor();
+		other.setDeferred(true);
+		other.setDeferred(false);
+		other.dispose();
+		TaggedImage corrected = new DeferredCorrection(engine_, 1 << 20).apply(frame);
+		assertArrayEquals(new short[] { 0, 900, 1900 }, (short[]) corrected.pix);
+	}
+
+	@Test(expected = MMException.class)
+	public void failsWhenTheBackgroundFileIsGone() throws Exception {
+		File background = folder_.newFile("bg." + RawBackgroundFile.SUFFIX);
+		TaggedImage frame = deferredFrame(background);
+		processor_.setDeferred(false);
+		assertTrue(background.delete());
+		new DeferredCorrection(engine_, 1 << 20).apply(frame);
+	}
+}
@@ -0,0 +1,165 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FramePipelineTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.micromanager.acquisition.TaggedImageQueue;
+
+import mmcorej.TaggedImage;
+
+public class FramePipelineTest {
+	@Test
+	public void emitsInSubmissionOrder() throws Exception {
+		final List<TaggedImage> emitted = new ArrayList<TaggedImage>();
+		FramePipeline pipeline = new FramePipeline(4, new FramePipeline.Stage() {
+			@Override
+			public TaggedImage process(TaggedImage image) {
+				try {
+					Thread.sleep((long) (Math.random() * 3));
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return image;
+			}
+		}, new FramePipeline.Output() {
+			@Override
+			public void produce(TaggedImage image) {
+				emitted.add(image);
+			}
+		});
+		List<TaggedImage> frames = new ArrayList<TaggedImage>();
+		for (int i = 0; i < 50; i++) {
+			frames.add(new TaggedImage(new short[1], new JSONObject()));
+			pipeline.submit(frames.get(i));
+		}
+		frames.add(TaggedImageQueue.POISON);
+		pipeline.submit(TaggedImageQueue.POISON);
+		pipeline.drain();
+		pipeline.shutdown();
+		assertEquals(frames, emitted);
+	}
+
+	@Test
+	public void boundsFramesInFlightToDepth() throws Exception {
+		final int depth = 3;
+		final AtomicInteger started = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final FramePipeline pipeline = new FramePipeline(depth, new FramePipeline.Stage() {
+			@Override
+			public TaggedImage process(TaggedImage image) {
+				started.incrementAndGet();
+				return image;
+			}
+		}, new FramePipeline.Output() {
+			@Override
+			public void produce(TaggedImage image) {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 10; i++) {
+						pipeline.submit(new TaggedImage(new short[1], new JSONObject()));
+					}
+				} catch (InterruptedException ex) {
+					// test over
+				}
+			}
+		};
+		submitter.start();
+		// the emitter is stuck on the first frame, so the window stays full
+		Thread.sleep(200);
+		assertEquals(depth, started.get());
+		release.countDown();
+		submitter.join(TimeUnit.SECONDS.toMillis(5));
+		pipeline.drain();
+		pipeline.shutdown();
+		assertEquals(10, started.get());
+	}
+
+	@Test(timeout = 5000)
+	public void forwardDoesNotWaitForTheWindow() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<TaggedImage> emitted = new ArrayList<TaggedImage>();
+		FramePipeline pipeline = new FramePipeline(1, new FramePipeline.Stage() {
+			@Override
+			public TaggedImage process(TaggedImage image) {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return image;
+			}
+		}, new FramePipeline.Output() {
+			@Override
+			public void produce(TaggedImage image) {
+				emitted.add(image);
+			}
+		});
+		TaggedImage slow = new TaggedImage(new short[1], new JSONObject());
+		TaggedImage late = new TaggedImage(new short[1], new JSONObject());
+		pipeline.submit(slow);
+		// the window of one is full, forwarding must still return
+		pipeline.forward(late);
+		release.countDown();
+		pipeline.drain();
+		pipeline.shutdown();
+		assertEquals(2, emitted.size());
+		assertEquals(slow, emitted.get(0));
+		assertEquals(late, emitted.get(1));
+	}
+
+	@Test(timeout = 5000)
+	public void submitAfterShutdownDoesNotBlock() throws Exception {
+		FramePipeline pipeline = new FramePipeline(1, new FramePipeline.Stage() {
+			@Override
+			public TaggedImage process(TaggedImage image) {
+				return image;
+			}
+		}, new FramePipeline.Output() {
+			@Override
+			public void produce(TaggedImage image) {
+			}
+		});
+		pipeline.shutdown();
+		// every rejected frame must return its slot
+		for (int i = 0; i < 3; i++) {
+			pipeline.submit(new TaggedImage(new short[1], new JSONObject()));
+		}
+	}
+}
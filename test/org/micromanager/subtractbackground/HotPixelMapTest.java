@@ -0,0 +1,126 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          HotPixelMapTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.process.ShortProcessor;
+
+public class HotPixelMapTest {
+	private static final int WIDTH = 10;
+	private static final int HEIGHT = 10;
+
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private static short[] noise() {
+		Random random = new Random(7);
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (1000 + random.nextInt(11) - 5);
+		}
+		return pixels;
+	}
+
+	@Test
+	public void findsOnlyBrightOutliers() {
+		short[] pixels = noise();
+		pixels[0] += 2000;
+		pixels[5 * WIDTH + 4] += 2000;
+		pixels[7 * WIDTH + 7] -= 900;
+		int[] hot = HotPixelMap.find(new ShortProcessor(WIDTH, HEIGHT, pixels, null), HotPixelMap.DEFAULT_SIGMAS);
+		assertArrayEquals(new int[] { 0, 5 * WIDTH + 4 }, hot);
+		assertEquals(0, HotPixelMap.find(new ShortProcessor(WIDTH, HEIGHT, noise(), null),
+				HotPixelMap.DEFAULT_SIGMAS).length);
+	}
+
+	@Test
+	public void replacesHotPixelsByTheMedianOfTheirNeighbours() {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (100 + i % WIDTH);
+		}
+		short[] expected = pixels.clone();
+		pixels[0] = (short) 60000;
+		pixels[4 * WIDTH + 4] = (short) 60000;
+		ImageUtils2.replaceHotPixels(pixels, WIDTH, HEIGHT, new int[] { 0, 4 * WIDTH + 4 });
+		// Corner neighbours 101, 100, 101: median 101
+		expected[0] = 101;
+		assertArrayEquals(expected, pixels);
+
+		byte[] bytes = { 10, 10, 10, 10, (byte) 250, 10, 10, 10, 12 };
+		ImageUtils2.replaceHotPixels(bytes, 3, 3, new int[] { 4 });
+		assertEquals(10, bytes[4]);
+	}
+
+	@Test
+	public void readsBackWhatWasWritten() throws Exception {
+		File file = HotPixelMap.fileFor(new File(folder_.getRoot(), "dark.tif"));
+		assertEquals(new File(folder_.getRoot(), "dark-hot.txt").getAbsoluteFile(), file);
+		assertNull(HotPixelMap.read(file, WIDTH, HEIGHT));
+		HotPixelMap.write(file, new int[] { 3, 42, 99 }, WIDTH, HEIGHT);
+		assertArrayEquals(new int[] { 3, 42, 99 }, HotPixelMap.read(file, WIDTH, HEIGHT));
+		// Written for another size
+		assertNull(HotPixelMap.read(file, WIDTH, HEIGHT + 1));
+	}
+
+	@Test
+	public void sortsUnorderedFiles() throws Exception {
+		File file = folder_.newFile("bg-hot.txt");
+		write(file, "10 10\n50\n\n7\n");
+		assertArrayEquals(new int[] { 7, 50 }, HotPixelMap.read(file, WIDTH, HEIGHT));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOffsetsOutsideTheBackground() throws Exception {
+		File file = folder_.newFile("bg-hot.txt");
+		write(file, "10 10\n100\n");
+		HotPixelMap.read(file, WIDTH, HEIGHT);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMalformedFiles() throws Exception {
+		File file = folder_.newFile("bg-hot.txt");
+		write(file, "10 10\nhot\n");
+		HotPixelMap.read(file, WIDTH, HEIGHT);
+	}
+
+	private static void write(File file, String text) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageUtils2Test.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ShortProcessor;
+
+public class ImageUtils2Test {
+	private static final int[] EDGES = { Integer.MIN_VALUE, -65536, -256, -1, 0, 1, 254, 255, 256, 65534, 65535,
+			65536, Integer.MAX_VALUE };
+
+	private final Random random_ = new Random(5);
+
+	private static int clamp(long value, int max) {
+		return (int) Math.max(0, Math.min(max, value));
+	}
+
+	private byte[] randomBytes(int n) {
+		byte[] values = new byte[n];
+		random_.nextBytes(values);
+		return values;
+	}
+
+	private short[] randomShorts(int n) {
+		short[] values = new short[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = (short) random_.nextInt(65536);
+		}
+		values[0] = 0;
+		values[n - 1] = (short) 65535;
+		return values;
+	}
+
+	private int randomOffset() {
+		return random_.nextInt(2 * 70000) - 70000;
+	}
+
+	@Test
+	public void clampsToTheRangeOfThePixelType() {
+		for (int v : EDGES) {
+			assertEquals("clampByte " + v, clamp(v, 255), ImageUtils2.clampByte(v));
+			assertEquals("clampShort " + v, clamp(v, 65535), ImageUtils2.clampShort(v));
+			assertEquals("toByte " + v, (byte) clamp(v, 255), ImageUtils2.toByte(v));
+			assertEquals("toShort " + v, (short) clamp(v, 65535), ImageUtils2.toShort(v));
+		}
+		for (int i = 0; i < 10000; i++) {
+			int v = random_.nextInt();
+			assertEquals(clamp(v, 255), ImageUtils2.clampByte(v));
+			assertEquals(clamp(v, 65535), ImageUtils2.clampShort(v));
+		}
+	}
+
+	@Test
+	public void subtractsBytesWithOffset() {
+		for (int offset : new int[] { -300, -1, 0, 1, 100, 255, 300, randomOffset() }) {
+			byte[] a = randomBytes(1000);
+			byte[] b = randomBytes(1000);
+			byte[] expected = new byte[a.length];
+			for (int i = 0; i < a.length; i++) {
+				expected[i] = (byte) clamp((a[i] & 0xff) - (b[i] & 0xff) + offset, 255);
+			}
+			assertArrayEquals("offset " + offset, expected, ImageUtils2.subtractPixelArraysWithOffset(a, b, offset));
+			// In place
+			ImageUtils2.subtractPixelArraysWithOffset(a, b, offset, a);
+			assertArrayEquals("offset " + offset, expected, a);
+		}
+	}
+
+	@Test
+	public void subtractsShortsWithOffset() {
+		for (int offset : new int[] { -70000, -1, 0, 1, 655, 65535, 70000, randomOffset() }) {
+			short[] a = randomShorts(1000);
+			short[] b = randomShorts(1000);
+			byte[] c = randomBytes(1000);
+			short[] expected = new short[a.length];
+			short[] expectedByte = new short[a.length];
+			for (int i = 0; i < a.length; i++) {
+				expected[i] = (short) clamp((a[i] & 0xffff) - (b[i] & 0xffff) + offset, 65535);
+				expectedByte[i] = (short) clamp((a[i] & 0xffff) - (c[i] & 0xff) + offset, 65535);
+			}
+			assertArrayEquals("offset " + offset, expected, ImageUtils2.subtractPixelArraysWithOffset(a, b, offset));
+			assertArrayEquals("offset " + offset, expectedByte,
+					ImageUtils2.subtractPixelArraysWithOffset(a, c, offset));
+		}
+	}
+
+	@Test
+	public void writesOnlyTheRange() {
+		short[] a = randomShorts(10);
+		short[] b = new short[10];
+		short[] result = new short[10];
+		ImageUtils2.subtractPixelArraysWithOffset(a, b, 0, result, 3, 7);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i >= 3 && i < 7 ? a[i] : 0, result[i]);
+		}
+	}
+
+	/**
+	 * (pixel - dark) * gain + offset rounded half up, with exact arithmetic
+	 */
+	private static long scaled(int pixel, int dark, int gain, int offset, int shift) {
+		long one = 1L << shift;
+		return Math.floorDiv((long) (pixel - dark) * gain + offset * one + one / 2, one);
+	}
+
+	@Test
+	public void subtractAndScaleMatchesExactArithmetic() {
+		int n = 2000;
+		short[] pixels = randomShorts(n);
+		byte[] bytes = randomBytes(n);
+		int[] dark = new int[n];
+		int[] gain = new int[n];
+		for (int i = 0; i < n; i++) {
+			dark[i] = random_.nextInt(65536);
+			gain[i] = random_.nextInt(ImageUtils2.MAX_GAIN + 1);
+		}
+		// Extremes of the Q16 product
+		gain[0] = ImageUtils2.MAX_GAIN;
+		gain[n - 1] = ImageUtils2.MAX_GAIN;
+		dark[n - 1] = 0;
+		for (int offset : new int[] { 0, 100, 65535 }) {
+			short[] expected = new short[n];
+			byte[] expectedBytes = new byte[n];
+			for (int i = 0; i < n; i++) {
+				expected[i] = (short) clamp(scaled(pixels[i] & 0xffff, dark[i], gain[i], offset,
+						ImageUtils2.GAIN_SHIFT), 65535);
+				expectedBytes[i] = (byte) clamp(scaled(bytes[i] & 0xff, dark[i] & 0xff, gain[i], offset,
+						ImageUtils2.GAIN_SHIFT), 255);
+			}
+			int[] darkBytes = new int[n];
+			for (int i = 0; i < n; i++) {
+				darkBytes[i] = dark[i] & 0xff;
+			}
+			assertArrayEquals(expected, ImageUtils2.subtractAndScale(pixels, dark, gain, offset, new short[n], 0, n));
+			assertArrayEquals(expectedBytes,
+					ImageUtils2.subtractAndScale(bytes, darkBytes, gain, offset, new byte[n], 0, n));
+
+			FrameStatistics stats = new FrameStatistics();
+			assertArrayEquals(expected,
+					ImageUtils2.subtractAndScale(pixels, dark, gain, offset, new short[n], 0, n, stats));
+			checkStatistics(pixels, dark, gain, offset, ImageUtils2.GAIN_SHIFT, expected, stats);
+		}
+	}
+
+	@Test
+	public void subtractCalibratedMatchesExactArithmetic() {
+		int n = 2000;
+		short[] pixels = randomShorts(n);
+		byte[] bytes = randomBytes(n);
+		short[] dark = new short[n];
+		short[] gain = new short[n];
+		int[] darkValues = new int[n];
+		int[] gainValues = new int[n];
+		for (int i = 0; i < n; i++) {
+			darkValues[i] = random_.nextInt(65536);
+			gainValues[i] = random_.nextInt(PhotonTransferCalibration.MAX_GAIN + 1);
+		}
+		// Largest product the int arithmetic has to hold
+		darkValues[0] = 65535;
+		gainValues[0] = PhotonTransferCalibration.MAX_GAIN;
+		darkValues[n - 1] = 0;
+		gainValues[n - 1] = PhotonTransferCalibration.MAX_GAIN;
+		for (int i = 0; i < n; i++) {
+			dark[i] = (short) darkValues[i];
+			gain[i] = (short) gainValues[i];
+		}
+		int shift = PhotonTransferCalibration.GAIN_SHIFT;
+		for (int offset : new int[] { 0, 100, 65535 }) {
+			short[] expected = new short[n];
+			byte[] expectedBytes = new byte[n];
+			for (int i = 0; i < n; i++) {
+				expected[i] = (short) clamp(scaled(pixels[i] & 0xffff, darkValues[i], gainValues[i], 0, shift)
+						+ offset, 65535);
+				expectedBytes[i] = (byte) clamp(scaled(bytes[i] & 0xff, darkValues[i], gainValues[i], 0, shift)
+						+ offset, 255);
+			}
+			assertArrayEquals(expected, ImageUtils2.subtractCalibrated(pixels, dark, gain, offset, new short[n], 0, n));
+			assertArrayEquals(expectedBytes,
+					ImageUtils2.subtractCalibrated(bytes, dark, gain, offset, new byte[n], 0, n));
+
+			FrameStatistics stats = new FrameStatistics();
+			assertArrayEquals(expected,
+					ImageUtils2.subtractCalibrated(pixels, dark, gain, offset, new short[n], 0, n, stats));
+			// The offset is added after scaling
+			checkStatistics(pixels, darkValues, gainValues, 0, shift, offset, expected, stats);
+		}
+	}
+
+	private static void checkStatistics(short[] pixels, int[] dark, int[] gain, int offset, int shift,
+			short[] expected, FrameStatistics stats) {
+		checkStatistics(pixels, dark, gain, offset, shift, 0, expected, stats);
+	}
+
+	/**
+	 * Statistics of expected, clipped counts from the unclamped values
+	 */
+	private static void checkStatistics(short[] pixels, int[] dark, int[] gain, int offset, int shift, int added,
+			short[] expected, FrameStatistics stats) {
+		long sum = 0;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		int low = 0;
+		int high = 0;
+		for (int i = 0; i < expected.length; i++) {
+			long v = scaled(pixels[i] & 0xffff, dark[i], gain[i], offset, shift) + added;
+			low += v < 0 ? 1 : 0;
+			high += v > 65535 ? 1 : 0;
+			int e = expected[i] & 0xffff;
+			sum += e;
+			min = Math.min(min, e);
+			max = Math.max(max, e);
+		}
+		assertEquals(expected.length, stats.getCount());
+		assertEquals((double) sum / expected.length, stats.getMean(), 1e-9);
+		assertEquals(min, stats.getMin());
+		assertEquals(max, stats.getMax());
+		assertEquals(low, stats.getClippedLow());
+		assertEquals(high, stats.getClippedHigh());
+	}
+
+	@Test
+	public void floatPlaneSubtractsTheOffsetAndIsNotClamped() {
+		short[] background = randomShorts(100);
+		float[] plane = ImageUtils2.makeFloatPlane(new ShortProcessor(100, 1, background, null), 10.5f);
+		float[] pixels = new float[100];
+		for (int i = 0; i < pixels.length; i++) {
+			assertEquals((background[i] & 0xffff) - 10.5f, plane[i], 0f);
+			pixels[i] = random_.nextFloat() * 1000 - 500;
+		}
+		float[] result = ImageUtils2.subtractFloatPlane(pixels, plane, new float[100], 0, 100);
+		for (int i = 0; i < pixels.length; i++) {
+			assertEquals(pixels[i] - plane[i], result[i], 0f);
+		}
+	}
+
+	@Test
+	public void rgbPlaneOfAGrayBackgroundRepeatsTheChannel() {
+		int[] plane = ImageUtils2.makeRgbPlane(new ByteProcessor(3, 1, new byte[] { 0, 7, (byte) 255 }, null));
+		assertArrayEquals(new int[] { 0, 0x070707, 0xffffff }, plane);
+		int[] rgb = { 0x102030, 0xff0000 };
+		assertArrayEquals(rgb, ImageUtils2.makeRgbPlane(new ColorProcessor(2, 1, rgb)));
+		assertEquals(null, ImageUtils2.makeRgbPlane(new ShortProcessor(1, 1)));
+	}
+
+	@Test
+	public void subtractRgbSaturatesEveryChannel() {
+		int n = 1000;
+		int[] pixels = new int[n];
+		int[] plane = new int[n];
+		byte[] bytes = new byte[4 * n];
+		for (int i = 0; i < n; i++) {
+			pixels[i] = random_.nextInt();
+			plane[i] = random_.nextInt() & 0xffffff;
+			bytes[4 * i] = (byte) pixels[i];
+			bytes[4 * i + 1] = (byte) (pixels[i] >> 8);
+			bytes[4 * i + 2] = (byte) (pixels[i] >> 16);
+			bytes[4 * i + 3] = (byte) (pixels[i] >> 24);
+		}
+		for (int offset : new int[] { -300, 0, 20, 300 }) {
+			int[] expected = new int[n];
+			for (int i = 0; i < n; i++) {
+				int p = pixels[i];
+				int q = plane[i];
+				expected[i] = (p & 0xff000000) | clamp(((p >> 16) & 0xff) - ((q >> 16) & 0xff) + offset, 255) << 16
+						| clamp(((p >> 8) & 0xff) - ((q >> 8) & 0xff) + offset, 255) << 8
+						| clamp((p & 0xff) - (q & 0xff) + offset, 255);
+			}
+			assertArrayEquals(expected, ImageUtils2.subtractRgbPlane(pixels, plane, offset, new int[n], 0, n));
+			byte[] result = ImageUtils2.subtractRgbPlane(bytes, plane, offset, new byte[4 * n], 0, n);
+			for (int i = 0; i < n; i++) {
+				int packed = (result[4 * i] & 0xff) | (result[4 * i + 1] & 0xff) << 8 | (result[4 * i + 2] & 0xff) << 16
+						| (result[4 * i + 3] & 0xff) << 24;
+				assertEquals(expected[i], packed);
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LatencyHistogramTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void bucketsHoldValuesWithin1of16() {
+		Random random = new Random(9);
+		for (int i = 0; i < 100000; i++) {
+			long value = i < 5000 ? i : random.nextLong() >>> (random.nextInt(30) + 14);
+			long lower = LatencyHistogram.lowerBoundOf(LatencyHistogram.indexOf(value));
+			assertTrue(value + " below " + lower, lower <= value);
+			assertTrue(value + " too far from " + lower, value - lower <= lower / 16);
+		}
+	}
+
+	@Test
+	public void lowerBoundsMapToTheirOwnBucket() {
+		for (int index = 0; index < 59 * 16; index++) {
+			assertEquals(index, LatencyHistogram.indexOf(LatencyHistogram.lowerBoundOf(index)));
+			if (index > 0) {
+				assertTrue(LatencyHistogram.lowerBoundOf(index - 1) < LatencyHistogram.lowerBoundOf(index));
+			}
+		}
+	}
+
+	@Test
+	public void percentilesAreLowerBoundsOfTheirBuckets() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+		for (long micros = 1; micros <= 1000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500, histogram.getMean(), 1e-6);
+		long median = histogram.getPercentile(50);
+		assertEquals(LatencyHistogram.lowerBoundOf(LatencyHistogram.indexOf(500000)), median);
+		long p99 = histogram.getPercentile(99);
+		assertEquals(LatencyHistogram.lowerBoundOf(LatencyHistogram.indexOf(990000)), p99);
+		assertEquals(LatencyHistogram.lowerBoundOf(LatencyHistogram.indexOf(1000000)), histogram.getPercentile(100));
+		assertEquals(LatencyHistogram.lowerBoundOf(LatencyHistogram.indexOf(1000)), histogram.getPercentile(0));
+	}
+
+	@Test
+	public void recordsNegativeDurationsAsZeroAndResets() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
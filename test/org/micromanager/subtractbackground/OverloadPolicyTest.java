@@ -0,0 +1,82 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          OverloadPolicyTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class OverloadPolicyTest {
+	private static JSONObject elapsed(double ms) throws Exception {
+		JSONObject tags = new JSONObject();
+		tags.put("ElapsedTime-ms", ms);
+		return tags;
+	}
+
+	@Test
+	public void delayIsTheWaitOnTopOfTheEarliestFrame() throws Exception {
+		ArrivalDelay arrival = new ArrivalDelay();
+		assertEquals(-1, arrival.delayMs(new JSONObject(), 1000));
+		assertEquals(0, arrival.delayMs(elapsed(0), 1000));
+		assertEquals(30, arrival.delayMs(elapsed(100), 1130));
+		// Earlier than any frame before, the new baseline
+		assertEquals(0, arrival.delayMs(elapsed(200), 1190));
+		assertEquals(10, arrival.delayMs(elapsed(300), 1300));
+		// ElapsedTime-ms going back starts a new acquisition
+		assertEquals(0, arrival.delayMs(elapsed(0), 5000));
+		assertEquals(5, arrival.delayMs(elapsed(10), 5015));
+	}
+
+	@Test
+	public void strictCorrectsEveryFrame() throws Exception {
+		assertNull(OverloadPolicy.STRICT.check(elapsed(0), 0));
+		assertNull(OverloadPolicy.STRICT.check(elapsed(0), 100000));
+		assertSame(OverloadPolicy.STRICT, OverloadPolicy.create(OverloadPolicy.Mode.STRICT, 10, 3));
+	}
+
+	@Test
+	public void passesThroughFramesLaterThanTheBudget() throws Exception {
+		OverloadPolicy policy = OverloadPolicy.passThroughWhenLate(50);
+		assertNull(policy.check(elapsed(0), 1000));
+		assertNull(policy.check(elapsed(100), 1150));
+		assertSame(OverloadPolicy.Reason.LATE, policy.check(elapsed(200), 1251));
+		assertEquals(OverloadPolicy.REASON_LATE, OverloadPolicy.Reason.LATE.getTag());
+		// Frames without ElapsedTime-ms are never late
+		assertNull(policy.check(new JSONObject(), 100000));
+	}
+
+	@Test
+	public void skipsEveryNthFrame() throws Exception {
+		OverloadPolicy policy = OverloadPolicy.create(OverloadPolicy.Mode.SKIP_EVERY_NTH, 0, 3);
+		assertEquals(3, policy.getN());
+		JSONObject tags = new JSONObject();
+		assertNull(policy.check(tags, 0));
+		assertNull(policy.check(tags, 0));
+		assertSame(OverloadPolicy.Reason.SKIPPED, policy.check(tags, 0));
+		assertNull(policy.check(tags, 0));
+		assertEquals(OverloadPolicy.REASON_SKIPPED, OverloadPolicy.Reason.SKIPPED.getTag());
+		assertEquals(2, OverloadPolicy.skipEveryNth(1).getN());
+	}
+}
@@ -0,0 +1,105 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PhotonTransferCalibrationTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.utils.MMException;
+
+import ij.ImagePlus;
+
+public class PhotonTransferCalibrationTest {
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private static BackgroundEstimator series(int width, short[]... frames) throws Exception {
+		BackgroundEstimator estimator = BackgroundEstimator.create(BackgroundEstimator.Method.MEAN, width, 1,
+				ImagePlus.GRAY16, frames.length);
+		for (short[] frame : frames) {
+			estimator.add(frame);
+		}
+		return estimator;
+	}
+
+	@Test
+	public void gainIsTheConversionFactorRelativeToTheMean() throws Exception {
+		BackgroundEstimator dark = series(3, new short[] { 100, 100, 100 }, new short[] { 100, 100, 100 });
+		// Signal 1000 over variances 200 and 800, the third pixel sees no light
+		BackgroundEstimator flat = series(3, new short[] { 1090, 1080, 100 }, new short[] { 1110, 1120, 100 });
+		PhotonTransferCalibration calibration = PhotonTransferCalibration.create(dark, flat);
+		assertEquals(3, calibration.getWidth());
+		assertArrayEquals(new short[] { 100, 100, 100 }, calibration.getOffset());
+		// Factors 5 and 1.25 around their mean 3.125
+		int one = PhotonTransferCalibration.GAIN_ONE;
+		assertArrayEquals(new short[] { (short) Math.round(1.6 * one), (short) Math.round(0.4 * one), (short) one },
+				calibration.getGain());
+	}
+
+	@Test
+	public void gainIsLimited() throws Exception {
+		BackgroundEstimator dark = series(3, new short[] { 100, 100, 100 }, new short[] { 100, 100, 100 });
+		// The first factor is 3 times the mean
+		BackgroundEstimator flat = series(3, new short[] { 1099, 1000, 1000 }, new short[] { 1101, 1200, 1200 });
+		assertEquals(PhotonTransferCalibration.MAX_GAIN, PhotonTransferCalibration.create(dark, flat).getGain()[0]);
+	}
+
+	@Test(expected = MMException.class)
+	public void needsTwoFramesOfEachSeries() throws Exception {
+		PhotonTransferCalibration.create(series(1, new short[] { 100 }),
+				series(1, new short[] { 1000 }, new short[] { 1010 }));
+	}
+
+	@Test(expected = MMException.class)
+	public void seriesMustHaveTheSameSize() throws Exception {
+		PhotonTransferCalibration.create(series(1, new short[] { 100 }, new short[] { 100 }),
+				series(2, new short[] { 1000, 1000 }, new short[] { 1010, 1010 }));
+	}
+
+	@Test
+	public void readsBackWhatWasWritten() throws Exception {
+		short one = (short) PhotonTransferCalibration.GAIN_ONE;
+		PhotonTransferCalibration calibration = new PhotonTransferCalibration(2, 1, new short[] { 10, 20 },
+				new short[] { one, (short) (one + one / 2) });
+		File file = new File(folder_.getRoot(), "ptc.tiff");
+		calibration.write(file);
+		PhotonTransferCalibration read = PhotonTransferCalibration.read(file);
+		assertEquals(2, read.getWidth());
+		assertEquals(1, read.getHeight());
+		assertArrayEquals(new short[] { 10, 20 }, read.getOffset());
+		assertArrayEquals(new short[] { one, (short) (one + one / 2) }, read.getGain());
+		assertEquals(file.getAbsolutePath(), read.getSource());
+	}
+
+	@Test(expected = IOException.class)
+	public void writeFailsLoudly() throws Exception {
+		short one = (short) PhotonTransferCalibration.GAIN_ONE;
+		new PhotonTransferCalibration(1, 1, new short[] { 10 }, new short[] { one })
+				.write(new File(new File(folder_.getRoot(), "missing"), "ptc.tiff"));
+	}
+}
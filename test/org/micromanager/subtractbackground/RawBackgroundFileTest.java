@@ -0,0 +1,146 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RawBackgroundFileTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class RawBackgroundFileTest {
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private File newFile() {
+		return new File(folder_.getRoot(), "bg." + RawBackgroundFile.SUFFIX);
+	}
+
+	private static ShortProcessor randomShorts(int width, int height) {
+		Random random = new Random(21);
+		short[] pixels = new short[width * height];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) random.nextInt(65536);
+		}
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	@Test
+	public void roundTrips16BitBackgrounds() throws Exception {
+		File file = newFile();
+		ShortProcessor background = randomShorts(37, 11);
+		long before = System.currentTimeMillis();
+		RawBackgroundFile.write(file, background, 25, BackgroundEstimator.Method.MEDIAN);
+		RawBackgroundFile raw = RawBackgroundFile.map(file);
+		assertEquals(37, raw.getWidth());
+		assertEquals(11, raw.getHeight());
+		assertEquals(2, raw.getBytesPerPixel());
+		assertEquals(25, raw.getCount());
+		assertEquals(BackgroundEstimator.Method.MEDIAN, raw.getEstimator());
+		assertTrue(raw.getTimestamp() >= before);
+		assertTrue(raw.verify());
+		ImageProcessor read = RawBackgroundFile.open(file);
+		assertArrayEquals((short[]) background.getPixels(), (short[]) read.getPixels());
+	}
+
+	@Test
+	public void roundTrips8BitBackgrounds() throws Exception {
+		File file = newFile();
+		byte[] pixels = new byte[300];
+		new Random(22).nextBytes(pixels);
+		RawBackgroundFile.write(file, new ByteProcessor(20, 15, pixels, null), 1, null);
+		RawBackgroundFile raw = RawBackgroundFile.map(file);
+		assertEquals(1, raw.getBytesPerPixel());
+		assertNull(raw.getEstimator());
+		assertArrayEquals(pixels, (byte[]) RawBackgroundFile.open(file).getPixels());
+	}
+
+	@Test
+	public void rejectsChangedPixels() throws Exception {
+		File file = newFile();
+		RawBackgroundFile.write(file, randomShorts(16, 16), 1, null);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(RawBackgroundFile.HEADER_SIZE + 100);
+			int b = raf.read();
+			raf.seek(RawBackgroundFile.HEADER_SIZE + 100);
+			raf.write(b ^ 1);
+		} finally {
+			raf.close();
+		}
+		assertFalse(RawBackgroundFile.map(file).verify());
+		assertRejected(file);
+	}
+
+	@Test
+	public void rejectsTruncatedAndForeignFiles() throws Exception {
+		File file = newFile();
+		RawBackgroundFile.write(file, randomShorts(16, 16), 1, null);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 2);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file);
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(RawBackgroundFile.HEADER_SIZE - 1);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file);
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(new byte[RawBackgroundFile.HEADER_SIZE + 4]);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file);
+	}
+
+	private static void assertRejected(File file) {
+		try {
+			RawBackgroundFile.open(file);
+			fail(file.getName() + " was opened");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,130 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RollingBackgroundTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+
+public class RollingBackgroundTest {
+	@Test
+	public void selectsEveryIntervalthAndTaggedFrames() throws Exception {
+		RollingBackground rolling = new RollingBackground(3, 4);
+		JSONObject plain = new JSONObject();
+		JSONObject tagged = new JSONObject();
+		tagged.put(RollingBackground.TAG_BACKGROUND_FRAME, true);
+		assertTrue(rolling.select(plain));
+		assertFalse(rolling.select(plain));
+		assertTrue(rolling.select(tagged));
+		assertTrue(rolling.select(plain));
+
+		RollingBackground taggedOnly = new RollingBackground(0, 4);
+		assertFalse(taggedOnly.select(plain));
+		assertTrue(taggedOnly.select(tagged));
+	}
+
+	@Test
+	public void usesThePlainMeanUntilTheWindowIsFull() {
+		RollingBackground rolling = new RollingBackground(1, 4);
+		assertNull(rolling.getBackground());
+		rolling.fold(new short[] { 100, 1000 }, 2, 1, ImagePlus.GRAY16, null);
+		rolling.fold(new short[] { 200, 2000 }, 2, 1, ImagePlus.GRAY16, null);
+		rolling.fold(new short[] { 600, 6000 }, 2, 1, ImagePlus.GRAY16, null);
+		ImageProcessor background = rolling.getBackground();
+		assertTrue(background instanceof ShortProcessor);
+		assertArrayEquals(new short[] { 300, 3000 }, (short[]) background.getPixels());
+	}
+
+	@Test
+	public void decaysOverTheWindow() {
+		RollingBackground rolling = new RollingBackground(1, 2);
+		rolling.fold(new byte[] { 100 }, 1, 1, ImagePlus.GRAY8, null);
+		rolling.fold(new byte[] { (byte) 200 }, 1, 1, ImagePlus.GRAY8, null);
+		rolling.fold(new byte[] { 0 }, 1, 1, ImagePlus.GRAY8, null);
+		ImageProcessor background = rolling.getBackground();
+		assertTrue(background instanceof ByteProcessor);
+		// (100 + 200) / 2, then halfway to 0
+		assertEquals(75, ((byte[]) background.getPixels())[0] & 0xff);
+	}
+
+	@Test
+	public void startsFromAMatchingSeed() {
+		RollingBackground rolling = new RollingBackground(1, 4);
+		ShortProcessor seed = new ShortProcessor(2, 1, new short[] { 1000, 2000 }, null);
+		rolling.fold(new short[] { 1400, 2400 }, 2, 1, ImagePlus.GRAY16, seed);
+		assertArrayEquals(new short[] { 1100, 2100 }, (short[]) rolling.getBackground().getPixels());
+
+		// A seed of another type is ignored
+		RollingBackground other = new RollingBackground(1, 4);
+		other.fold(new byte[] { 40, 80 }, 2, 1, ImagePlus.GRAY8, seed);
+		assertArrayEquals(new byte[] { 40, 80 }, (byte[]) other.getBackground().getPixels());
+	}
+
+	@Test
+	public void restartsWhenTheFrameChanges() {
+		RollingBackground rolling = new RollingBackground(1, 4);
+		rolling.fold(new short[] { 100, 100 }, 2, 1, ImagePlus.GRAY16, null);
+		rolling.fold(new short[] { 500, 500, 500 }, 3, 1, ImagePlus.GRAY16, null);
+		assertEquals(3, rolling.getBackground().getWidth());
+		assertArrayEquals(new short[] { 500, 500, 500 }, (short[]) rolling.getBackground().getPixels());
+
+		rolling.reset();
+		assertNull(rolling.getBackground());
+		rolling.fold(new short[] { 7 }, 1, 1, ImagePlus.GRAY16, null);
+		assertArrayEquals(new short[] { 7 }, (short[]) rolling.getBackground().getPixels());
+	}
+
+	@Test(timeout = 5000)
+	public void processorPublishesTheFoldedBackground() throws Exception {
+		SubtractBackgroundProcessor processor = new SubtractBackgroundProcessor();
+		try {
+			processor.setThreadCount(1, SubtractionEngine.DEFAULT_THRESHOLD);
+			processor.setBackgroundImage(new ShortProcessor(2, 1, new short[] { 100, 100 }, null), "bg.tif");
+			processor.setRollingBackground(new RollingBackground(0, 1));
+			JSONObject tags = new JSONObject();
+			tags.put("PixelType", "GRAY16");
+			tags.put("Width", 2);
+			tags.put("Height", 1);
+			tags.put(RollingBackground.TAG_BACKGROUND_FRAME, true);
+			TaggedImage result = processor.processTaggedImage(new TaggedImage(new short[] { 300, 500 }, tags));
+			// The folded frame itself is corrected with the previous background
+			assertArrayEquals(new short[] { 200, 400 }, (short[]) result.pix);
+			while (!RollingBackground.SOURCE.equals(processor.getCorrectionState().getSource())) {
+				Thread.sleep(5);
+			}
+			assertArrayEquals(new short[] { 300, 500 }, (short[]) processor.getBackgroundImage().getPixels());
+		} finally {
+			processor.dispose();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SpatialBackgroundTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SpatialBackgroundTest {
+	private final Random random_ = new Random(17);
+	private SubtractionEngine engine_;
+
+	@After
+	public void tearDown() {
+		if (engine_ != null) {
+			engine_.shutdown();
+		}
+	}
+
+	private int[] randomValues(int n) {
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = random_.nextInt(65536);
+		}
+		return values;
+	}
+
+	/**
+	 * Minimum or maximum over the window [i - r, i + r] clipped to [0, n)
+	 */
+	private static int[] naiveLine(int[] src, int start, int n, int r, boolean max) {
+		int[] dst = new int[n];
+		for (int i = 0; i < n; i++) {
+			int v = src[start + Math.max(0, i - r)];
+			for (int j = Math.max(0, i - r); j <= Math.min(n - 1, i + r); j++) {
+				v = max ? Math.max(v, src[start + j]) : Math.min(v, src[start + j]);
+			}
+			dst[i] = v;
+		}
+		return dst;
+	}
+
+	private static int[] naiveFilter(int[] src, int width, int height, int r, boolean max) {
+		int[] rows = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(naiveLine(src, y * width, width, r, max), 0, rows, y * width, width);
+		}
+		int[] dst = new int[width * height];
+		int[] column = new int[height];
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				column[y] = rows[y * width + x];
+			}
+			int[] filtered = naiveLine(column, 0, height, r, max);
+			for (int y = 0; y < height; y++) {
+				dst[y * width + x] = filtered[y];
+			}
+		}
+		return dst;
+	}
+
+	@Test
+	public void filterLineMatchesNaiveFilter() {
+		int[] lengths = { 1, 2, 3, 4, 5, 7, 10, 31, 64 };
+		for (int n : lengths) {
+			int[] radii = { 1, 2, 3, 5, n / 2, n - 1, n, n + 3 };
+			for (int r : radii) {
+				if (r < 1) {
+					continue;
+				}
+				for (boolean max : new boolean[] { false, true }) {
+					int start = 3;
+					int[] src = randomValues(n + 2 * start);
+					int[] dst = new int[src.length];
+					Arrays.fill(dst, -1);
+					SpatialBackground.filterLine(src, dst, start, n, r, max, new int[n], new int[n]);
+					String what = "n=" + n + " r=" + r + " max=" + max;
+					assertArrayEquals(what, naiveLine(src, start, n, r, max), Arrays.copyOfRange(dst, start, start + n));
+					assertEquals(what, -1, dst[start - 1]);
+					assertEquals(what, -1, dst[start + n]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void filterColumnsMatchesNaiveFilter() {
+		int[][] sizes = { { 1, 1 }, { 3, 1 }, { 1, 5 }, { 6, 7 }, { 13, 20 } };
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			int[] radii = { 1, 2, 3, height - 1, height, height + 2 };
+			for (int r : radii) {
+				if (r < 1) {
+					continue;
+				}
+				for (boolean max : new boolean[] { false, true }) {
+					int[] src = randomValues(width * height);
+					int[] dst = new int[width * height];
+					Arrays.fill(dst, -1);
+					int col0 = width / 3;
+					int col1 = Math.max(col0 + 1, width - 1);
+					SpatialBackground.filterColumns(src, dst, width, height, col0, col1, r, max,
+							new int[width * height], new int[width * height]);
+					String what = width + "x" + height + " r=" + r + " max=" + max;
+					int[] column = new int[height];
+					for (int x = 0; x < width; x++) {
+						for (int y = 0; y < height; y++) {
+							column[y] = src[y * width + x];
+						}
+						int[] expected = naiveLine(column, 0, height, r, max);
+						for (int y = 0; y < height; y++) {
+							int actual = dst[y * width + x];
+							assertEquals(what + " at " + x + "," + y, x >= col0 && x < col1 ? expected[y] : -1, actual);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Without shrinking the background is the opening itself, so the result
+	 * is the frame minus its naive opening.
+	 */
+	private void checkOpening(SpatialBackground spatial, int width, int height, boolean bytes) throws Exception {
+		int[] values = randomValues(width * height);
+		Object pixels;
+		if (bytes) {
+			byte[] p = new byte[values.length];
+			for (int i = 0; i < p.length; i++) {
+				values[i] &= 0xff;
+				p[i] = (byte) values[i];
+			}
+			pixels = p;
+		} else {
+			short[] p = new short[values.length];
+			for (int i = 0; i < p.length; i++) {
+				p[i] = (short) values[i];
+			}
+			pixels = p;
+		}
+		int r = (int) Math.round(spatial.getRadius());
+		int[] opening = naiveFilter(naiveFilter(values, width, height, r, false), width, height, r, true);
+		Object result = ImageUtils2.newPixelArray(pixels);
+		spatial.subtract(engine_, pixels, width, height, 0, result);
+		String what = width + "x" + height + " r=" + r + (bytes ? " 8 bit" : " 16 bit");
+		for (int i = 0; i < values.length; i++) {
+			int actual = bytes ? ((byte[]) result)[i] & 0xff : ((short[]) result)[i] & 0xffff;
+			assertEquals(what + " at " + i, values[i] - opening[i], actual);
+		}
+	}
+
+	@Test
+	public void subtractsTheOpening() throws Exception {
+		engine_ = new SubtractionEngine(1, SubtractionEngine.DEFAULT_THRESHOLD);
+		for (double radius : new double[] { 1, 2, 4, 10 }) {
+			SpatialBackground spatial = new SpatialBackground(radius);
+			assertEquals(1, spatial.getShrink());
+			checkOpening(spatial, 1, 1, false);
+			checkOpening(spatial, 7, 3, false);
+			checkOpening(spatial, 40, 33, false);
+			checkOpening(spatial, 40, 33, true);
+		}
+	}
+
+	@Test
+	public void subtractsTheOpeningInBands() throws Exception {
+		engine_ = new SubtractionEngine(3, 0);
+		for (double radius : new double[] { 1, 3, 10 }) {
+			SpatialBackground spatial = new SpatialBackground(radius);
+			checkOpening(spatial, 5, 4, false);
+			checkOpening(spatial, 37, 29, false);
+			checkOpening(spatial, 64, 50, true);
+		}
+	}
+
+	@Test
+	public void keepsAFlatFrameAtTheOffset() throws Exception {
+		engine_ = new SubtractionEngine(1, SubtractionEngine.DEFAULT_THRESHOLD);
+		short[] pixels = new short[100 * 80];
+		Arrays.fill(pixels, (short) 1000);
+		short[] result = new short[pixels.length];
+		// Shrunk and interpolated, a constant background stays exact
+		new SpatialBackground(50).subtract(engine_, pixels, 100, 80, 7, result);
+		short[] expected = new short[pixels.length];
+		Arrays.fill(expected, (short) 7);
+		assertArrayEquals(expected, result);
+	}
+}
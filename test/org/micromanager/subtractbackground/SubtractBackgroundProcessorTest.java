@@ -0,0 +1,158 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SubtractBackgroundProcessorTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+
+public class SubtractBackgroundProcessorTest {
+	private SubtractBackgroundProcessor processor_;
+
+	@Before
+	public void setUp() {
+		processor_ = new SubtractBackgroundProcessor();
+		processor_.setThreadCount(1, SubtractionEngine.DEFAULT_THRESHOLD);
+	}
+
+	@After
+	public void tearDown() {
+		processor_.dispose();
+	}
+
+	private static TaggedImage frame(short... pixels) throws Exception {
+		JSONObject tags = new JSONObject();
+		tags.put("PixelType", "GRAY16");
+		tags.put("Width", pixels.length);
+		tags.put("Height", 1);
+		return new TaggedImage(pixels, tags);
+	}
+
+	@Test
+	public void subtractsBackgroundAndTagsTheFrame() throws Exception {
+		processor_.setBackgroundImage(new ShortProcessor(3, 1, new short[] { 100, 100, 100 }, null), "bg.tif");
+		processor_.setOffset(1);
+		TaggedImage result = processor_.processTaggedImage(frame((short) 50, (short) 1000, (short) 65535));
+		assertArrayEquals(new short[] { (short) 605, (short) 1555, (short) 65535 }, (short[]) result.pix);
+		assertEquals("bg.tif", result.tags.getString(SubtractBackgroundProcessor.TAG_BACKGROUND));
+		assertEquals(655, result.tags.getInt(SubtractBackgroundProcessor.TAG_OFFSET));
+		assertEquals(processor_.getCorrectionState().getGeneration(),
+				result.tags.getLong(SubtractBackgroundProcessor.TAG_GENERATION));
+	}
+
+	@Test
+	public void tagsCalibratedFramesWithTheCalibration() throws Exception {
+		short one = (short) PhotonTransferCalibration.GAIN_ONE;
+		processor_.setCalibration(new PhotonTransferCalibration(2, 1, new short[] { 10, 20 },
+				new short[] { one, (short) (one + one / 2) }, "ptc.tiff"));
+		processor_.setStatistics(true);
+		TaggedImage result = processor_.processTaggedImage(frame((short) 110, (short) 120));
+		assertArrayEquals(new short[] { 100, 150 }, (short[]) result.pix);
+		assertEquals("ptc.tiff", result.tags.getString(SubtractBackgroundProcessor.TAG_BACKGROUND));
+		assertEquals(0, result.tags.getInt(SubtractBackgroundProcessor.TAG_OFFSET));
+		assertTrue(result.tags.has(SubtractBackgroundProcessor.TAG_GENERATION));
+	}
+
+	@Test
+	public void inPlaceGivesTheSameResultAsACopy() throws Exception {
+		Random random = new Random(3);
+		short[] background = new short[64];
+		short[] pixels = new short[64];
+		for (int i = 0; i < pixels.length; i++) {
+			background[i] = (short) random.nextInt(65536);
+			pixels[i] = (short) random.nextInt(65536);
+		}
+		processor_.setBackgroundImage(new ShortProcessor(64, 1, background, null), "bg.tif");
+		processor_.setOffset(1);
+		short[] input = pixels.clone();
+		TaggedImage copy = processor_.processTaggedImage(frame(input));
+		assertNotSame(input, copy.pix);
+		assertArrayEquals(pixels, input);
+
+		processor_.setInPlace(true);
+		input = pixels.clone();
+		TaggedImage inPlace = processor_.processTaggedImage(frame(input));
+		assertSame(input, inPlace.pix);
+		assertArrayEquals((short[]) copy.pix, (short[]) inPlace.pix);
+	}
+
+	@Test
+	public void inPlaceGivesTheSameResultAsACopyFor8Bit() throws Exception {
+		byte[] background = new byte[256];
+		byte[] pixels = new byte[256];
+		new Random(4).nextBytes(background);
+		new Random(5).nextBytes(pixels);
+		processor_.setBackgroundImage(new ByteProcessor(256, 1, background, null), "bg.tif");
+		processor_.setOffset(2);
+		JSONObject tags = new JSONObject();
+		tags.put("PixelType", "GRAY8");
+		tags.put("Width", 256);
+		tags.put("Height", 1);
+		TaggedImage copy = processor_.processTaggedImage(new TaggedImage(pixels.clone(), new JSONObject(tags.toString())));
+		processor_.setInPlace(true);
+		byte[] input = pixels.clone();
+		TaggedImage inPlace = processor_.processTaggedImage(new TaggedImage(input, tags));
+		assertSame(input, inPlace.pix);
+		assertArrayEquals((byte[]) copy.pix, (byte[]) inPlace.pix);
+	}
+
+	@Test
+	public void subtractsFromFloatFrames() throws Exception {
+		processor_.setBackgroundImage(new ShortProcessor(2, 1, new short[] { 100, 200 }, null), "bg.tif");
+		processor_.setOffset(1);
+		JSONObject tags = new JSONObject();
+		tags.put("PixelType", "GRAY32");
+		tags.put("Width", 2);
+		tags.put("Height", 1);
+		TaggedImage result = processor_.processTaggedImage(new TaggedImage(new float[] { 50.5f, 1000f }, tags));
+		assertArrayEquals(new float[] { 50.5f - 100 + 655, 1000f - 200 + 655 }, (float[]) result.pix, 0f);
+	}
+
+	@Test
+	public void subtractsFromRgbFrames() throws Exception {
+		processor_.setBackgroundImage(new ColorProcessor(2, 1, new int[] { 0x102030, 0x000000 }), "bg.tif");
+		JSONObject tags = new JSONObject();
+		tags.put("PixelType", "RGB32");
+		tags.put("Width", 2);
+		tags.put("Height", 1);
+		TaggedImage result = processor_.processTaggedImage(new TaggedImage(new int[] { 0xff203040, 0x123456 }, tags));
+		assertArrayEquals(new int[] { 0xff101010, 0x123456 }, (int[]) result.pix);
+
+		// Bytes in B, G, R, A order as delivered by the core
+		result = processor_.processTaggedImage(new TaggedImage(new byte[] { 0x10, 0x10, 0x10, 0, 1, 2, 3, 4 }, tags));
+		assertArrayEquals(new byte[] { 0, 0, 0, 0, 1, 2, 3, 4 }, (byte[]) result.pix);
+	}
+}
@@ -0,0 +1,97 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SubtractionEngineTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import ij.process.ShortProcessor;
+
+public class SubtractionEngineTest {
+	private static final int[][] SIZES = { { 1, 1 }, { 5, 2 }, { 7, 3 }, { 13, 10 }, { 31, 17 }, { 64, 64 } };
+
+	@Test
+	public void bandsCoverEveryPixelOnce() throws Exception {
+		for (int threads = 1; threads <= 5; threads++) {
+			SubtractionEngine engine = new SubtractionEngine(threads, 0);
+			for (int[] size : SIZES) {
+				final AtomicIntegerArray runs = new AtomicIntegerArray(size[0] * size[1]);
+				engine.execute(size[0], size[1], new SubtractionEngine.Band() {
+					@Override
+					public void run(int from, int to) {
+						for (int i = from; i < to; i++) {
+							runs.incrementAndGet(i);
+						}
+					}
+				});
+				for (int i = 0; i < runs.length(); i++) {
+					assertEquals(threads + " threads, " + size[0] + "x" + size[1] + " at " + i, 1, runs.get(i));
+				}
+			}
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelResultEqualsSerial() throws Exception {
+		Random random = new Random(11);
+		SubtractionEngine serial = new SubtractionEngine(1, 0);
+		for (int threads = 2; threads <= 5; threads++) {
+			SubtractionEngine parallel = new SubtractionEngine(threads, 0);
+			for (int[] size : SIZES) {
+				int width = size[0];
+				int height = size[1];
+				short[] pixels = new short[width * height];
+				short[] background = new short[width * height];
+				for (int i = 0; i < pixels.length; i++) {
+					pixels[i] = (short) random.nextInt(65536);
+					background[i] = (short) random.nextInt(65536);
+				}
+				ShortProcessor bg = new ShortProcessor(width, height, background, null);
+				int[] plane = ImageUtils2.makeCorrectionPlane(bg, 300);
+				String what = threads + " threads, " + width + "x" + height;
+
+				short[] expected = new short[pixels.length];
+				short[] actual = new short[pixels.length];
+				serial.subtract(pixels, bg, 300, expected);
+				parallel.subtract(pixels, bg, 300, actual);
+				assertArrayEquals(what, expected, actual);
+
+				serial.subtract(pixels, plane, expected, width, height);
+				parallel.subtract(pixels, plane, actual, width, height);
+				assertArrayEquals(what, expected, actual);
+
+				// In place
+				short[] inPlace = pixels.clone();
+				parallel.subtract(inPlace, plane, inPlace, width, height);
+				assertArrayEquals(what, expected, inPlace);
+			}
+			parallel.shutdown();
+		}
+		serial.shutdown();
+	}
+}
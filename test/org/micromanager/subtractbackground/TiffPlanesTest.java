@@ -0,0 +1,251 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TiffPlanesTest.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SubtractBackground plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ikuo Obataya
+//
+// COPYRIGHT:    JPK Instruments AG, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.subtractbackground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ShortProcessor;
+
+public class TiffPlanesTest {
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	/**
+	 * Writes a TIFF of planes of width x height pixels, one IFD per plane
+	 * followed by its pixels, or one IFD for all planes when description is
+	 * set. Pixel i of plane p has the value p * 100 + i. A sampleFormat of 0
+	 * leaves the tag out.
+	 */
+	private File writeTiff(ByteOrder order, int width, int height, int bits, int planes, int compression,
+			String description, int sampleFormat) throws IOException {
+		int bytesPerPixel = bits / 8;
+		int planeSize = width * height * bytesPerPixel;
+		int ifds = description != null ? 1 : planes;
+		int entries = 7 + (description != null ? 1 : 0) + (sampleFormat != 0 ? 1 : 0);
+		int ifdSize = 2 + 12 * entries + 4;
+		byte[] text = description != null ? (description + "\0").getBytes("ISO-8859-1") : new byte[0];
+		int dataSize = description != null ? planes * planeSize : planeSize;
+		int blockSize = ifdSize + text.length + dataSize;
+		ByteBuffer tiff = ByteBuffer.allocate(8 + ifds * blockSize).order(order);
+		tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+		tiff.put(tiff.get(0));
+		tiff.putShort((short) 42);
+		tiff.putInt(8);
+		for (int ifd = 0; ifd < ifds; ifd++) {
+			int start = 8 + ifd * blockSize;
+			int textOffset = start + ifdSize;
+			int dataOffset = textOffset + text.length;
+			tiff.position(start);
+			tiff.putShort((short) entries);
+			putEntry(tiff, 256, 3, 1, width);
+			putEntry(tiff, 257, 3, 1, height);
+			putEntry(tiff, 258, 3, 1, bits);
+			putEntry(tiff, 259, 3, 1, compression);
+			if (description != null) {
+				putEntry(tiff, 270, 2, text.length, textOffset);
+			}
+			putEntry(tiff, 273, 4, 1, dataOffset);
+			putEntry(tiff, 277, 3, 1, 1);
+			putEntry(tiff, 279, 4, 1, dataSize);
+			if (sampleFormat != 0) {
+				putEntry(tiff, 339, 3, 1, sampleFormat);
+			}
+			tiff.putInt(ifd + 1 < ifds ? start + blockSize : 0);
+			tiff.put(text);
+			int count = dataSize / bytesPerPixel;
+			for (int i = 0; i < count; i++) {
+				int value = (ifd + i / (width * height)) * 100 + i % (width * height);
+				if (bytesPerPixel == 2) {
+					tiff.putShort((short) value);
+				} else {
+					tiff.put((byte) value);
+				}
+			}
+		}
+		File file = folder_.newFile();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(tiff.array());
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void putEntry(ByteBuffer tiff, int tag, int type, int count, int value) {
+		tiff.putShort((short) tag);
+		tiff.putShort((short) type);
+		tiff.putInt(count);
+		if (type == 3) {
+			// SHORT values are left-justified in the entry
+			tiff.putShort((short) value);
+			tiff.putShort((short) 0);
+		} else {
+			tiff.putInt(value);
+		}
+	}
+
+	private static TiffPlanes read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return TiffPlanes.read(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Checks that every plane starts where writeTiff put its first pixel
+	 */
+	private static void checkPlanes(File file, TiffPlanes planes, int count) throws IOException {
+		assertEquals(count, planes.getPlaneCount());
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			int planeSize = planes.getWidth() * planes.getHeight();
+			for (int p = 0; p < count; p++) {
+				ByteBuffer pixels = ByteBuffer.allocate(planeSize * planes.getBytesPerPixel())
+						.order(planes.getByteOrder());
+				TiffPlanes.readFully(channel, pixels, planes.getOffset(p));
+				for (int i = 0; i < planeSize; i++) {
+					int expected = p * 100 + i;
+					if (planes.getBytesPerPixel() == 2) {
+						assertEquals(expected, pixels.getShort(2 * i) & 0xffff);
+					} else {
+						assertEquals(expected & 0xff, pixels.get(i) & 0xff);
+					}
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void readsLittleEndianPlanes() throws Exception {
+		File file = writeTiff(ByteOrder.LITTLE_ENDIAN, 5, 4, 16, 3, 1, null, 0);
+		TiffPlanes planes = read(file);
+		assertEquals(ByteOrder.LITTLE_ENDIAN, planes.getByteOrder());
+		assertEquals(5, planes.getWidth());
+		assertEquals(4, planes.getHeight());
+		assertEquals(2, planes.getBytesPerPixel());
+		checkPlanes(file, planes, 3);
+	}
+
+	@Test
+	public void readsBigEndianPlanes() throws Exception {
+		File file = writeTiff(ByteOrder.BIG_ENDIAN, 3, 2, 8, 2, 1, null, 0);
+		TiffPlanes planes = read(file);
+		assertEquals(ByteOrder.BIG_ENDIAN, planes.getByteOrder());
+		assertEquals(1, planes.getBytesPerPixel());
+		checkPlanes(file, planes, 2);
+		file = writeTiff(ByteOrder.BIG_ENDIAN, 3, 2, 16, 2, 1, null, 0);
+		checkPlanes(file, read(file), 2);
+		// Unsigned integers stated explicitly
+		file = writeTiff(ByteOrder.BIG_ENDIAN, 3, 2, 16, 2, 1, null, 1);
+		checkPlanes(file, read(file), 2);
+	}
+
+	@Test
+	public void readsImageJStacksWithOneIfd() throws Exception {
+		File file = writeTiff(ByteOrder.BIG_ENDIAN, 4, 3, 16, 5, 1, "ImageJ=1.54f\nimages=5\nslices=5\n", 0);
+		checkPlanes(file, read(file), 5);
+	}
+
+	@Test
+	public void ignoresImagesOfOtherDescriptions() throws Exception {
+		File file = writeTiff(ByteOrder.LITTLE_ENDIAN, 4, 3, 16, 5, 1, "Micro-Manager\nimages=5\n", 0);
+		assertEquals(1, read(file).getPlaneCount());
+	}
+
+	@Test
+	public void readsStacksSavedByImageJ() throws Exception {
+		ImageStack stack = new ImageStack(6, 5);
+		for (int p = 0; p < 3; p++) {
+			short[] pixels = new short[30];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short) (p * 100 + i);
+			}
+			stack.addSlice(new ShortProcessor(6, 5, pixels, null));
+		}
+		File file = new File(folder_.getRoot(), "stack.tif");
+		new FileSaver(new ImagePlus("stack", stack)).saveAsTiffStack(file.getAbsolutePath());
+		TiffPlanes planes = read(file);
+		assertEquals(6, planes.getWidth());
+		assertEquals(5, planes.getHeight());
+		checkPlanes(file, planes, 3);
+	}
+
+	private void assertRejected(File file) {
+		try {
+			read(file);
+			fail(file.getName() + " was read");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsUnsupportedFiles() throws Exception {
+		// Compressed
+		assertRejected(writeTiff(ByteOrder.LITTLE_ENDIAN, 4, 3, 16, 1, 5, null, 0));
+		// 32 bit
+		assertRejected(writeTiff(ByteOrder.LITTLE_ENDIAN, 4, 3, 32, 1, 1, null, 0));
+		// Signed or floating point
+		assertRejected(writeTiff(ByteOrder.LITTLE_ENDIAN, 4, 3, 16, 1, 1, null, 2));
+		assertRejected(writeTiff(ByteOrder.BIG_ENDIAN, 4, 3, 16, 1, 1, null, 3));
+		// More images than the file holds
+		File file = writeTiff(ByteOrder.LITTLE_ENDIAN, 4, 3, 16, 2, 1, "ImageJ=1.54f\nimages=2\n", 0);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 1);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file);
+		// No TIFF
+		File text = folder_.newFile();
+		FileOutputStream out = new FileOutputStream(text);
+		try {
+			out.write("not a tiff file".getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+		assertRejected(text);
+	}
+}